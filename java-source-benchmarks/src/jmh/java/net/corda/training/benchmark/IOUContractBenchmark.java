@@ -0,0 +1,53 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.training.contract.IOUContract;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures [IOUContract.verify] for one transaction of each command type. Run with the GC profiler (the default for
+ * this module) to get the allocation rate per verified transaction, and compare against a build of the parent commit
+ * to see the effect of a contract change.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUContractBenchmark {
+
+    private final IOUContract contract = new IOUContract();
+
+    private LedgerTransaction issueTx;
+    private LedgerTransaction transferTx;
+    private LedgerTransaction partialSettleTx;
+    private LedgerTransaction fullSettleTx;
+
+    @Setup
+    public void setup() {
+        issueTx = IOULedgerTransactions.issue();
+        transferTx = IOULedgerTransactions.transfer();
+        partialSettleTx = IOULedgerTransactions.settle(1, false);
+        fullSettleTx = IOULedgerTransactions.settle(1, true);
+    }
+
+    @Benchmark
+    public void verifyIssue() {
+        contract.verify(issueTx);
+    }
+
+    @Benchmark
+    public void verifyTransfer() {
+        contract.verify(transferTx);
+    }
+
+    @Benchmark
+    public void verifyPartialSettle() {
+        contract.verify(partialSettleTx);
+    }
+
+    @Benchmark
+    public void verifyFullSettle() {
+        contract.verify(fullSettleTx);
+    }
+}
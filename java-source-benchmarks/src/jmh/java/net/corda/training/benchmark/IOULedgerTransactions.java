@@ -0,0 +1,120 @@
+package net.corda.training.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.contracts.*;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.utilities.OpaqueBytes;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.core.TestIdentity;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+
+import static net.corda.training.TestUtils.ALICE;
+import static net.corda.training.TestUtils.BOB;
+import static net.corda.training.TestUtils.CHARLIE;
+
+/**
+ * Builds valid [LedgerTransaction]s for each [IOUContract] command, using the same identities and state shapes as
+ * [IOUIssueTests], [IOUTransferTests] and [IOUSettleTests]: ALICE lends to BOB, and CHARLIE is the new lender on
+ * transfer.
+ *
+ * The transactions are built directly rather than through the ledger DSL, as the contract only looks at their states
+ * and commands. Inputs are given dummy refs and every state is assigned to the contract class matching its type.
+ */
+public class IOULedgerTransactions {
+
+    private static final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    public static LedgerTransaction issue() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        return ledgerTransaction(
+                Collections.emptyList(),
+                ImmutableList.of(iou),
+                command(new IOUContract.Commands.Issue(), ALICE, BOB));
+    }
+
+    public static LedgerTransaction transfer() {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        return ledgerTransaction(
+                ImmutableList.of(iou),
+                ImmutableList.of(iou.withNewLender(CHARLIE.getParty())),
+                command(new IOUContract.Commands.Transfer(), ALICE, BOB, CHARLIE));
+    }
+
+    /**
+     * A settlement paying the lender one pound in each of [cashOutputs] cash states, funded from a single input cash
+     * state owned by the borrower. If [fully] is false the IOU is for twice the payment and a partially paid output
+     * IOU is included.
+     */
+    public static LedgerTransaction settle(int cashOutputs, boolean fully) {
+        Amount<Currency> payment = Currencies.POUNDS(cashOutputs);
+        IOUState iou = new IOUState(fully ? payment : payment.times(2), ALICE.getParty(), BOB.getParty());
+        Cash.State inputCash = cashState(BOB.getParty(), payment);
+
+        List<ContractState> outputs = new ArrayList<>();
+        if (!fully) {
+            outputs.add(iou.pay(payment));
+        }
+        for (int i = 0; i < cashOutputs; i++) {
+            outputs.add(cashState(ALICE.getParty(), Currencies.POUNDS(1)));
+        }
+
+        return ledgerTransaction(
+                ImmutableList.of(iou, inputCash),
+                outputs,
+                command(new IOUContract.Commands.Settle(), ALICE, BOB));
+    }
+
+    private static Cash.State cashState(Party owner, Amount<Currency> amount) {
+        PartyAndReference issuer = new PartyAndReference(BOB.getParty(), OpaqueBytes.of((byte) 1));
+        return new Cash.State(issuer, amount, owner);
+    }
+
+    private static CommandWithParties<CommandData> command(CommandData value, TestIdentity... signers) {
+        ImmutableList.Builder<PublicKey> keys = ImmutableList.builder();
+        ImmutableList.Builder<Party> parties = ImmutableList.builder();
+        for (TestIdentity signer : signers) {
+            keys.add(signer.getPublicKey());
+            parties.add(signer.getParty());
+        }
+        return new CommandWithParties<>(keys.build(), parties.build(), value);
+    }
+
+    @SuppressWarnings("deprecation")
+    private static LedgerTransaction ledgerTransaction(List<? extends ContractState> inputs,
+                                                       List<? extends ContractState> outputs,
+                                                       CommandWithParties<CommandData> command) {
+        ImmutableList.Builder<StateAndRef<ContractState>> inputRefs = ImmutableList.builder();
+        for (int i = 0; i < inputs.size(); i++) {
+            inputRefs.add(new StateAndRef<>(transactionState(inputs.get(i)), new StateRef(SecureHash.zeroHash, i)));
+        }
+        ImmutableList.Builder<TransactionState<ContractState>> outputStates = ImmutableList.builder();
+        for (ContractState output : outputs) {
+            outputStates.add(transactionState(output));
+        }
+        return new LedgerTransaction(
+                inputRefs.build(),
+                outputStates.build(),
+                ImmutableList.of(command),
+                Collections.emptyList(),
+                SecureHash.randomSHA256(),
+                NOTARY.getParty(),
+                null,
+                new PrivacySalt());
+    }
+
+    private static TransactionState<ContractState> transactionState(ContractState state) {
+        String contract = state instanceof Cash.State ? Cash.class.getName() : IOUContract.IOU_CONTRACT_ID;
+        return new TransactionState<>(state, contract, NOTARY.getParty());
+    }
+}
@@ -0,0 +1,41 @@
+package net.corda.training.benchmark;
+
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.training.contract.IOUContract;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how [IOUContract.verify] scales with the number of cash outputs in a settle transaction, as fragmented cash
+ * vaults produce settlements paying the lender in many small states.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IOUSettleFanOutBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int cashOutputs;
+
+    private final IOUContract contract = new IOUContract();
+
+    private LedgerTransaction partialSettleTx;
+    private LedgerTransaction fullSettleTx;
+
+    @Setup
+    public void setup() {
+        partialSettleTx = IOULedgerTransactions.settle(cashOutputs, false);
+        fullSettleTx = IOULedgerTransactions.settle(cashOutputs, true);
+    }
+
+    @Benchmark
+    public void verifyPartialSettle() {
+        contract.verify(partialSettleTx);
+    }
+
+    @Benchmark
+    public void verifyFullSettle() {
+        contract.verify(fullSettleTx);
+    }
+}
@@ -0,0 +1,138 @@
+package net.corda.training.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the latency of each completed flow in an HdrHistogram per [LoadTest.Operation], and writes the throughput
+ * and p50/p95/p99/max latency of each to "loadtest-report.json" and "loadtest-report.csv".
+ *
+ * Latencies are recorded in microseconds with three significant digits and reported in milliseconds.
+ */
+public class LoadReport {
+    private final Map<LoadTest.Operation, Histogram> latencies = new EnumMap<>(LoadTest.Operation.class);
+    private final Map<LoadTest.Operation, AtomicLong> failures = new EnumMap<>(LoadTest.Operation.class);
+
+    public LoadReport() {
+        for (LoadTest.Operation operation : LoadTest.Operation.values()) {
+            latencies.put(operation, new ConcurrentHistogram(3));
+            failures.put(operation, new AtomicLong());
+        }
+    }
+
+    public void recordSuccess(LoadTest.Operation operation, long durationNanos) {
+        latencies.get(operation).recordValue(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+    }
+
+    public void recordFailure(LoadTest.Operation operation) {
+        failures.get(operation).incrementAndGet();
+    }
+
+    /**
+     * Summarises each operation, and all of them together, over a run that recorded results for [elapsedNanos].
+     */
+    public List<Row> summarise(long elapsedNanos) {
+        double elapsedSeconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        List<Row> rows = new ArrayList<>();
+        Histogram total = new Histogram(3);
+        long totalFailures = 0;
+        for (LoadTest.Operation operation : LoadTest.Operation.values()) {
+            Histogram histogram = latencies.get(operation).copy();
+            long operationFailures = failures.get(operation).get();
+            rows.add(new Row(operation.name().toLowerCase(Locale.ROOT), histogram, operationFailures, elapsedSeconds));
+            total.add(histogram);
+            totalFailures += operationFailures;
+        }
+        rows.add(new Row("total", total, totalFailures, elapsedSeconds));
+        return rows;
+    }
+
+    /**
+     * Writes the summary to [directory], returning the paths written.
+     */
+    public List<Path> write(Path directory, LoadTestConfig config, long elapsedNanos) throws IOException {
+        List<Row> rows = summarise(elapsedNanos);
+        Files.createDirectories(directory);
+
+        StringBuilder csv = new StringBuilder("flow,count,failures,throughput_per_second,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for (Row row : rows) {
+            csv.append(String.format(Locale.ROOT, "%s,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f%n",
+                    row.flow, row.count, row.failures, row.throughput, row.p50, row.p95, row.p99, row.max));
+        }
+
+        StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT,
+                "  \"config\": {\"nodes\": %d, \"concurrency\": %d, \"warmupSeconds\": %d, \"durationSeconds\": %d, \"seedIOUs\": %d},%n",
+                config.getNodes(), config.getConcurrency(), config.getWarmupSeconds(), config.getDurationSeconds(), config.getSeedIOUs()));
+        json.append("  \"mix\": {");
+        List<String> weights = new ArrayList<>();
+        config.getMix().forEach((operation, weight) -> weights.add("\"" + operation.name().toLowerCase(Locale.ROOT) + "\": " + weight));
+        json.append(String.join(", ", weights)).append("},\n");
+        json.append(String.format(Locale.ROOT, "  \"elapsedSeconds\": %.3f,%n", elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+        json.append("  \"flows\": {\n");
+        for (int i = 0; i < rows.size(); i++) {
+            Row row = rows.get(i);
+            json.append(String.format(Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"failures\": %d, \"throughputPerSecond\": %.2f, \"p50Ms\": %.3f, \"p95Ms\": %.3f, \"p99Ms\": %.3f, \"maxMs\": %.3f}%s%n",
+                    row.flow, row.count, row.failures, row.throughput, row.p50, row.p95, row.p99, row.max, i < rows.size() - 1 ? "," : ""));
+        }
+        json.append("  }\n}\n");
+
+        Path csvPath = directory.resolve("loadtest-report.csv");
+        Path jsonPath = directory.resolve("loadtest-report.json");
+        Files.write(csvPath, csv.toString().getBytes(StandardCharsets.UTF_8));
+        Files.write(jsonPath, json.toString().getBytes(StandardCharsets.UTF_8));
+        List<Path> written = new ArrayList<>();
+        written.add(jsonPath);
+        written.add(csvPath);
+        return written;
+    }
+
+    /**
+     * The summary of one operation: completed flows, failed flows, completed flows per second, and latency percentiles
+     * in milliseconds.
+     */
+    public static class Row {
+        public final String flow;
+        public final long count;
+        public final long failures;
+        public final double throughput;
+        public final double p50;
+        public final double p95;
+        public final double p99;
+        public final double max;
+
+        Row(String flow, Histogram histogram, long failures, double elapsedSeconds) {
+            this.flow = flow;
+            this.count = histogram.getTotalCount();
+            this.failures = failures;
+            this.throughput = elapsedSeconds > 0 ? count / elapsedSeconds : 0;
+            this.p50 = millis(histogram.getValueAtPercentile(50));
+            this.p95 = millis(histogram.getValueAtPercentile(95));
+            this.p99 = millis(histogram.getValueAtPercentile(99));
+            this.max = millis(histogram.getMaxValue());
+        }
+
+        private static double millis(long micros) {
+            return micros / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-8s count=%d failures=%d throughput=%.2f/s p50=%.1fms p95=%.1fms p99=%.1fms max=%.1fms",
+                    flow, count, failures, throughput, p50, p95, p99, max);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package net.corda.training.loadtest;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.Currencies;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.driver.VerifierType;
+import net.corda.testing.node.NotarySpec;
+import net.corda.testing.node.TestCordapp;
+import net.corda.testing.node.User;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.flow.IOUSettleFlow;
+import net.corda.training.flow.IOUTransferFlow;
+import net.corda.training.flow.SelfIssueCashFlow;
+import net.corda.training.state.IOUState;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.testing.driver.Driver.driver;
+
+/**
+ * A load-generation harness for the IOU flows. It uses the driver DSL to start a notary and [LoadTestConfig.nodes]
+ * participant nodes on this machine, then keeps [LoadTestConfig.concurrency] flows in flight over RPC, choosing
+ * between issuing, transferring and settling IOUs according to [LoadTestConfig.mix], and writes the throughput and
+ * latency percentiles of each flow with [LoadReport]. Run it with:
+ *
+ *     ./gradlew java-source-benchmarks:loadTest -Ploadtest.nodes=4 -Ploadtest.concurrency=16
+ *
+ * IOUs issued during the run are kept in a pool, from which transfers and settlements take the IOU they act on. A
+ * transfer returns the IOU to the pool with its new lender, and a settlement pays it off in full. When the pool is
+ * empty a transfer or settlement is replaced by an issuance. Every node is issued one cash state per concurrent flow
+ * before the run, so borrowers can always settle and concurrent settlements rarely wait on the same cash.
+ */
+public class LoadTest {
+    public enum Operation { ISSUE, TRANSFER, SETTLE }
+
+    private static final Currency CURRENCY = Currencies.POUNDS(0).getToken();
+    private static final Amount<Currency> CASH_STATE_AMOUNT = Currencies.POUNDS(1_000_000);
+    private static final int MAX_IOU_POUNDS = 100;
+
+    private final LoadTestConfig config;
+    private final Map<Party, CordaRPCOps> rpcByParty = new LinkedHashMap<>();
+    private final List<Party> parties = new ArrayList<>();
+    private final ConcurrentLinkedQueue<IOUState> pool = new ConcurrentLinkedQueue<>();
+    private final LoadReport report = new LoadReport();
+
+    public LoadTest(LoadTestConfig config, List<CordaRPCOps> participants) {
+        this.config = config;
+        for (CordaRPCOps rpc : participants) {
+            Party party = rpc.nodeInfo().getLegalIdentities().get(0);
+            rpcByParty.put(party, rpc);
+            parties.add(party);
+        }
+    }
+
+    public static void main(String[] args) {
+        LoadTestConfig config = LoadTestConfig.fromSystemProperties();
+        System.out.println("Starting load test: " + config);
+        final User user = new User("loadtest", "loadtest", ImmutableSet.of("ALL"));
+
+        driver(new DriverParameters()
+                .withStartNodesInProcess(false)
+                .withWaitForAllNodesToFinish(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("net.corda.training"),
+                        TestCordapp.findCordapp("net.corda.finance.contracts"),
+                        TestCordapp.findCordapp("net.corda.finance.workflows"),
+                        TestCordapp.findCordapp("net.corda.finance.schemas")))
+                .withNotarySpecs(ImmutableList.of(new NotarySpec(new CordaX500Name("Notary", "London", "GB"), false, ImmutableList.of(user), VerifierType.InMemory, null))), dsl -> {
+            try {
+                List<CordaFuture<NodeHandle>> futures = new ArrayList<>();
+                for (int i = 1; i <= config.getNodes(); i++) {
+                    futures.add(dsl.startNode(new NodeParameters()
+                            .withProvidedName(new CordaX500Name("Participant" + i, "London", "GB"))
+                            .withRpcUsers(ImmutableList.of(user))));
+                }
+                List<CordaRPCOps> participants = new ArrayList<>();
+                for (CordaFuture<NodeHandle> future : futures) {
+                    participants.add(future.get().getRpc());
+                }
+
+                LoadTest loadTest = new LoadTest(config, participants);
+                long elapsedNanos = loadTest.run();
+                for (LoadReport.Row row : loadTest.report.summarise(elapsedNanos)) {
+                    System.out.println(row);
+                }
+                for (Path path : loadTest.report.write(config.getOutput(), config, elapsedNanos)) {
+                    System.out.println("Wrote " + path.toAbsolutePath());
+                }
+            } catch (Exception e) {
+                throw new RuntimeException("The load test failed.", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Issues cash to every node and seeds the IOU pool, then runs the warmup and the measured period. Returns the
+     * length of the measured period.
+     */
+    public long run() throws Exception {
+        for (CordaRPCOps rpc : rpcByParty.values()) {
+            for (int i = 0; i < config.getConcurrency(); i++) {
+                rpc.startFlowDynamic(SelfIssueCashFlow.class, CASH_STATE_AMOUNT).getReturnValue().get();
+            }
+        }
+        for (int i = 0; i < config.getSeedIOUs(); i++) {
+            pool.add(issue(ThreadLocalRandom.current()));
+        }
+
+        long measureFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getWarmupSeconds());
+        long measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(config.getDurationSeconds());
+        ExecutorService workers = Executors.newFixedThreadPool(config.getConcurrency());
+        try {
+            List<Future<?>> running = new ArrayList<>();
+            for (int i = 0; i < config.getConcurrency(); i++) {
+                running.add(workers.submit(() -> work(measureFrom, measureUntil)));
+            }
+            for (Future<?> worker : running) {
+                worker.get();
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        return measureUntil - measureFrom;
+    }
+
+    /**
+     * Runs flows one after another until [measureUntil], recording those started from [measureFrom] onwards.
+     */
+    private void work(long measureFrom, long measureUntil) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long started;
+        while ((started = System.nanoTime()) < measureUntil) {
+            Operation operation = config.nextOperation(random);
+            IOUState iou = operation == Operation.ISSUE ? null : pool.poll();
+            if (iou == null) {
+                operation = Operation.ISSUE;
+            }
+            boolean measured = started >= measureFrom;
+            try {
+                IOUState result;
+                switch (operation) {
+                    case TRANSFER:
+                        result = transfer(iou, random);
+                        break;
+                    case SETTLE:
+                        result = settle(iou);
+                        break;
+                    default:
+                        result = issue(random);
+                }
+                if (measured) {
+                    report.recordSuccess(operation, System.nanoTime() - started);
+                }
+                if (result != null) {
+                    pool.add(result);
+                }
+            } catch (Exception e) {
+                if (measured) {
+                    report.recordFailure(operation);
+                }
+            }
+        }
+    }
+
+    private IOUState issue(ThreadLocalRandom random) throws Exception {
+        Party lender = parties.get(random.nextInt(parties.size()));
+        Party borrower = otherParty(random, lender, null);
+        IOUState state = new IOUState(Currencies.POUNDS(1 + random.nextInt(MAX_IOU_POUNDS)), lender, borrower);
+        SignedTransaction stx = rpcByParty.get(lender)
+                .startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state).getReturnValue().get();
+        return stx.getTx().outputsOfType(IOUState.class).get(0);
+    }
+
+    private IOUState transfer(IOUState iou, ThreadLocalRandom random) throws Exception {
+        Party newLender = otherParty(random, iou.lender, iou.borrower);
+        SignedTransaction stx = rpcByParty.get(iou.lender)
+                .startFlowDynamic(IOUTransferFlow.InitiatorFlow.class, iou.getLinearId(), newLender).getReturnValue().get();
+        return stx.getTx().outputsOfType(IOUState.class).get(0);
+    }
+
+    private IOUState settle(IOUState iou) throws Exception {
+        Amount<Currency> outstanding = new Amount<>(iou.amount.getQuantity() - iou.paid.getQuantity(), CURRENCY);
+        rpcByParty.get(iou.borrower)
+                .startFlowDynamic(IOUSettleFlow.InitiatorFlow.class, iou.getLinearId(), outstanding).getReturnValue().get();
+        return null;
+    }
+
+    /**
+     * Picks a participant other than [first] and [second] (which may be null).
+     */
+    private Party otherParty(ThreadLocalRandom random, Party first, Party second) {
+        Party party;
+        do {
+            party = parties.get(random.nextInt(parties.size()));
+        } while (party.equals(first) || party.equals(second));
+        return party;
+    }
+}
@@ -0,0 +1,127 @@
+package net.corda.training.loadtest;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The settings for a [LoadTest] run, read from "loadtest.*" system properties:
+ * - loadtest.nodes: The number of participant nodes to start, besides the notary (default 3).
+ * - loadtest.concurrency: The number of flows kept in flight at once (default 8).
+ * - loadtest.warmupSeconds: How long to run before recording results (default 10).
+ * - loadtest.durationSeconds: How long to record results for (default 60).
+ * - loadtest.seedIOUs: The number of IOUs issued before the run, for the first transfers and settlements (default 50).
+ * - loadtest.mix: The relative weight of each flow, e.g. "issue=50,transfer=25,settle=25" (the default).
+ * - loadtest.output: The directory the reports are written to (default build/reports/loadtest).
+ */
+public class LoadTestConfig {
+    private final int nodes;
+    private final int concurrency;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int seedIOUs;
+    private final Map<LoadTest.Operation, Integer> mix;
+    private final Path output;
+
+    public LoadTestConfig(int nodes, int concurrency, int warmupSeconds, int durationSeconds, int seedIOUs,
+                          Map<LoadTest.Operation, Integer> mix, Path output) {
+        if (nodes < 2) {
+            throw new IllegalArgumentException("At least two participant nodes are needed to issue IOUs.");
+        } else if (nodes < 3 && mix.getOrDefault(LoadTest.Operation.TRANSFER, 0) > 0) {
+            throw new IllegalArgumentException("At least three participant nodes are needed to transfer IOUs.");
+        } else if (concurrency < 1 || durationSeconds < 1 || warmupSeconds < 0 || seedIOUs < 0) {
+            throw new IllegalArgumentException("The concurrency and duration must be positive, and the warmup and seed IOUs non-negative.");
+        } else if (mix.values().stream().mapToInt(Integer::intValue).sum() <= 0) {
+            throw new IllegalArgumentException("The flow mix must have a positive total weight.");
+        }
+        this.nodes = nodes;
+        this.concurrency = concurrency;
+        this.warmupSeconds = warmupSeconds;
+        this.durationSeconds = durationSeconds;
+        this.seedIOUs = seedIOUs;
+        this.mix = Collections.unmodifiableMap(new EnumMap<>(mix));
+        this.output = output;
+    }
+
+    public static LoadTestConfig fromSystemProperties() {
+        return new LoadTestConfig(
+                Integer.getInteger("loadtest.nodes", 3),
+                Integer.getInteger("loadtest.concurrency", 8),
+                Integer.getInteger("loadtest.warmupSeconds", 10),
+                Integer.getInteger("loadtest.durationSeconds", 60),
+                Integer.getInteger("loadtest.seedIOUs", 50),
+                parseMix(System.getProperty("loadtest.mix", "issue=50,transfer=25,settle=25")),
+                Paths.get(System.getProperty("loadtest.output", "build/reports/loadtest")));
+    }
+
+    /**
+     * Parses a comma separated list of "operation=weight" pairs. Operations that aren't listed have no weight.
+     */
+    static Map<LoadTest.Operation, Integer> parseMix(String mix) {
+        Map<LoadTest.Operation, Integer> weights = new EnumMap<>(LoadTest.Operation.class);
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid flow mix entry '" + entry + "', expected operation=weight.");
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight < 0) {
+                throw new IllegalArgumentException("Flow mix weights cannot be negative.");
+            }
+            weights.put(LoadTest.Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+        }
+        return weights;
+    }
+
+    /**
+     * Picks an operation at random, in proportion to the weights in the mix.
+     */
+    public LoadTest.Operation nextOperation(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(total);
+        for (Map.Entry<LoadTest.Operation, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("The flow mix has no positive weights.");
+    }
+
+    public int getNodes() {
+        return nodes;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public int getWarmupSeconds() {
+        return warmupSeconds;
+    }
+
+    public int getDurationSeconds() {
+        return durationSeconds;
+    }
+
+    public int getSeedIOUs() {
+        return seedIOUs;
+    }
+
+    public Map<LoadTest.Operation, Integer> getMix() {
+        return mix;
+    }
+
+    public Path getOutput() {
+        return output;
+    }
+
+    @Override
+    public String toString() {
+        return "nodes=" + nodes + ", concurrency=" + concurrency + ", warmupSeconds=" + warmupSeconds
+                + ", durationSeconds=" + durationSeconds + ", seedIOUs=" + seedIOUs + ", mix=" + mix;
+    }
+}
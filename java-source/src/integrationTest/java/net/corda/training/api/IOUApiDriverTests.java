@@ -0,0 +1,123 @@
+package net.corda.training.api;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.driver.WebserverHandle;
+import net.corda.testing.node.TestCordapp;
+import net.corda.testing.node.User;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.stream.Collectors;
+
+import static net.corda.testing.driver.Driver.driver;
+import static org.junit.Assert.*;
+
+/**
+ * Runs the API in the node's own web server, as deployed, rather than calling [IOUApi] directly, to check the
+ * requests that depend on how the web server handles a connection: the update stream and long-polled flows.
+ */
+public class IOUApiDriverTests {
+    private static final User user = new User("user1", "test", ImmutableSet.of("ALL"));
+
+    private interface ApiTest {
+        void run(String apiBaseUrl) throws Exception;
+    }
+
+    /**
+     * Starts a node and its web server, and runs [test] against the web server's IOU API.
+     */
+    private static void withApi(ApiTest test) {
+        driver(new DriverParameters()
+                .withIsDebug(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("net.corda.training"),
+                        TestCordapp.findCordapp("net.corda.finance.schemas"),
+                        TestCordapp.findCordapp("net.corda.finance.flows"))), dsl -> {
+            try {
+                NodeHandle node = dsl.startNode(new NodeParameters()
+                        .withProvidedName(new CordaX500Name("ParticipantA", "London", "GB"))
+                        .withRpcUsers(ImmutableList.of(user))).get();
+                WebserverHandle webServer = dsl.startWebserver(node).get();
+                test.run("http://" + webServer.getListenAddress() + "/api/iou/");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return null;
+        });
+    }
+
+    private static HttpURLConnection request(String method, String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(10_000);
+        connection.setReadTimeout(60_000);
+        return connection;
+    }
+
+    /**
+     * Reads the stream until an event of [type], failing if the stream ends first.
+     */
+    private static void awaitEvent(BufferedReader events, String type) throws IOException {
+        for (String line = events.readLine(); line != null; line = events.readLine()) {
+            if (line.equals("event: " + type)) {
+                return;
+            }
+        }
+        fail("The update stream ended before a " + type + " event.");
+    }
+
+    @Test
+    public void updateStreamSendsASnapshotThenTheChanges() {
+        withApi(api -> {
+            HttpURLConnection updates = request("GET", api + "updates");
+            assertEquals(200, updates.getResponseCode());
+            assertTrue(updates.getContentType().startsWith("text/event-stream"));
+            try (BufferedReader events = new BufferedReader(
+                    new InputStreamReader(updates.getInputStream(), StandardCharsets.UTF_8))) {
+                awaitEvent(events, "snapshot");
+
+                HttpURLConnection issue = request("POST", api + "self-issue-cash?amount=10&currency=GBP");
+                assertEquals(202, issue.getResponseCode());
+                awaitEvent(events, "cash");
+            } finally {
+                updates.disconnect();
+            }
+        });
+    }
+
+    @Test
+    public void flowStatusCanBeLongPolledUntilTheFlowCompletes() {
+        withApi(api -> {
+            HttpURLConnection issue = request("POST", api + "self-issue-cash?amount=10&currency=GBP");
+            assertEquals(202, issue.getResponseCode());
+            String location = issue.getHeaderField("Location");
+            assertNotNull(location);
+
+            URL base = new URL(api);
+            String status = "";
+            for (int i = 0; i < 5 && !status.contains("\"COMPLETED\""); i++) {
+                HttpURLConnection poll = request("GET", new URL(base, location + "?wait=30").toString());
+                assertEquals(200, poll.getResponseCode());
+                status = read(poll);
+            }
+            assertTrue(status, status.contains("\"COMPLETED\""));
+        });
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            return reader.lines().collect(Collectors.joining("\n"));
+        }
+    }
+}
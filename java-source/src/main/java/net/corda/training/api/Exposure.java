@@ -0,0 +1,112 @@
+package net.corda.training.api;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.FieldInfo;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.training.schema.IOUSchemaV1;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/**
+ * The outstanding amount of the node's unconsumed IOUs with one counterparty in one currency, as returned by the
+ * /api/iou/exposure endpoint.
+ * - [counterparty] The X.500 name of the other party to the IOUs.
+ * - [currency] The IOUs' currency code.
+ * - [owedToUs] The total outstanding on IOUs we lent to the counterparty.
+ * - [owedByUs] The total outstanding on IOUs we borrowed from the counterparty.
+ * - [net] [owedToUs] less [owedByUs], which is negative if we owe the counterparty more than it owes us.
+ *
+ * Amounts are decimal numbers in the currency's major unit, e.g. 10.50.
+ */
+public class Exposure {
+    private final String counterparty;
+    private final String currency;
+    private final long owedToUs;
+    private final long owedByUs;
+
+    public Exposure(String counterparty, String currency, long owedToUs, long owedByUs) {
+        this.counterparty = counterparty;
+        this.currency = currency;
+        this.owedToUs = owedToUs;
+        this.owedByUs = owedByUs;
+    }
+
+    /**
+     * The aggregate query summing the outstanding amount of the unconsumed IOUs lent by [us], by borrower and currency.
+     */
+    public static QueryCriteria owedToUsCriteria(CordaX500Name us) {
+        return outstandingBy("lender", us, "borrower");
+    }
+
+    /**
+     * The aggregate query summing the outstanding amount of the unconsumed IOUs borrowed by [us], by lender and
+     * currency.
+     */
+    public static QueryCriteria owedByUsCriteria(CordaX500Name us) {
+        return outstandingBy("borrower", us, "lender");
+    }
+
+    private static QueryCriteria outstandingBy(String ourColumn, CordaX500Name us, String counterpartyColumn) {
+        FieldInfo ours = getField(ourColumn, IOUSchemaV1.PersistentIOU.class);
+        FieldInfo counterparty = getField(counterpartyColumn, IOUSchemaV1.PersistentIOU.class);
+        FieldInfo currency = getField("currency", IOUSchemaV1.PersistentIOU.class);
+        FieldInfo outstanding = getField("outstanding", IOUSchemaV1.PersistentIOU.class);
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(ours, us.toString()))
+                .and(new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(outstanding, Arrays.asList(counterparty, currency))));
+    }
+
+    /**
+     * Combines the results of the [owedToUsCriteria] and [owedByUsCriteria] aggregate queries into one [Exposure] per
+     * counterparty and currency, ordered by counterparty and then currency. [owedToUs] and [owedByUs] are flattened
+     * [sum, counterparty, currency] triples, as in [Vault.Page.getOtherResults].
+     */
+    public static List<Exposure> fromAggregates(List<?> owedToUs, List<?> owedByUs) {
+        Map<List<String>, long[]> totals = new TreeMap<>(Comparator
+                .<List<String>, String>comparing(key -> key.get(0))
+                .thenComparing(key -> key.get(1)));
+        addTotals(totals, owedToUs, 0);
+        addTotals(totals, owedByUs, 1);
+        List<Exposure> exposures = new ArrayList<>();
+        totals.forEach((key, sums) -> exposures.add(new Exposure(key.get(0), key.get(1), sums[0], sums[1])));
+        return exposures;
+    }
+
+    private static void addTotals(Map<List<String>, long[]> totals, List<?> aggregates, int column) {
+        if (aggregates.size() % 3 != 0) {
+            throw new IllegalArgumentException("Expected [sum, counterparty, currency] triples.");
+        }
+        for (int i = 0; i < aggregates.size(); i += 3) {
+            long sum = aggregates.get(i) == null ? 0 : ((Number) aggregates.get(i)).longValue();
+            List<String> key = Arrays.asList((String) aggregates.get(i + 1), (String) aggregates.get(i + 2));
+            totals.computeIfAbsent(key, k -> new long[2])[column] += sum;
+        }
+    }
+
+    public String getCounterparty() {
+        return counterparty;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public BigDecimal getOwedToUs() {
+        return inMajorUnits(owedToUs);
+    }
+
+    public BigDecimal getOwedByUs() {
+        return inMajorUnits(owedByUs);
+    }
+
+    public BigDecimal getNet() {
+        return inMajorUnits(owedToUs - owedByUs);
+    }
+
+    private BigDecimal inMajorUnits(long quantity) {
+        return BigDecimal.valueOf(quantity, Currency.getInstance(currency).getDefaultFractionDigits());
+    }
+}
@@ -0,0 +1,178 @@
+package net.corda.training.api;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+import net.corda.core.messaging.FlowHandle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Limits the number of flows the [IOUApi] has running on the node at once, so that a spike in requests waits in the
+ * web server rather than filling the node's state machine and checkpoint store.
+ *
+ * A flow is admitted while fewer than [maxInFlight] are running, and holds its place until its return value completes.
+ * Otherwise up to [maxQueued] requests wait, for at most [maxWait], for a running flow to finish. Requests beyond the
+ * queue, or that wait too long, are rejected with a [RejectedException] carrying a suggested retry delay.
+ *
+ * A queued request blocks its web server thread while it waits, and the node's web server has about 200, which the
+ * update streams and long-polled flow statuses also hold. The queue is therefore kept short: [fromSystemProperties]
+ * allows at most [MAX_QUEUED_THREADS] queued requests, so that a spike is rejected with 429 before it takes the
+ * threads every other request needs.
+ *
+ * The in-flight count, queue depth, rejections and flow durations are published over JMX in the [JMX_DOMAIN] domain
+ * and summarised by [snapshot]. The limits are read from system properties by [fromSystemProperties].
+ */
+public class FlowAdmissionControl {
+    public static final String JMX_DOMAIN = "net.corda.training.api";
+    // The most web server threads queued requests may hold.
+    public static final int MAX_QUEUED_THREADS = 64;
+
+    private static final Logger logger = LoggerFactory.getLogger(FlowAdmissionControl.class);
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Duration maxWait;
+
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final MetricRegistry registry = new MetricRegistry();
+    private final Meter rejections = registry.meter("flows.rejected");
+    private final Timer durations = registry.timer("flows.duration");
+
+    public FlowAdmissionControl(int maxInFlight, int maxQueued, Duration maxWait) {
+        if (maxInFlight < 1 || maxQueued < 0 || maxWait.isNegative()) {
+            throw new IllegalArgumentException("The in-flight limit must be positive, and the queue and wait non-negative.");
+        }
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxWait = maxWait;
+        // Fair, so that queued requests are admitted in the order they arrived.
+        this.permits = new Semaphore(maxInFlight, true);
+        registry.register("flows.inFlight", (Gauge<Integer>) this::inFlight);
+        registry.register("flows.queued", (Gauge<Integer>) queued::get);
+    }
+
+    /**
+     * Reads the limits from the "iou.api.maxInFlightFlows" (default 64), "iou.api.maxQueuedFlows" (default 32, at most
+     * [MAX_QUEUED_THREADS]) and "iou.api.maxQueueWaitSeconds" (default 10) system properties, and publishes the metrics
+     * over JMX.
+     */
+    public static FlowAdmissionControl fromSystemProperties() {
+        int maxQueued = Integer.getInteger("iou.api.maxQueuedFlows", 32);
+        if (maxQueued > MAX_QUEUED_THREADS) {
+            logger.warn("iou.api.maxQueuedFlows is {}, but queued requests hold web server threads, so at most {} are queued.",
+                    maxQueued, MAX_QUEUED_THREADS);
+            maxQueued = MAX_QUEUED_THREADS;
+        }
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(
+                Integer.getInteger("iou.api.maxInFlightFlows", 64),
+                maxQueued,
+                Duration.ofSeconds(Integer.getInteger("iou.api.maxQueueWaitSeconds", 10)));
+        JmxReporter.forRegistry(admissionControl.registry)
+                .inDomain(JMX_DOMAIN)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build()
+                .start();
+        return admissionControl;
+    }
+
+    /**
+     * Waits for a place, then starts a flow with [starter] and keeps the place until the flow's return value completes.
+     * Throws a [RejectedException], without calling [starter], if there is no place in the queue or none comes free in
+     * time.
+     */
+    public <H extends FlowHandle<?>> H start(Supplier<H> starter) throws RejectedException {
+        admit();
+        long started = System.nanoTime();
+        H handle;
+        try {
+            handle = starter.get();
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        handle.getReturnValue().then(future -> {
+            durations.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            permits.release();
+            return null;
+        });
+        return handle;
+    }
+
+    private void admit() throws RejectedException {
+        try {
+            // Unlike tryAcquire(), a zero timeout doesn't jump ahead of the requests already queued.
+            if (permits.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                throw reject();
+            }
+            try {
+                if (!permits.tryAcquire(maxWait.toNanos(), TimeUnit.NANOSECONDS)) {
+                    throw reject();
+                }
+            } finally {
+                queued.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw reject();
+        }
+    }
+
+    private RejectedException reject() {
+        rejections.mark();
+        // Suggest waiting about as long as it would take the flows ahead to drain, going by the mean flow duration.
+        double meanSeconds = durations.getSnapshot().getMean() / TimeUnit.SECONDS.toNanos(1);
+        double flowsAhead = inFlight() + queued.get();
+        long retryAfter = (long) Math.ceil(meanSeconds * flowsAhead / maxInFlight);
+        return new RejectedException(Math.max(1, retryAfter));
+    }
+
+    private int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    /**
+     * Returns the current in-flight count and queue depth, the number of requests rejected so far, and the limits.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("inFlight", (long) inFlight());
+        snapshot.put("queued", (long) queued.get());
+        snapshot.put("rejected", rejections.getCount());
+        snapshot.put("maxInFlight", (long) maxInFlight);
+        snapshot.put("maxQueued", (long) maxQueued);
+        return snapshot;
+    }
+
+    /**
+     * Thrown when a flow isn't admitted. [retryAfterSeconds] is a suggested delay before trying again.
+     */
+    public static class RejectedException extends Exception {
+        private final long retryAfterSeconds;
+
+        RejectedException(long retryAfterSeconds) {
+            super("Too many flows are running, retry in " + retryAfterSeconds + " seconds.");
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
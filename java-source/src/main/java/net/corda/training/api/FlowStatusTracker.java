@@ -0,0 +1,249 @@
+package net.corda.training.api;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowProgressHandle;
+import net.corda.core.transactions.SignedTransaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Keeps track of flows started asynchronously by the [IOUApi], so that clients can poll for their progress and result
+ * instead of holding a web server thread until the flow completes.
+ *
+ * Each flow is recorded against its [StateMachineRunId]. The latest [ProgressTracker] step is taken from the flow's
+ * progress feed and, for flows returning a [SignedTransaction], the transaction id from its return value. Only the most
+ * recent [MAX_TRACKED_FLOWS] flows are kept.
+ *
+ * Requests carrying an idempotency key start their flow through [startOnce], so that a request repeated while its
+ * flow is still running shares that flow instead of starting a second one.
+ */
+public class FlowStatusTracker {
+    private static final int MAX_TRACKED_FLOWS = 10_000;
+
+    private final Map<UUID, FlowStatus> flows = new LinkedHashMap<UUID, FlowStatus>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, FlowStatus> eldest) {
+            return size() > MAX_TRACKED_FLOWS;
+        }
+    };
+
+    // The flow started for each idempotency key while it runs, so that a request repeating the key shares the flow
+    // rather than starting another. Guarded by [flows].
+    private final Map<String, Claim> claims = new HashMap<>();
+
+    /**
+     * Starts tracking the flow behind [handle] and returns its [StateMachineRunId]. Progress is only reported for a
+     * [FlowProgressHandle].
+     */
+    public StateMachineRunId track(FlowHandle<?> handle) {
+        trackStatus(handle);
+        return handle.getId();
+    }
+
+    private FlowStatus trackStatus(FlowHandle<?> handle) {
+        StateMachineRunId id = handle.getId();
+        FlowStatus status = new FlowStatus(id.getUuid());
+        synchronized (flows) {
+            flows.put(id.getUuid(), status);
+        }
+        if (handle instanceof FlowProgressHandle) {
+            ((FlowProgressHandle<?>) handle).getProgress().subscribe(status::setProgress, error -> { });
+        }
+        handle.getReturnValue().then(future -> {
+            try {
+                Object result = future.get();
+                status.complete(result instanceof SignedTransaction ? ((SignedTransaction) result).getId().toString() : null);
+            } catch (Exception e) {
+                status.fail(e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            }
+            return null;
+        });
+        return status;
+    }
+
+    /**
+     * Starts a flow with [starter] for the request with [idempotencyKey], and tracks it, unless a flow started for the
+     * same key is still running, in which case that flow is returned instead. The check and the start are atomic, so
+     * concurrent requests with one key start one flow between them. [request] identifies what the request asks for;
+     * repeating a key with a different [request] throws an [IllegalArgumentException]. An exception thrown by [starter]
+     * is thrown to every request waiting on it, and the next request with the key tries again.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Started<T> startOnce(String idempotencyKey, Object request,
+                                    Callable<? extends FlowHandle<T>> starter) throws Exception {
+        Claim claim;
+        boolean ours;
+        synchronized (flows) {
+            claim = claims.get(idempotencyKey);
+            ours = claim == null;
+            if (ours) {
+                claim = new Claim(request);
+                claims.put(idempotencyKey, claim);
+            }
+        }
+        if (!ours) {
+            if (!claim.request.equals(request)) {
+                throw new IllegalArgumentException("The idempotency key " + idempotencyKey + " was already used for a different IOU.");
+            }
+            try {
+                return (Started<T>) claim.started.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        Started<T> started;
+        try {
+            FlowHandle<T> handle = starter.call();
+            started = new Started<>(trackStatus(handle), handle.getReturnValue());
+        } catch (Exception e) {
+            synchronized (flows) {
+                claims.remove(idempotencyKey);
+            }
+            claim.started.completeExceptionally(e);
+            throw e;
+        }
+        claim.started.complete(started);
+        // Later requests with the key go to the node, whose reservation of the key returns the issued transaction.
+        final Claim done = claim;
+        started.getStatus().whenDone(() -> {
+            synchronized (flows) {
+                claims.remove(idempotencyKey, done);
+            }
+        });
+        return started;
+    }
+
+    /**
+     * Returns the status of the flow with the given [id], or null if it isn't (or is no longer) being tracked.
+     */
+    public FlowStatus get(UUID id) {
+        synchronized (flows) {
+            return flows.get(id);
+        }
+    }
+
+    /**
+     * A flow started by [startOnce]: its [status] and [returnValue].
+     */
+    public static class Started<T> {
+        private final FlowStatus status;
+        private final CordaFuture<T> returnValue;
+
+        Started(FlowStatus status, CordaFuture<T> returnValue) {
+            this.status = status;
+            this.returnValue = returnValue;
+        }
+
+        public FlowStatus getStatus() {
+            return status;
+        }
+
+        public CordaFuture<T> getReturnValue() {
+            return returnValue;
+        }
+    }
+
+    // A flow being started, or running, for an idempotency key.
+    private static class Claim {
+        private final Object request;
+        private final CompletableFuture<Started<?>> started = new CompletableFuture<>();
+
+        Claim(Object request) {
+            this.request = request;
+        }
+    }
+
+    /**
+     * The status of a tracked flow, as returned by the /api/iou/flows/{id} endpoint.
+     * - [state] RUNNING, COMPLETED or FAILED.
+     * - [progress] The label of the flow's current [ProgressTracker] step.
+     * - [txId] The id of the committed transaction, once a flow returning a transaction has completed.
+     * - [error] The failure message, if the flow failed.
+     */
+    public static class FlowStatus {
+        public enum State { RUNNING, COMPLETED, FAILED }
+
+        private final UUID id;
+        private volatile State state = State.RUNNING;
+        private volatile String progress;
+        private volatile String txId;
+        private volatile String error;
+        // Run once, when the flow completes or fails. Null once they have been run.
+        private List<Runnable> whenDone = new ArrayList<>();
+
+        FlowStatus(UUID id) {
+            this.id = id;
+        }
+
+        public UUID getId() {
+            return id;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public String getProgress() {
+            return progress;
+        }
+
+        public String getTxId() {
+            return txId;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        void setProgress(String progress) {
+            this.progress = progress;
+        }
+
+        /**
+         * Runs [callback] once the flow has completed or failed, straight away if it already has.
+         */
+        public void whenDone(Runnable callback) {
+            synchronized (this) {
+                if (whenDone != null) {
+                    whenDone.add(callback);
+                    return;
+                }
+            }
+            callback.run();
+        }
+
+        void complete(String txId) {
+            this.txId = txId;
+            this.state = State.COMPLETED;
+            done();
+        }
+
+        void fail(String error) {
+            this.error = error;
+            this.state = State.FAILED;
+            done();
+        }
+
+        private void done() {
+            List<Runnable> callbacks;
+            synchronized (this) {
+                callbacks = whenDone;
+                whenDone = null;
+            }
+            if (callbacks != null) {
+                callbacks.forEach(Runnable::run);
+            }
+        }
+    }
+}
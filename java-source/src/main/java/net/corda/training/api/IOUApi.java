@@ -1,23 +1,45 @@
 package net.corda.training.api;
 
+import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.*;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StateMachineRunId;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowProgressHandle;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.schemas.StatePersistable;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.internal.InternalUtils;
 import net.corda.core.internal.FetchDataFlow.Result;
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.finance.flows.CashIssueFlow;
+import net.corda.finance.schemas.CashSchemaV1;
 
+import net.corda.training.flow.CashBalancesFlow;
+import net.corda.training.flow.FlowMetricsFlow;
 import net.corda.training.flow.IOUIssueFlow;
 import net.corda.training.flow.IOUSettleFlow;
 import net.corda.training.flow.IOUTransferFlow;
+import net.corda.training.flow.ReleaseIdempotencyKeyFlow;
 import net.corda.training.flow.SelfIssueCashFlow;
+import net.corda.training.service.FlowMetricsService;
+import net.corda.training.schema.IOUSchemaV1;
 import net.corda.training.state.IOUState;
 
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.InputStream;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.slf4j.Logger;
@@ -25,10 +47,12 @@ import org.slf4j.LoggerFactory;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-import static net.corda.finance.workflows.GetBalances.getCashBalances;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
 
 /**
  * This API is accessible from /api/iou. The endpoint paths specified below are relative to it.
@@ -38,12 +62,52 @@ import static net.corda.finance.workflows.GetBalances.getCashBalances;
 public class IOUApi {
     private final CordaRPCOps rpcOps;
     private final CordaX500Name me;
+    private final FlowStatusTracker flowStatusTracker = new FlowStatusTracker();
+    private final FlowAdmissionControl admissionControl = FlowAdmissionControl.fromSystemProperties();
+    private final IOUReadModel readModel;
+    private final IOUUpdateStream updateStream;
+
+    // The peer names and notaries are cached until the network map changes. Null means they need recomputing. All four
+    // fields are guarded by networkMapLock, so that a value computed from a stale network map is never cached over the
+    // invalidation that made it stale.
+    private final Object networkMapLock = new Object();
+    private List<String> peerNames;
+    private Set<Party> notaries;
+    private boolean networkMapFeedLive = true;
+    private long networkMapChanges = 0;
 
     private static final Logger logger = LoggerFactory.getLogger(IOUApi.class);
 
+    // The most issue flows a single batch request may keep running at once.
+    private static final int MAX_BATCH_CONCURRENCY = 128;
+    // The longest a request for a flow's status may wait for the flow to finish.
+    private static final int MAX_FLOW_STATUS_WAIT_SECONDS = 30;
+    // The most requests for a flow's status that may wait at once, each holding a web server thread.
+    private static final int MAX_FLOW_STATUS_WAITERS = Integer.getInteger("iou.api.maxFlowStatusWaiters", 32);
+    private final Semaphore flowStatusWaiters = new Semaphore(MAX_FLOW_STATUS_WAITERS);
+
+    // The results of the flows behind the endpoints dashboards poll, kept for a few seconds so that polling them
+    // doesn't start a flow on the node for every request. Requests arriving together share one flow.
+    private static final long FLOW_RESULT_CACHE_SECONDS = 5;
+    private final Supplier<Map<String, FlowMetricsService.StepLatency>> flowMetrics = Suppliers.memoizeWithExpiration(
+            () -> runFlow(FlowMetricsFlow.class), FLOW_RESULT_CACHE_SECONDS, TimeUnit.SECONDS);
+    private final Supplier<Map<Currency, Amount<Currency>>> nodeCashBalances = Suppliers.memoizeWithExpiration(
+            () -> runFlow(CashBalancesFlow.class), FLOW_RESULT_CACHE_SECONDS, TimeUnit.SECONDS);
+
     public IOUApi(CordaRPCOps rpcOps) {
         this.rpcOps = rpcOps;
         this.me = rpcOps.nodeInfo().getLegalIdentities().get(0).getName();
+        this.readModel = new IOUReadModel(rpcOps);
+        this.updateStream = new IOUUpdateStream(readModel);
+        this.readModel.addListener(updateStream);
+        this.readModel.start();
+        rpcOps.networkMapFeed().getUpdates().subscribe(change -> invalidateNetworkMapCache(), error -> {
+            logger.warn("Network map feed failed, no longer caching peers.", error);
+            synchronized (networkMapLock) {
+                networkMapFeedLive = false;
+            }
+            invalidateNetworkMapCache();
+        });
     }
 
     /** Helpers for filtering the network map cache. */
@@ -51,10 +115,8 @@ public class IOUApi {
         return BCStyle.INSTANCE.toString(name);
     }
 
-    private boolean isNotary(NodeInfo nodeInfo) {
-        return !rpcOps.notaryIdentities()
-                .stream().filter(el -> nodeInfo.isLegalIdentity(el))
-                .collect(Collectors.toList()).isEmpty();
+    private boolean isNotary(NodeInfo nodeInfo, Set<Party> notaries) {
+        return nodeInfo.getLegalIdentities().stream().anyMatch(notaries::contains);
     }
 
     private boolean isMe(NodeInfo nodeInfo){
@@ -65,6 +127,106 @@ public class IOUApi {
         return nodeInfo.getLegalIdentities().get(0).getName().getOrganisation().equals("Network Map Service");
     }
 
+    /** Helpers for building paged vault queries from the list endpoints' query parameters. */
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final Map<String, String> IOU_SORT_COLUMNS = ImmutableMap.<String, String>builder()
+            .put("lender", "lender")
+            .put("borrower", "borrower")
+            .put("currency", "currency")
+            .put("amount", "amount")
+            .put("paid", "paid")
+            .put("outstanding", "outstanding")
+            .build();
+    private static final Map<String, String> CASH_SORT_COLUMNS = ImmutableMap.of(
+            "currency", "currency",
+            "amount", "pennies");
+    private static final Map<String, Comparator<StateAndRef<IOUState>>> IOU_COMPARATORS = ImmutableMap.<String, Comparator<StateAndRef<IOUState>>>builder()
+            .put("lender", Comparator.comparing(stateAndRef -> stateAndRef.getState().getData().lender.getName().toString()))
+            .put("borrower", Comparator.comparing(stateAndRef -> stateAndRef.getState().getData().borrower.getName().toString()))
+            .put("currency", Comparator.comparing(stateAndRef -> stateAndRef.getState().getData().amount.getToken().getCurrencyCode()))
+            .put("amount", Comparator.comparingLong(stateAndRef -> stateAndRef.getState().getData().amount.getQuantity()))
+            .put("paid", Comparator.comparingLong(stateAndRef -> stateAndRef.getState().getData().paid.getQuantity()))
+            .put("outstanding", Comparator.comparingLong(stateAndRef ->
+                    stateAndRef.getState().getData().amount.getQuantity() - stateAndRef.getState().getData().paid.getQuantity()))
+            .build();
+    private static final Map<String, Comparator<StateAndRef<Cash.State>>> CASH_COMPARATORS = ImmutableMap.<String, Comparator<StateAndRef<Cash.State>>>builder()
+            .put("currency", Comparator.comparing(stateAndRef -> stateAndRef.getState().getData().getAmount().getToken().getProduct().getCurrencyCode()))
+            .put("amount", Comparator.comparingLong(stateAndRef -> stateAndRef.getState().getData().getAmount().getQuantity()))
+            .build();
+
+    private static Vault.StateStatus parseStatus(String status) {
+        switch (status.toLowerCase()) {
+            case "unconsumed": return Vault.StateStatus.UNCONSUMED;
+            case "consumed": return Vault.StateStatus.CONSUMED;
+            case "all": return Vault.StateStatus.ALL;
+            default: throw new IllegalArgumentException("Unknown status " + status + ". Use unconsumed, consumed or all.");
+        }
+    }
+
+    private static PageSpecification parsePaging(int page, int pageSize) {
+        if (page < 1) {
+            throw new IllegalArgumentException("page must be at least 1.");
+        } else if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE + ".");
+        }
+        return new PageSpecification(page, pageSize);
+    }
+
+    /**
+     * Parses a [sort] parameter: a vault attribute (recordedTime or consumedTime) or a key of [columns] mapping to a
+     * field of [entity], optionally prefixed with "-" for descending order.
+     */
+    private static Sort parseSort(String sort, Class<? extends StatePersistable> entity, Map<String, String> columns) {
+        boolean descending = sort.startsWith("-");
+        String name = descending ? sort.substring(1) : sort;
+        Sort.Direction direction = descending ? Sort.Direction.DESC : Sort.Direction.ASC;
+
+        SortAttribute attribute;
+        if (name.equals("recordedTime")) {
+            attribute = new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME);
+        } else if (name.equals("consumedTime")) {
+            attribute = new SortAttribute.Standard(Sort.VaultStateAttribute.CONSUMED_TIME);
+        } else if (columns.containsKey(name)) {
+            attribute = new SortAttribute.Custom(entity, columns.get(name));
+        } else {
+            throw new IllegalArgumentException("Cannot sort by " + name + ".");
+        }
+        return new Sort(ImmutableSet.of(new Sort.SortColumn(attribute, direction)));
+    }
+
+    /**
+     * Whether a list request can be answered from the [IOUReadModel], which only holds unconsumed states in the order
+     * they were recorded.
+     */
+    private boolean servableFromReadModel(String status, String sort) {
+        return parseStatus(status) == Vault.StateStatus.UNCONSUMED && !sort.endsWith("consumedTime") && readModel.isLive();
+    }
+
+    /**
+     * Sorts [states], which are in recorded order, as the [sort] parameter asks and returns the requested page.
+     */
+    private static <T extends ContractState> StatePage<T> pageInMemory(List<StateAndRef<T>> states, String sort, int page, int pageSize,
+                                                                       Map<String, Comparator<StateAndRef<T>>> comparators) {
+        boolean descending = sort.startsWith("-");
+        String name = descending ? sort.substring(1) : sort;
+        List<StateAndRef<T>> sorted = new ArrayList<>(states);
+        if (name.equals("recordedTime")) {
+            if (descending) Collections.reverse(sorted);
+        } else if (comparators.containsKey(name)) {
+            sorted.sort(descending ? comparators.get(name).reversed() : comparators.get(name));
+        } else {
+            throw new IllegalArgumentException("Cannot sort by " + name + ".");
+        }
+        int from = (int) Math.min((long) (page - 1) * pageSize, sorted.size());
+        int to = Math.min(from + pageSize, sorted.size());
+        return new StatePage<>(new ArrayList<>(sorted.subList(from, to)), sorted.size(), page, pageSize);
+    }
+
+    private static QueryCriteria iouCriteria(String column, String value, String status) {
+        FieldInfo field = getField(column, IOUSchemaV1.PersistentIOU.class);
+        return new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(field, value), parseStatus(status));
+    }
+
     /**
      * Returns the node's name.
      */
@@ -86,78 +248,354 @@ public class IOUApi {
     @Produces(MediaType.APPLICATION_JSON)
     public HashMap<String, List<String>> getPeers() {
         HashMap<String, List<String>> myMap = new HashMap<>();
+        myMap.put("peers", peerNames());
+        return myMap;
+    }
 
+    /**
+     * Returns the names of the network's notaries, which can be passed to [selfIssueCash] to choose where cash is held.
+     */
+    @GET
+    @Path("notaries")
+    @Produces(MediaType.APPLICATION_JSON)
+    public HashMap<String, List<String>> getNotaries() {
+        HashMap<String, List<String>> myMap = new HashMap<>();
+        myMap.put("notaries", notaries().stream()
+                .map(notary -> notary.getName().toString())
+                .sorted()
+                .collect(Collectors.toList()));
+        return myMap;
+    }
+
+    /**
+     * Returns the names of the nodes that are not notaries, ourself, or the network map, from the cache if the network
+     * map hasn't changed since they were last computed.
+     */
+    private List<String> peerNames() {
+        long changes;
+        synchronized (networkMapLock) {
+            if (peerNames != null) {
+                return peerNames;
+            }
+            changes = networkMapChanges;
+        }
+        Set<Party> notaries = notaries();
         // Find all nodes that are not notaries, ourself, or the network map.
         Stream<NodeInfo> filteredNodes = rpcOps.networkMapSnapshot().stream()
-                .filter(el -> !isNotary(el) && !isMe(el) && !isNetworkMap(el));
+                .filter(el -> !isNotary(el, notaries) && !isMe(el) && !isNetworkMap(el));
         // Get their names as strings
-        List<String> nodeNames = filteredNodes.map(el -> el.getLegalIdentities().get(0).getName().toString())
-                .collect(Collectors.toList());
+        List<String> nodeNames = Collections.unmodifiableList(filteredNodes
+                .map(el -> el.getLegalIdentities().get(0).getName().toString())
+                .collect(Collectors.toList()));
+        // Only cache the result if the network map didn't change while we were computing it.
+        synchronized (networkMapLock) {
+            if (networkMapFeedLive && networkMapChanges == changes) {
+                peerNames = nodeNames;
+            }
+        }
+        return nodeNames;
+    }
 
-        myMap.put("peers", nodeNames);
-        return myMap;
+    private Set<Party> notaries() {
+        long changes;
+        synchronized (networkMapLock) {
+            if (notaries != null) {
+                return notaries;
+            }
+            changes = networkMapChanges;
+        }
+        Set<Party> current = ImmutableSet.copyOf(rpcOps.notaryIdentities());
+        synchronized (networkMapLock) {
+            if (networkMapFeedLive && networkMapChanges == changes) {
+                notaries = current;
+            }
+        }
+        return current;
+    }
+
+    private void invalidateNetworkMapCache() {
+        synchronized (networkMapLock) {
+            networkMapChanges++;
+            peerNames = null;
+            notaries = null;
+        }
     }
 
     /**
      * Task 1
-     * Displays all IOU states that exist in the node's vault.
-     * TODO: Return a list of IOUStates on ledger
-     * Hint - Use [rpcOps] to query the vault all unconsumed [IOUState]s
+     * Displays a page of the IOU states that exist in the node's vault.
+     * Example request:
+     * curl 'http://localhost:10009/api/iou/ious?page=2&pageSize=50&sort=-outstanding&currency=GBP&status=unconsumed'
+     *
+     * - [page] and [pageSize] select the page. Pages are numbered from 1, and [StatePage.getNextPage] gives the next one.
+     * - [sort] is one of recordedTime, consumedTime, lender, borrower, currency, amount, paid or outstanding, prefixed
+     *   with "-" for descending order. Defaults to recordedTime.
+     * - [lender], [borrower] and [currency] filter on the [IOUSchemaV1] columns.
+     * - [status] is one of unconsumed (the default), consumed or all.
+     *
+     * Unconsumed IOUs are served from the [IOUReadModel] while it is live; other requests go to the vault.
      */
     @GET
     @Path("ious")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<IOUState>> getIOUs() {
-        // Filter by state type: IOU.
-        return rpcOps.vaultQuery(IOUState.class).getStates();
+    public Response getIOUs(@QueryParam(value = "page") @DefaultValue("1") int page,
+                            @QueryParam(value = "pageSize") @DefaultValue("50") int pageSize,
+                            @QueryParam(value = "sort") @DefaultValue("recordedTime") String sort,
+                            @QueryParam(value = "lender") String lender,
+                            @QueryParam(value = "borrower") String borrower,
+                            @QueryParam(value = "currency") String currency,
+                            @QueryParam(value = "status") @DefaultValue("unconsumed") String status) {
+        try {
+            if (servableFromReadModel(status, sort)) {
+                parsePaging(page, pageSize);
+                List<StateAndRef<IOUState>> ious = readModel.ious(
+                        lender == null ? null : CordaX500Name.parse(lender),
+                        borrower == null ? null : CordaX500Name.parse(borrower),
+                        currency == null ? null : Currency.getInstance(currency));
+                return Response.ok(pageInMemory(ious, sort, page, pageSize, IOU_COMPARATORS)).build();
+            }
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(parseStatus(status));
+            if (lender != null) {
+                criteria = criteria.and(iouCriteria("lender", CordaX500Name.parse(lender).toString(), status));
+            }
+            if (borrower != null) {
+                criteria = criteria.and(iouCriteria("borrower", CordaX500Name.parse(borrower).toString(), status));
+            }
+            if (currency != null) {
+                criteria = criteria.and(iouCriteria("currency", Currency.getInstance(currency).getCurrencyCode(), status));
+            }
+            PageSpecification paging = parsePaging(page, pageSize);
+            Vault.Page<IOUState> result = rpcOps.vaultQueryBy(criteria, paging, parseSort(sort, IOUSchemaV1.PersistentIOU.class, IOU_SORT_COLUMNS), IOUState.class);
+            return Response.ok(new StatePage<>(result.getStates(), result.getTotalStatesAvailable(), page, pageSize)).build();
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
-     * Displays all cash states that exist in the node's vault.
+     * Displays a page of the cash states that exist in the node's vault.
+     * Takes the same [page], [pageSize], [currency] and [status] parameters as [getIOUs]. [sort] is one of recordedTime,
+     * consumedTime, currency or amount, prefixed with "-" for descending order. Like [getIOUs], unconsumed cash is
+     * served from the [IOUReadModel] while it is live.
      */
     @GET
     @Path("cash")
     @Produces(MediaType.APPLICATION_JSON)
-    public List<StateAndRef<Cash.State>> getCash() {
-        // Filter by state type: Cash.
-        return rpcOps.vaultQuery(Cash.State.class).getStates();
+    public Response getCash(@QueryParam(value = "page") @DefaultValue("1") int page,
+                            @QueryParam(value = "pageSize") @DefaultValue("50") int pageSize,
+                            @QueryParam(value = "sort") @DefaultValue("recordedTime") String sort,
+                            @QueryParam(value = "currency") String currency,
+                            @QueryParam(value = "status") @DefaultValue("unconsumed") String status) {
+        try {
+            if (servableFromReadModel(status, sort)) {
+                parsePaging(page, pageSize);
+                List<StateAndRef<Cash.State>> cash = readModel.cash(currency == null ? null : Currency.getInstance(currency));
+                return Response.ok(pageInMemory(cash, sort, page, pageSize, CASH_COMPARATORS)).build();
+            }
+            QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(parseStatus(status));
+            if (currency != null) {
+                FieldInfo currencyField = getField("currency", CashSchemaV1.PersistentCashState.class);
+                criteria = criteria.and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.equal(currencyField, Currency.getInstance(currency).getCurrencyCode()), parseStatus(status)));
+            }
+            PageSpecification paging = parsePaging(page, pageSize);
+            Vault.Page<Cash.State> result = rpcOps.vaultQueryBy(criteria, paging, parseSort(sort, CashSchemaV1.PersistentCashState.class, CASH_SORT_COLUMNS), Cash.State.class);
+            return Response.ok(new StatePage<>(result.getStates(), result.getTotalStatesAvailable(), page, pageSize)).build();
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
-     * Displays all cash states that exist in the node's vault.
+     * Displays the node's cash balance in each currency, from the [IOUReadModel] while it is live and otherwise from
+     * the node's [CashBalanceService], read at most once every [FLOW_RESULT_CACHE_SECONDS].
      */
     @GET
     @Path("cash-balances")
     @Produces(MediaType.APPLICATION_JSON)
     // Display cash balances.
     public Map<Currency,Amount<Currency>> cashBalances(){
-        return getCashBalances(rpcOps);
+        if (readModel.isLive()) {
+            return readModel.cashBalances();
+        }
+        return nodeCashBalances.get();
+    }
+
+    /**
+     * Streams the changes to the node's unconsumed IOUs and cash balances as Server-Sent Events, starting with a
+     * snapshot of both. See [IOUUpdateStream] for the events.
+     * Example request:
+     * curl -N 'http://localhost:10007/api/iou/updates'
+     *
+     * A client reconnecting passes the id of the last event it received, in the Last-Event-ID header as EventSource
+     * does or in the [since] parameter, and is sent the events it missed. Returns 503 Service Unavailable while the
+     * [IOUReadModel] isn't live, or while the most streams the web server will hold open are already open, in which
+     * case clients should poll [getIOUs] and [cashBalances] instead.
+     */
+    @GET
+    @Path("updates")
+    @Produces("text/event-stream")
+    public Response updates(@HeaderParam(value = "Last-Event-ID") String lastEventId,
+                            @QueryParam(value = "since") String since) {
+        if (!readModel.isLive()) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity("The vault feed is down, poll the list endpoints instead.")
+                    .build();
+        }
+        StreamingOutput stream = updateStream.connect(lastEventId != null ? lastEventId : since);
+        if (stream == null) {
+            return Response
+                    .status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", 60)
+                    .entity("Too many update streams are open, poll the list endpoints instead.")
+                    .build();
+        }
+        return Response
+                .ok(stream)
+                .header("Cache-Control", "no-cache")
+                .build();
+    }
+
+    /**
+     * Returns the total outstanding (amount less paid) on the node's unconsumed IOUs, owed to us and by us, for each
+     * counterparty and currency. See [Exposure] for the fields.
+     * Example request:
+     * curl 'http://localhost:10007/api/iou/exposure'
+     *
+     * The sums are computed by the node's database with two vault aggregate queries over the [IOUSchemaV1] table, one
+     * for the IOUs we lent and one for those we borrowed, so no IOUs are loaded to answer the request.
+     */
+    @GET
+    @Path("exposure")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Exposure> exposure() {
+        // The page size bounds the number of groups, not IOUs, so ask for all of them.
+        PageSpecification allGroups = new PageSpecification(DEFAULT_PAGE_NUM, QueryCriteriaUtils.MAX_PAGE_SIZE);
+        Sort unsorted = new Sort(ImmutableSet.of());
+
+        return Exposure.fromAggregates(
+                rpcOps.vaultQueryBy(Exposure.owedToUsCriteria(me), allGroups, unsorted, IOUState.class).getOtherResults(),
+                rpcOps.vaultQueryBy(Exposure.owedByUsCriteria(me), allGroups, unsorted, IOUState.class).getOtherResults());
+    }
+
+    /**
+     * Returns the count, mean, p50, p95, p99 and max latency in milliseconds of each step of the IOU flows and their
+     * responders run on this node, keyed by "[flow].[step]". The same timers are published over JMX, which is the
+     * place to scrape them from; this endpoint reads them from the node at most once every [FLOW_RESULT_CACHE_SECONDS].
+     */
+    @GET
+    @Path("metrics")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, FlowMetricsService.StepLatency> metrics() {
+        return flowMetrics.get();
+    }
+
+    /**
+     * Runs a flow which takes no arguments on the node and waits for its result.
+     */
+    private <T> T runFlow(Class<? extends FlowLogic<T>> flowClass) {
+        try {
+            return rpcOps.startFlowDynamic(flowClass).getReturnValue().get();
+        } catch (Exception e) {
+            throw new WebApplicationException(e.getMessage(), Response.Status.INTERNAL_SERVER_ERROR);
+        }
+    }
+
+    /**
+     * Returns the number of flows started through this API that are running and queued, the number of requests turned
+     * away because the queue was full, and the limits, as set by [FlowAdmissionControl.fromSystemProperties]. The
+     * same metrics are published over JMX.
+     */
+    @GET
+    @Path("admission")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Long> admission() {
+        return admissionControl.snapshot();
+    }
+
+    /**
+     * The response to a flow-starting request that [FlowAdmissionControl] turned away: 429 Too Many Requests, with a
+     * Retry-After header.
+     */
+    private static Response tooManyRequests(FlowAdmissionControl.RejectedException e) {
+        return Response
+                .status(429)
+                .header("Retry-After", e.getRetryAfterSeconds())
+                .entity(e.getMessage())
+                .build();
     }
 
     /**
      * Initiates a flow to agree an IOU between two parties.
      * Example request:
      * curl -X PUT 'http://localhost:10007/api/iou/issue-iou?amount=99&currency=GBP&party=O=ParticipantC,L=New%20York,C=US
+     *
+     * With async=true the flow is started and 202 Accepted is returned straight away with the flow id. Its progress
+     * and the committed transaction id can then be polled from [flowStatus]. With asyncFinality=true the flow itself
+     * completes once the transaction is recorded locally, and the counterparty receives it in the background.
+     *
+     * An Idempotency-Key header makes the request safe to retry: a retry returns the transaction that already issued
+     * the IOU rather than issuing another. A retry arriving while the first request's flow is still running shares that
+     * flow, waiting for its transaction or, with async=true, returning its status. The node reserves the key before
+     * issuing, so requests sent to different web servers for the same node can't issue twice either.
+     *
+     * Returns 429 Too Many Requests, with a Retry-After header, when the [FlowAdmissionControl] queue is full.
      */
     @PUT
     @Path("issue-iou")
     public Response issueIOU(@QueryParam(value = "amount") int amount,
                              @QueryParam(value = "currency") String currency,
-                             @QueryParam(value = "party") String party) throws IllegalArgumentException {
+                             @QueryParam(value = "party") String party,
+                             @QueryParam(value = "async") @DefaultValue("false") boolean async,
+                             @QueryParam(value = "asyncFinality") @DefaultValue("false") boolean asyncFinality,
+                             @HeaderParam(value = "Idempotency-Key") String idempotencyKey) throws IllegalArgumentException {
         // Get party objects for myself and the counterparty.
         Party me = rpcOps.nodeInfo().getLegalIdentities().get(0);
         Party lender = Optional.ofNullable(rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(party))).orElseThrow(() -> new IllegalArgumentException("Unknown party name."));
         // Create a new IOU state using the parameters given.
         try {
             IOUState state = new IOUState(new Amount<>((long) amount * 100, Currency.getInstance(currency)), lender, me);
-            // Start the IOUIssueFlow. We block and waits for the flow to return.
-            SignedTransaction result = rpcOps.startTrackedFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state).getReturnValue().get();
+            CordaFuture<SignedTransaction> returnValue;
+            FlowStatusTracker.FlowStatus status;
+            if (idempotencyKey == null) {
+                FlowProgressHandle<SignedTransaction> handle = admissionControl.start(() ->
+                        rpcOps.startTrackedFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state, asyncFinality));
+                returnValue = handle.getReturnValue();
+                status = async ? flowStatusTracker.get(flowStatusTracker.track(handle).getUuid()) : null;
+            } else {
+                // A request repeating the key while its flow is running shares that flow, whether or not it waits.
+                FlowStatusTracker.Started<SignedTransaction> started = flowStatusTracker.startOnce(idempotencyKey, issueRequest(state),
+                        () -> admissionControl.start(() -> releaseKeyOnFailure(rpcOps, idempotencyKey,
+                                rpcOps.startTrackedFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state, asyncFinality, idempotencyKey))));
+                returnValue = started.getReturnValue();
+                status = started.getStatus();
+            }
+            if (async) {
+                // Return the flow's status without waiting for it.
+                return Response
+                        .status(Response.Status.ACCEPTED)
+                        .header("Location", "/api/iou/flows/" + status.getId())
+                        .entity(status)
+                        .build();
+            }
+            // Otherwise we block and wait for the flow to return.
+            SignedTransaction result = returnValue.get();
             // Return the response.
             return Response
                     .status(Response.Status.CREATED)
                     .entity(String.format("Transaction id %h committed to ledger.\n%h", result.getId(), result.getTx().getOutputs().get(0)))
                     .build();
-            // For the purposes of this demo app, we do not differentiate by exception type.
+            // For the purposes of this demo app, we do not differentiate by exception type, other than turning away
+            // requests while too many flows are running.
+        } catch (FlowAdmissionControl.RejectedException e) {
+            return tooManyRequests(e);
         } catch (Exception e) {
             return Response
                     .status(Response.Status.BAD_REQUEST)
@@ -167,42 +605,207 @@ public class IOUApi {
     }
 
     /**
-     * Transfers an IOU specified by [linearId] to a new party.
+     * Issues a batch of IOUs borrowed by this node, keeping up to [concurrency] issue flows running at once, and
+     * streams back a result for each as it completes. See [IOUBatchIssue] for the request and response formats.
+     * Example request:
+     * curl -X POST -H 'Content-Type: application/x-ndjson' --data-binary @ious.ndjson 'http://localhost:10007/api/iou/issue-batch?concurrency=32'
+     */
+    @POST
+    @Path("issue-batch")
+    @Consumes({MediaType.APPLICATION_JSON, "application/x-ndjson"})
+    @Produces("application/x-ndjson")
+    public Response issueBatch(InputStream body,
+                               @QueryParam(value = "concurrency") @DefaultValue("16") int concurrency,
+                               @QueryParam(value = "asyncFinality") @DefaultValue("false") boolean asyncFinality) {
+        if (concurrency < 1 || concurrency > MAX_BATCH_CONCURRENCY) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity("concurrency must be between 1 and " + MAX_BATCH_CONCURRENCY + ".")
+                    .build();
+        }
+        return Response.ok(new IOUBatchIssue(rpcOps, admissionControl, flowStatusTracker, body, concurrency, asyncFinality)).build();
+    }
+
+    /**
+     * Reports the progress of a flow started asynchronously, and the transaction id once it has completed.
+     * Example request:
+     * curl 'http://localhost:10007/api/iou/flows/5a5e5dd0-6d4c-4bd4-8bf7-2f8d3c0b0d2e?wait=30'
+     *
+     * With [wait] set, a request for a flow that is still running is held for up to that many seconds (at most
+     * [MAX_FLOW_STATUS_WAIT_SECONDS]) and answered as soon as the flow completes or fails, so clients can long-poll
+     * rather than poll. The node's web server doesn't support asynchronous requests, so a waiting request holds a web
+     * server thread: at most [MAX_FLOW_STATUS_WAITERS] wait at once, and any more are answered straight away with a
+     * Retry-After header.
      */
     @GET
+    @Path("flows/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response flowStatus(@PathParam("id") String id,
+                               @QueryParam(value = "wait") @DefaultValue("0") int wait) {
+        FlowStatusTracker.FlowStatus status;
+        try {
+            status = flowStatusTracker.get(UUID.fromString(id));
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Invalid flow id.").build();
+        }
+        if (status == null) {
+            return Response.status(Response.Status.NOT_FOUND).entity("Unknown flow id.").build();
+        }
+        if (wait > 0 && status.getState() == FlowStatusTracker.FlowStatus.State.RUNNING) {
+            if (!flowStatusWaiters.tryAcquire()) {
+                return Response.ok(status).header("Retry-After", 1).build();
+            }
+            try {
+                CountDownLatch done = new CountDownLatch(1);
+                status.whenDone(done::countDown);
+                done.await(Math.min(wait, MAX_FLOW_STATUS_WAIT_SECONDS), TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                flowStatusWaiters.release();
+            }
+        }
+        return Response.ok(status).build();
+    }
+
+    /**
+     * Transfers an IOU specified by [linearId] to a new party. Only the IOU's lender can transfer it.
+     * Example request:
+     * curl -X POST 'http://localhost:10007/api/iou/transfer-iou?id=705dc5c5-44da-4006-a55b-e29f78955089&party=O=ParticipantC,L=New%20York,C=US'
+     *
+     * Like the requests below, this starts the flow and returns 202 Accepted with its status straight away. The
+     * Location header points at [flowStatus], which reports the committed transaction once the flow completes.
+     */
+    @POST
     @Path("transfer-iou")
+    @Produces(MediaType.APPLICATION_JSON)
     public Response transferIOU(@QueryParam(value = "id") String id,
                                 @QueryParam(value = "party") String party) {
-        return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
-                .build();
+        try {
+            requireParameters(id, party);
+            UniqueIdentifier linearId = UniqueIdentifier.fromString(id);
+            Party newLender = Optional.ofNullable(rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(party))).orElseThrow(() -> new IllegalArgumentException("Unknown party name."));
+            return startInBackground(() -> rpcOps.startTrackedFlowDynamic(IOUTransferFlow.InitiatorFlow.class, linearId, newLender));
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
      * Settles an IOU. Requires cash in the right currency to be able to settle.
+     * Example request:
+     * curl -X POST 'http://localhost:10007/api/iou/settle-iou?id=705dc5c5-44da-4006-a55b-e29f78955089&amount=5&currency=GBP'
      */
-    @GET
+    @POST
     @Path("settle-iou")
+    @Produces(MediaType.APPLICATION_JSON)
     public Response settleIOU(@QueryParam(value = "id") String id,
                               @QueryParam(value = "amount") int amount,
                               @QueryParam(value = "currency") String currency) {
-        return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
-                .build();
+        try {
+            requireParameters(id, currency);
+            UniqueIdentifier linearId = UniqueIdentifier.fromString(id);
+            Amount<Currency> settleAmount = new Amount<>((long) amount * 100, Currency.getInstance(currency));
+            return startInBackground(() -> rpcOps.startTrackedFlowDynamic(IOUSettleFlow.InitiatorFlow.class, linearId, settleAmount));
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
     }
 
     /**
      * Helper end-point to issue some cash to ourselves.
+     * Example request:
+     * curl -X POST 'http://localhost:10007/api/iou/self-issue-cash?amount=100&currency=GBP&notary=O=Notary,L=London,C=GB'
+     *
+     * [notary] is optional and names the notary the cash is held with, as listed by [getNotaries]. Without it the
+     * [NotarySelectionService] chooses one. Settling an IOU moves cash held with other notaries to the IOU's notary.
      */
-    @GET
+    @POST
     @Path("self-issue-cash")
+    @Produces(MediaType.APPLICATION_JSON)
     public Response selfIssueCash(@QueryParam(value = "amount") int amount,
-                                  @QueryParam(value = "currency") String currency) {
-        return Response
-                .status(Response.Status.NOT_IMPLEMENTED)
-                .entity("Not implemented")
-                .build();
+                                  @QueryParam(value = "currency") String currency,
+                                  @QueryParam(value = "notary") String notaryName) {
+        try {
+            requireParameters(currency);
+            Amount<Currency> issueAmount = new Amount<>((long) amount * 100, Currency.getInstance(currency));
+            if (notaryName == null) {
+                return startInBackground(() -> rpcOps.startTrackedFlowDynamic(SelfIssueCashFlow.class, issueAmount));
+            }
+            Party notary = notaries().stream()
+                    .filter(candidate -> candidate.getName().equals(CordaX500Name.parse(notaryName)))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("Unknown notary name."));
+            return startInBackground(() -> rpcOps.startTrackedFlowDynamic(SelfIssueCashFlow.class, issueAmount, notary));
+        } catch (IllegalArgumentException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+    }
+
+    /**
+     * Starts a flow with [starter] through the [FlowAdmissionControl] and hands it to the [FlowStatusTracker], returning
+     * 202 Accepted with its status, 429 Too Many Requests if it wasn't admitted, or 400 Bad Request if the node
+     * refused to start it, as [issueIOU] does.
+     */
+    private Response startInBackground(Supplier<FlowProgressHandle<?>> starter) {
+        try {
+            StateMachineRunId flowId = flowStatusTracker.track(admissionControl.start(starter));
+            return Response
+                    .status(Response.Status.ACCEPTED)
+                    .header("Location", "/api/iou/flows/" + flowId.getUuid())
+                    .entity(flowStatusTracker.get(flowId.getUuid()))
+                    .build();
+        } catch (FlowAdmissionControl.RejectedException e) {
+            return tooManyRequests(e);
+        } catch (RuntimeException e) {
+            return Response
+                    .status(Response.Status.BAD_REQUEST)
+                    .entity(e.getMessage())
+                    .build();
+        }
+    }
+
+    /**
+     * What an issue request with an idempotency key asks for, so that [FlowStatusTracker.startOnce] can tell a retry
+     * from a different IOU reusing the key.
+     */
+    static List<Object> issueRequest(IOUState state) {
+        return Arrays.asList(state.amount, state.lender, state.borrower);
+    }
+
+    /**
+     * Frees [idempotencyKey] on the node with the [ReleaseIdempotencyKeyFlow] if the issue flow behind [handle] fails,
+     * so that the request can be retried straight away. A key whose flow never finishes is freed when its lease runs
+     * out instead, as is one we fail to release here.
+     */
+    static <H extends FlowHandle<SignedTransaction>> H releaseKeyOnFailure(CordaRPCOps rpcOps, String idempotencyKey, H handle) {
+        handle.getReturnValue().then(future -> {
+            try {
+                future.get();
+            } catch (Exception e) {
+                try {
+                    rpcOps.startFlowDynamic(ReleaseIdempotencyKeyFlow.class, idempotencyKey, handle.getId().getUuid());
+                } catch (RuntimeException releaseFailure) {
+                    logger.warn("Couldn't release the idempotency key " + idempotencyKey + ".", releaseFailure);
+                }
+            }
+            return null;
+        });
+        return handle;
+    }
+
+    private static void requireParameters(String... values) {
+        if (Arrays.stream(values).anyMatch(Objects::isNull)) {
+            throw new IllegalArgumentException("Missing a required query parameter.");
+        }
     }
-}
\ No newline at end of file
+}
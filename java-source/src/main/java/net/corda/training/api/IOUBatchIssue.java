@@ -0,0 +1,221 @@
+package net.corda.training.api;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.state.IOUState;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Issues the IOUs read from a request body, keeping up to [concurrency] [IOUIssueFlow.InitiatorFlow]s running at once,
+ * and writes a result line for each IOU as its flow completes. Used by the /api/iou/issue-batch endpoint.
+ *
+ * The body is either a JSON array of IOUs or a stream of newline-delimited JSON (NDJSON) IOUs, and is read as the
+ * flows complete rather than all at once, so a batch of any size takes a bounded amount of memory. Each IOU is an
+ * object like the issue-iou query parameters: {"amount": 99.5, "currency": "GBP", "party": "<lender's X.500 name>"},
+ * with an optional "idempotencyKey" that makes the item safe to resend. Items with a key are started through the
+ * [FlowStatusTracker], so an item repeating a key already running, in this batch or another request, shares its flow.
+ *
+ * The response is NDJSON, with one line per IOU in the order the flows complete, identified by its position in the
+ * body:
+ * - {"index": 0, "status": "committed", "txId": "...", "linearId": "..."}
+ * - {"index": 1, "status": "failed", "error": "..."}
+ * - {"index": 2, "status": "rejected", "retryAfter": 5}, when the [FlowAdmissionControl] queue was full.
+ * followed by {"committed": n, "failed": m, "rejected": r}. Rejected IOUs can be sent again in a later batch. A body
+ * that isn't valid JSON ends the batch with {"error": "..."} in place of the totals, once the flows already started
+ * have been reported.
+ */
+public class IOUBatchIssue implements StreamingOutput {
+    private final CordaRPCOps rpcOps;
+    private final FlowAdmissionControl admissionControl;
+    private final FlowStatusTracker flowStatusTracker;
+    private final InputStream body;
+    private final int concurrency;
+    private final boolean asyncFinality;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    // Filled from the RPC client's threads as flows complete, and written out from the request's thread.
+    private final BlockingQueue<ObjectNode> completed = new LinkedBlockingQueue<>();
+    private final Map<String, Party> parties = new HashMap<>();
+
+    private int inFlight = 0;
+    private int committed = 0;
+    private int failed = 0;
+    private int rejected = 0;
+
+    public IOUBatchIssue(CordaRPCOps rpcOps, FlowAdmissionControl admissionControl, FlowStatusTracker flowStatusTracker,
+                         InputStream body, int concurrency, boolean asyncFinality) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be at least 1.");
+        }
+        this.rpcOps = rpcOps;
+        this.admissionControl = admissionControl;
+        this.flowStatusTracker = flowStatusTracker;
+        this.body = body;
+        this.concurrency = concurrency;
+        this.asyncFinality = asyncFinality;
+    }
+
+    @Override
+    public void write(OutputStream output) throws IOException {
+        Party me = rpcOps.nodeInfo().getLegalIdentities().get(0);
+        String error = null;
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            JsonToken token = parser.nextToken();
+            boolean array = token == JsonToken.START_ARRAY;
+            if (array) {
+                token = parser.nextToken();
+            }
+            for (int index = 0; token != null && !(array && token == JsonToken.END_ARRAY); index++) {
+                JsonNode item = mapper.readTree(parser);
+                // Wait for a flow to complete before starting another once the window is full, and report any
+                // results that are already in.
+                while (inFlight >= concurrency) {
+                    report(output, take());
+                }
+                ObjectNode result;
+                while ((result = completed.poll()) != null) {
+                    report(output, result);
+                }
+                start(index, item, me);
+                token = parser.nextToken();
+            }
+        } catch (JsonProcessingException e) {
+            error = "Invalid batch: " + e.getOriginalMessage();
+        }
+
+        while (inFlight > 0) {
+            report(output, take());
+        }
+        ObjectNode summary = mapper.createObjectNode();
+        if (error != null) {
+            summary.put("error", error);
+        } else {
+            summary.put("committed", committed);
+            summary.put("failed", failed);
+            summary.put("rejected", rejected);
+        }
+        writeLine(output, summary);
+    }
+
+    /**
+     * Starts the flow issuing [item], or reports it as failed straight away if it isn't a valid IOU.
+     */
+    private void start(int index, JsonNode item, Party me) {
+        CordaFuture<SignedTransaction> returnValue;
+        try {
+            IOUState state = new IOUState(amount(item), lender(item), me);
+            String idempotencyKey = item.path("idempotencyKey").isTextual() ? item.get("idempotencyKey").asText() : null;
+            // Flow arguments can't be null, so only pass the key when there is one.
+            returnValue = idempotencyKey == null
+                    ? admissionControl.start(() -> rpcOps.startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state, asyncFinality)).getReturnValue()
+                    : flowStatusTracker.startOnce(idempotencyKey, IOUApi.issueRequest(state), () -> admissionControl.start(() ->
+                            IOUApi.releaseKeyOnFailure(rpcOps, idempotencyKey,
+                                    rpcOps.startFlowDynamic(IOUIssueFlow.InitiatorFlow.class, state, asyncFinality, idempotencyKey)))).getReturnValue();
+        } catch (FlowAdmissionControl.RejectedException e) {
+            completed.add(mapper.createObjectNode()
+                    .put("index", index)
+                    .put("status", "rejected")
+                    .put("retryAfter", e.getRetryAfterSeconds()));
+            inFlight++;
+            return;
+        } catch (Exception e) {
+            completed.add(failure(index, e.getMessage()));
+            inFlight++;
+            return;
+        }
+        inFlight++;
+        returnValue.then(future -> {
+            try {
+                SignedTransaction stx = future.get();
+                ObjectNode result = mapper.createObjectNode()
+                        .put("index", index)
+                        .put("status", "committed")
+                        .put("txId", stx.getId().toString())
+                        .put("linearId", stx.getTx().outputsOfType(IOUState.class).get(0).getLinearId().getId().toString());
+                completed.add(result);
+            } catch (Exception e) {
+                completed.add(failure(index, e.getCause() != null ? e.getCause().getMessage() : e.getMessage()));
+            }
+            return null;
+        });
+    }
+
+    private Amount<Currency> amount(JsonNode item) {
+        JsonNode amount = item.path("amount");
+        JsonNode currency = item.path("currency");
+        if (!(amount.isNumber() || amount.isTextual()) || !currency.isTextual()) {
+            throw new IllegalArgumentException("Each IOU needs an amount and a currency.");
+        }
+        BigDecimal quantity = amount.isNumber() ? amount.decimalValue() : new BigDecimal(amount.asText());
+        return Amount.fromDecimal(quantity, Currency.getInstance(currency.asText()));
+    }
+
+    /**
+     * Looks up the lender named by the item's "party", remembering each name for the rest of the batch.
+     */
+    private Party lender(JsonNode item) {
+        JsonNode party = item.path("party");
+        if (!party.isTextual()) {
+            throw new IllegalArgumentException("Each IOU needs a party to borrow from.");
+        }
+        Party lender = parties.computeIfAbsent(party.asText(),
+                name -> rpcOps.wellKnownPartyFromX500Name(CordaX500Name.parse(name)));
+        if (lender == null) {
+            throw new IllegalArgumentException("Unknown party name.");
+        }
+        return lender;
+    }
+
+    private ObjectNode failure(int index, String error) {
+        return mapper.createObjectNode()
+                .put("index", index)
+                .put("status", "failed")
+                .put("error", error);
+    }
+
+    private ObjectNode take() throws IOException {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the batch's flows.", e);
+        }
+    }
+
+    private void report(OutputStream output, ObjectNode result) throws IOException {
+        inFlight--;
+        switch (result.path("status").asText()) {
+            case "committed": committed++; break;
+            case "rejected": rejected++; break;
+            default: failed++;
+        }
+        writeLine(output, result);
+    }
+
+    private void writeLine(OutputStream output, ObjectNode line) throws IOException {
+        output.write((mapper.writeValueAsString(line) + "\n").getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+}
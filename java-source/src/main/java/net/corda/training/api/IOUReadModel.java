@@ -0,0 +1,398 @@
+package net.corda.training.api;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.training.state.IOUState;
+
+import com.google.common.collect.ImmutableSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * An in-memory read model of the node's unconsumed IOU and cash states, so that the [IOUApi] can answer the dashboard's
+ * polling without a vault query per request.
+ *
+ * The model subscribes to the vault updates with [CordaRPCOps.vaultTrackBy], then seeds itself from the vault [PAGE_SIZE]
+ * states at a time, so that no RPC response holds the whole vault, and applies the updates received meanwhile once it
+ * has. IOUs are indexed by linearId, by party (as lender or borrower) and by currency, and cash states by currency,
+ * with a running balance per currency. States are kept in the order they were recorded.
+ *
+ * The model isn't [isLive] until it has been seeded, and stops being live if either feed fails, for example because the
+ * RPC connection dropped; callers should fall back to querying the vault meanwhile. Seeding runs in the background,
+ * and a failure to seed or a failed feed is retried with exponential backoff, from [FIRST_RETRY] up to [MAX_RETRY].
+ *
+ * Each update is passed on to the model's [Listener]s once it has been applied, which is how the [IOUUpdateStream]
+ * pushes changes to the dashboard.
+ */
+public class IOUReadModel {
+    private static final Logger logger = LoggerFactory.getLogger(IOUReadModel.class);
+
+    private static final int PAGE_SIZE = 1000;
+    private static final Duration FIRST_RETRY = Duration.ofSeconds(1);
+    private static final Duration MAX_RETRY = Duration.ofMinutes(1);
+
+    // By recorded time, then by ref so that states recorded together keep the same order from one page to the next.
+    private static final Sort BY_RECORDED_TIME = new Sort(ImmutableSet.of(
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC),
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), Sort.Direction.ASC),
+            new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX), Sort.Direction.ASC)));
+
+    private final CordaRPCOps rpcOps;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "iou-read-model");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<UniqueIdentifier, StateAndRef<IOUState>> iousByLinearId = new LinkedHashMap<>();
+    private final Map<UniqueIdentifier, Long> iouRecordedOrder = new HashMap<>();
+    private final Map<CordaX500Name, Set<UniqueIdentifier>> iousByParty = new HashMap<>();
+    private final Map<Currency, Set<UniqueIdentifier>> iousByCurrency = new HashMap<>();
+
+    private final Map<StateRef, StateAndRef<Cash.State>> cashByRef = new LinkedHashMap<>();
+    private final Map<Currency, Set<StateRef>> cashByCurrency = new HashMap<>();
+    private final Map<Currency, Long> cashBalances = new HashMap<>();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private long recorded = 0;
+
+    // Guarded by this. Each subscription to the feeds is numbered, and callbacks from an earlier one are ignored.
+    private long generation = 0;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    // The updates received while the model is being seeded, or null once it has been.
+    private List<Runnable> pending = null;
+    private Duration retryDelay = FIRST_RETRY;
+
+    private volatile boolean live = false;
+
+    public IOUReadModel(CordaRPCOps rpcOps) {
+        this.rpcOps = rpcOps;
+    }
+
+    /**
+     * Starts subscribing to the vault updates and seeding the model in the background. Returns straight away.
+     */
+    public void start() {
+        scheduler.execute(this::connect);
+    }
+
+    private void connect() {
+        long attempt;
+        synchronized (this) {
+            attempt = ++generation;
+            pending = new ArrayList<>();
+        }
+        try {
+            // Subscribe before reading the vault, so that no update is missed. The feeds' own snapshots are kept to one
+            // state, as the vault is read page by page below.
+            QueryCriteria unconsumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+            PageSpecification onePage = new PageSpecification(DEFAULT_PAGE_NUM, 1);
+            DataFeed<Vault.Page<IOUState>, Vault.Update<IOUState>> iouFeed =
+                    rpcOps.vaultTrackBy(unconsumed, onePage, BY_RECORDED_TIME, IOUState.class);
+            track(attempt, iouFeed.getUpdates(), this::applyIOUUpdate);
+            DataFeed<Vault.Page<Cash.State>, Vault.Update<Cash.State>> cashFeed =
+                    rpcOps.vaultTrackBy(unconsumed, onePage, BY_RECORDED_TIME, Cash.State.class);
+            track(attempt, cashFeed.getUpdates(), this::applyCashUpdate);
+
+            List<StateAndRef<IOUState>> ious = unconsumedStates(IOUState.class);
+            List<StateAndRef<Cash.State>> cash = unconsumedStates(Cash.State.class);
+            synchronized (this) {
+                if (attempt != generation) {
+                    return;
+                }
+                clear();
+                ious.forEach(this::addIOU);
+                cash.forEach(this::addCash);
+                pending.forEach(Runnable::run);
+                pending = null;
+                retryDelay = FIRST_RETRY;
+                live = true;
+            }
+            logger.info("Read model seeded with {} IOUs and {} cash states.", ious.size(), cash.size());
+        } catch (Exception e) {
+            onFeedError(attempt, e);
+        }
+    }
+
+    /**
+     * Returns the unconsumed states of [type] in the vault, reading [PAGE_SIZE] at a time.
+     */
+    private <T extends ContractState> List<StateAndRef<T>> unconsumedStates(Class<T> type) {
+        // Page through every state, consumed or not: if only the unconsumed states were paged through, a state consumed
+        // while the pages are read would move the ones after it back a page, and one would be skipped. Every recorded
+        // state keeps its place, and states recorded meanwhile are added at the end.
+        QueryCriteria all = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.ALL);
+        List<StateAndRef<T>> unconsumed = new ArrayList<>();
+        for (int page = DEFAULT_PAGE_NUM; ; page++) {
+            Vault.Page<T> results = rpcOps.vaultQueryBy(all, new PageSpecification(page, PAGE_SIZE), BY_RECORDED_TIME, type);
+            for (int i = 0; i < results.getStates().size(); i++) {
+                if (results.getStatesMetadata().get(i).getStatus() == Vault.StateStatus.UNCONSUMED) {
+                    unconsumed.add(results.getStates().get(i));
+                }
+            }
+            if ((long) page * PAGE_SIZE >= results.getTotalStatesAvailable()) {
+                return unconsumed;
+            }
+        }
+    }
+
+    private <T extends ContractState> void track(long attempt, Observable<Vault.Update<T>> updates, Consumer<Vault.Update<T>> apply) {
+        Subscription subscription = updates.subscribe(
+                update -> onUpdate(attempt, () -> apply.accept(update)),
+                error -> onFeedError(attempt, error));
+        synchronized (this) {
+            if (attempt == generation) {
+                subscriptions.add(subscription);
+            } else {
+                subscription.unsubscribe();
+            }
+        }
+    }
+
+    private synchronized void onUpdate(long attempt, Runnable apply) {
+        if (attempt != generation) {
+            return;
+        }
+        if (pending != null) {
+            pending.add(apply);
+        } else {
+            apply.run();
+        }
+    }
+
+    private void onFeedError(long attempt, Throwable error) {
+        Duration delay;
+        synchronized (this) {
+            if (attempt != generation) {
+                return;
+            }
+            // Ignore anything more from this subscription.
+            generation++;
+            subscriptions.forEach(Subscription::unsubscribe);
+            subscriptions.clear();
+            pending = null;
+            delay = retryDelay;
+            Duration doubled = retryDelay.multipliedBy(2);
+            retryDelay = doubled.compareTo(MAX_RETRY) < 0 ? doubled : MAX_RETRY;
+            logger.warn("Vault feed failed, falling back to vault queries and resubscribing in " + delay + ".", error);
+            live = false;
+            listeners.forEach(Listener::onFeedError);
+        }
+        scheduler.schedule(this::connect, delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isLive() {
+        return live;
+    }
+
+    /**
+     * Registers a [listener] for the updates applied from now on. Add listeners before calling [start] to see every
+     * update.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Runs [reader] with the model locked, so that no update is applied, or passed to the listeners, while it reads.
+     */
+    public synchronized <T> T readConsistently(Supplier<T> reader) {
+        return reader.get();
+    }
+
+    /**
+     * Returns the unconsumed IOU with the given [linearId], or null if there isn't one.
+     */
+    public synchronized StateAndRef<IOUState> iou(UniqueIdentifier linearId) {
+        return iousByLinearId.get(linearId);
+    }
+
+    /**
+     * Returns the unconsumed IOUs matching the given [lender], [borrower] and [currency], any of which may be null to
+     * match everything, in the order they were recorded.
+     */
+    public synchronized List<StateAndRef<IOUState>> ious(CordaX500Name lender, CordaX500Name borrower, Currency currency) {
+        // Start from the narrowest index that applies, then check the remaining filters against each state.
+        Collection<UniqueIdentifier> candidates = iousByLinearId.keySet();
+        if (currency != null) {
+            candidates = narrowest(candidates, iousByCurrency.getOrDefault(currency, Collections.emptySet()));
+        }
+        if (lender != null) {
+            candidates = narrowest(candidates, iousByParty.getOrDefault(lender, Collections.emptySet()));
+        }
+        if (borrower != null) {
+            candidates = narrowest(candidates, iousByParty.getOrDefault(borrower, Collections.emptySet()));
+        }
+        return candidates.stream()
+                .map(iousByLinearId::get)
+                .filter(stateAndRef -> {
+                    IOUState iou = stateAndRef.getState().getData();
+                    return (currency == null || iou.amount.getToken().equals(currency))
+                            && (lender == null || iou.lender.getName().equals(lender))
+                            && (borrower == null || iou.borrower.getName().equals(borrower));
+                })
+                .sorted(Comparator.comparing(stateAndRef -> iouRecordedOrder.get(stateAndRef.getState().getData().getLinearId())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the unconsumed cash states in the given [currency], or all of them if [currency] is null, in the order
+     * they were recorded.
+     */
+    public synchronized List<StateAndRef<Cash.State>> cash(Currency currency) {
+        if (currency == null) {
+            return new ArrayList<>(cashByRef.values());
+        }
+        Set<StateRef> refs = cashByCurrency.getOrDefault(currency, Collections.emptySet());
+        return cashByRef.values().stream()
+                .filter(stateAndRef -> refs.contains(stateAndRef.getRef()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the node's cash balance in each currency it holds.
+     */
+    public synchronized Map<Currency, Amount<Currency>> cashBalances() {
+        Map<Currency, Amount<Currency>> balances = new HashMap<>();
+        cashBalances.forEach((currency, quantity) -> balances.put(currency, new Amount<>(quantity, currency)));
+        return balances;
+    }
+
+    private synchronized void applyIOUUpdate(Vault.Update<IOUState> update) {
+        for (StateAndRef<IOUState> consumed : update.getConsumed()) {
+            removeIOU(consumed);
+        }
+        for (StateAndRef<IOUState> produced : update.getProduced()) {
+            addIOU(produced);
+        }
+        listeners.forEach(listener -> listener.onIOUUpdate(update));
+    }
+
+    private synchronized void applyCashUpdate(Vault.Update<Cash.State> update) {
+        for (StateAndRef<Cash.State> consumed : update.getConsumed()) {
+            removeCash(consumed);
+        }
+        for (StateAndRef<Cash.State> produced : update.getProduced()) {
+            addCash(produced);
+        }
+        if (!listeners.isEmpty()) {
+            Map<Currency, Amount<Currency>> balances = cashBalances();
+            listeners.forEach(listener -> listener.onCashUpdate(update, balances));
+        }
+    }
+
+    private void clear() {
+        iousByLinearId.clear();
+        iouRecordedOrder.clear();
+        iousByParty.clear();
+        iousByCurrency.clear();
+        cashByRef.clear();
+        cashByCurrency.clear();
+        cashBalances.clear();
+    }
+
+    private void addIOU(StateAndRef<IOUState> stateAndRef) {
+        IOUState iou = stateAndRef.getState().getData();
+        // Re-inserting moves an IOU that has just been transferred or paid down to the end of the recorded order.
+        iousByLinearId.remove(iou.getLinearId());
+        iousByLinearId.put(iou.getLinearId(), stateAndRef);
+        iouRecordedOrder.put(iou.getLinearId(), recorded++);
+        iousByParty.computeIfAbsent(iou.lender.getName(), name -> new HashSet<>()).add(iou.getLinearId());
+        iousByParty.computeIfAbsent(iou.borrower.getName(), name -> new HashSet<>()).add(iou.getLinearId());
+        iousByCurrency.computeIfAbsent(iou.amount.getToken(), currency -> new HashSet<>()).add(iou.getLinearId());
+    }
+
+    private void removeIOU(StateAndRef<IOUState> stateAndRef) {
+        IOUState iou = stateAndRef.getState().getData();
+        StateAndRef<IOUState> current = iousByLinearId.get(iou.getLinearId());
+        if (current == null || !current.getRef().equals(stateAndRef.getRef())) {
+            return;
+        }
+        iousByLinearId.remove(iou.getLinearId());
+        iouRecordedOrder.remove(iou.getLinearId());
+        removeFromIndex(iousByParty, iou.lender.getName(), iou.getLinearId());
+        removeFromIndex(iousByParty, iou.borrower.getName(), iou.getLinearId());
+        removeFromIndex(iousByCurrency, iou.amount.getToken(), iou.getLinearId());
+    }
+
+    private void addCash(StateAndRef<Cash.State> stateAndRef) {
+        if (cashByRef.put(stateAndRef.getRef(), stateAndRef) != null) {
+            return;
+        }
+        Amount<Currency> amount = withoutIssuer(stateAndRef.getState().getData());
+        cashByCurrency.computeIfAbsent(amount.getToken(), currency -> new HashSet<>()).add(stateAndRef.getRef());
+        cashBalances.merge(amount.getToken(), amount.getQuantity(), Math::addExact);
+    }
+
+    private void removeCash(StateAndRef<Cash.State> stateAndRef) {
+        if (cashByRef.remove(stateAndRef.getRef()) == null) {
+            return;
+        }
+        Amount<Currency> amount = withoutIssuer(stateAndRef.getState().getData());
+        removeFromIndex(cashByCurrency, amount.getToken(), stateAndRef.getRef());
+        if (cashBalances.merge(amount.getToken(), -amount.getQuantity(), Math::addExact) == 0) {
+            cashBalances.remove(amount.getToken());
+        }
+    }
+
+    private static Amount<Currency> withoutIssuer(Cash.State cash) {
+        return new Amount<>(cash.getAmount().getQuantity(), cash.getAmount().getToken().getProduct());
+    }
+
+    private static <K, V> void removeFromIndex(Map<K, Set<V>> index, K key, V value) {
+        Set<V> values = index.get(key);
+        if (values != null && values.remove(value) && values.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static <V> Collection<V> narrowest(Collection<V> a, Collection<V> b) {
+        return a.size() <= b.size() ? a : b;
+    }
+
+    /**
+     * Told about each vault update after the model has applied it. The callbacks run on the feed's thread with the
+     * model locked, in the order the updates were applied, so they must not block. The updates applied while the model
+     * is being seeded are passed on too, before it is live.
+     */
+    public interface Listener {
+        void onIOUUpdate(Vault.Update<IOUState> update);
+
+        /**
+         * [balances] are the cash balances once [update] has been applied.
+         */
+        void onCashUpdate(Vault.Update<Cash.State> update, Map<Currency, Amount<Currency>> balances);
+
+        /**
+         * The model has stopped being [isLive]. The updates until it is seeded again are lost.
+         */
+        void onFeedError();
+    }
+}
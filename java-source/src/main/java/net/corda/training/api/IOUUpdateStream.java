@@ -0,0 +1,292 @@
+package net.corda.training.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import net.corda.client.jackson.JacksonSupport;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.services.Vault;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.training.plugin.IOUJacksonModule;
+import net.corda.training.state.IOUState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Streams the changes applied to the [IOUReadModel] to clients as Server-Sent Events, so that the dashboard can apply
+ * them as they happen instead of polling the list endpoints. The events are:
+ * - snapshot: {"ious": [...], "cashBalances": {...}}, the unconsumed IOUs and the cash balances, which replace whatever
+ *   the client held. Sent to a client that connects without a resume token, or whose token can't be resumed from.
+ * - ious: {"produced": [...], "consumed": ["<ref>", ...]}, the IOUs recorded by a transaction and the refs of the ones
+ *   it consumed.
+ * - cash: {"produced": [...], "consumed": ["<ref>", ...], "balances": {...}}, likewise for cash, with the new balances.
+ *
+ * Each event's id is the token a client resumes from. A browser's EventSource sends it back in the Last-Event-ID header
+ * when it reconnects, and is replayed the events it missed from the last [HISTORY_SIZE]. Tokens start with an id for
+ * this stream, so a token from before the web server restarted gets a snapshot rather than someone else's events.
+ *
+ * Each client's stream is a blocking [StreamingOutput], written from the request's own thread, because the node's web
+ * server doesn't enable the servlet asynchronous support that Jersey's ChunkedOutput needs. Events are serialized once,
+ * whatever the number of clients, and queued for each client, so a slow client never holds up the [IOUReadModel] or
+ * the other clients; one that falls [HISTORY_SIZE] events behind is disconnected and resumes from the history when it
+ * reconnects. A comment is sent after [HEARTBEAT_SECONDS] without events to keep idle connections open and to notice
+ * clients that have gone away.
+ *
+ * Every open stream holds one of the web server's threads, so at most [MAX_CLIENTS] are open at once. [connect] refuses
+ * any more, and the dashboard polls the list endpoints instead. A client only takes its place once the web server starts
+ * writing its stream, so a request which fails or goes away before then holds none; a stream which finds every place
+ * taken by then ends straight away, and the client reconnects.
+ */
+public class IOUUpdateStream implements IOUReadModel.Listener {
+    private static final Logger logger = LoggerFactory.getLogger(IOUUpdateStream.class);
+
+    private static final int HISTORY_SIZE = 1000;
+    private static final long HEARTBEAT_SECONDS = 15;
+    private static final int MAX_CLIENTS = Integer.getInteger("iou.api.maxUpdateStreams", 32);
+
+    private final IOUReadModel readModel;
+    private final ObjectMapper mapper = JacksonSupport.createNonRpcMapper().registerModule(new IOUJacksonModule());
+    private final String streamId = UUID.randomUUID().toString();
+
+    // Guarded by the read model's lock, which is held while the listener methods run, so events are numbered in the
+    // order the updates were applied.
+    private final Deque<Event> history = new ArrayDeque<>();
+    private long lastSequence = 0;
+
+    // The open streams. Guarded by itself.
+    private final List<Client> clients = new ArrayList<>();
+
+    public IOUUpdateStream(IOUReadModel readModel) {
+        this.readModel = readModel;
+    }
+
+    /**
+     * Opens a stream for a new client, resuming after the event whose id is [resumeToken] if it is still in the
+     * history, and otherwise starting with a snapshot. [resumeToken] may be null. Returns null if [MAX_CLIENTS] streams
+     * are already open.
+     */
+    public StreamingOutput connect(String resumeToken) {
+        synchronized (clients) {
+            if (clients.size() >= MAX_CLIENTS) {
+                return null;
+            }
+        }
+        return output -> {
+            Client client = new Client();
+            // Read the replay or snapshot and register the client with the model locked, so that the backlog ends
+            // exactly where the events queued for the client begin.
+            Backlog backlog = readModel.readConsistently(() -> {
+                synchronized (clients) {
+                    if (clients.size() >= MAX_CLIENTS) {
+                        return null;
+                    }
+                    clients.add(client);
+                }
+                List<Event> replay = replaySince(resumeToken);
+                return replay != null
+                        ? new Backlog(replay)
+                        : new Backlog(token(lastSequence), readModel.ious(null, null, null), readModel.cashBalances());
+            });
+            if (backlog == null) {
+                return;
+            }
+            try {
+                if (backlog.replay != null) {
+                    for (Event event : backlog.replay) {
+                        write(output, event.frame);
+                    }
+                } else {
+                    write(output, frame(backlog.token, "snapshot", mapper.writeValueAsString(ImmutableMap.of(
+                            "ious", backlog.ious,
+                            "cashBalances", backlog.cashBalances))));
+                }
+                output.flush();
+                for (String frame = client.next(); !client.closed; frame = client.next()) {
+                    write(output, frame);
+                    output.flush();
+                }
+            } finally {
+                synchronized (clients) {
+                    clients.remove(client);
+                }
+            }
+        };
+    }
+
+    private static void write(OutputStream output, String frame) throws IOException {
+        output.write(frame.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void onIOUUpdate(Vault.Update<IOUState> update) {
+        publish("ious", update, ImmutableMap.of());
+    }
+
+    @Override
+    public void onCashUpdate(Vault.Update<Cash.State> update, Map<Currency, Amount<Currency>> balances) {
+        publish("cash", update, ImmutableMap.of("balances", balances));
+    }
+
+    @Override
+    public void onFeedError() {
+        // The updates until the model is seeded again are lost, so no token from before can be resumed from. Send the
+        // clients away to poll the vault until the stream is available again.
+        history.clear();
+        lastSequence++;
+        closeAll();
+    }
+
+    private <T extends ContractState> void publish(String type, Vault.Update<T> update, Map<String, Object> extra) {
+        if (update.getConsumed().isEmpty() && update.getProduced().isEmpty()) {
+            return;
+        }
+        Map<String, Object> payload = new LinkedHashMap<>();
+        payload.put("produced", update.getProduced());
+        payload.put("consumed", update.getConsumed().stream()
+                .map(stateAndRef -> stateAndRef.getRef().toString())
+                .collect(Collectors.toList()));
+        payload.putAll(extra);
+
+        String data;
+        try {
+            data = mapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            // The clients can't be given this change, so make them all start again from a snapshot. Skipping a sequence
+            // number with the history empty means no token can be resumed from.
+            logger.error("Could not serialize a vault update, resetting the update stream.", e);
+            history.clear();
+            lastSequence++;
+            closeAll();
+            return;
+        }
+        long sequence = ++lastSequence;
+        Event event = new Event(sequence, frame(token(sequence), type, data));
+        history.addLast(event);
+        if (history.size() > HISTORY_SIZE) {
+            history.removeFirst();
+        }
+        broadcast(event.frame);
+    }
+
+    /**
+     * Returns the events after the one [resumeToken] identifies, or null if the client can't resume from it.
+     */
+    private List<Event> replaySince(String resumeToken) {
+        if (resumeToken == null || !resumeToken.startsWith(streamId + ":")) {
+            return null;
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(resumeToken.substring(streamId.length() + 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        long oldest = history.isEmpty() ? lastSequence + 1 : history.peekFirst().sequence;
+        if (sequence > lastSequence || sequence < oldest - 1) {
+            return null;
+        }
+        return history.stream().filter(event -> event.sequence > sequence).collect(Collectors.toList());
+    }
+
+    private String token(long sequence) {
+        return streamId + ":" + sequence;
+    }
+
+    private static String frame(String id, String type, String data) {
+        return "id: " + id + "\nevent: " + type + "\ndata: " + data + "\n\n";
+    }
+
+    private void broadcast(String frame) {
+        synchronized (clients) {
+            for (Client client : clients) {
+                if (!client.frames.offer(frame)) {
+                    // Too far behind to catch up: end the stream, so the client reconnects and resumes from the history.
+                    client.close();
+                }
+            }
+        }
+    }
+
+    private void closeAll() {
+        synchronized (clients) {
+            clients.forEach(Client::close);
+        }
+    }
+
+    /**
+     * An open stream: the frames waiting to be written to it, and whether it has been told to end.
+     */
+    private static class Client {
+        private final BlockingQueue<String> frames = new ArrayBlockingQueue<>(HISTORY_SIZE + 1);
+        private volatile boolean closed = false;
+
+        /**
+         * Waits for the next frame, returning a heartbeat if none comes within [HEARTBEAT_SECONDS]. Check [closed]
+         * before writing it.
+         */
+        String next() throws IOException {
+            try {
+                String frame = frames.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                return frame != null ? frame : ": heartbeat\n\n";
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for updates.", e);
+            }
+        }
+
+        void close() {
+            closed = true;
+            // Drop the frames it won't be sent, leaving room for a heartbeat to wake the writer up.
+            frames.clear();
+            frames.offer(": closed\n\n");
+        }
+    }
+
+    private static class Event {
+        private final long sequence;
+        private final String frame;
+
+        Event(long sequence, String frame) {
+            this.sequence = sequence;
+            this.frame = frame;
+        }
+    }
+
+    /**
+     * What a new client is sent before the broadcasts: either the events it missed, or a snapshot.
+     */
+    private static class Backlog {
+        private final List<Event> replay;
+        private final String token;
+        private final List<StateAndRef<IOUState>> ious;
+        private final Map<Currency, Amount<Currency>> cashBalances;
+
+        Backlog(List<Event> replay) {
+            this(replay, null, null, null);
+        }
+
+        Backlog(String token, List<StateAndRef<IOUState>> ious, Map<Currency, Amount<Currency>> cashBalances) {
+            this(null, token, ious, cashBalances);
+        }
+
+        private Backlog(List<Event> replay, String token, List<StateAndRef<IOUState>> ious,
+                        Map<Currency, Amount<Currency>> cashBalances) {
+            this.replay = replay;
+            this.token = token;
+            this.ious = ious;
+            this.cashBalances = cashBalances;
+        }
+    }
+}
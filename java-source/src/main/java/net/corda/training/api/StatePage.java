@@ -0,0 +1,48 @@
+package net.corda.training.api;
+
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+
+import java.util.List;
+
+/**
+ * A page of vault states returned by the [IOUApi] list endpoints.
+ * - [states] The states on this page.
+ * - [totalStatesAvailable] The number of states matching the query across all pages.
+ * - [page] and [pageSize] The page that was returned. Pages are numbered from 1.
+ * - [nextPage] The continuation token for the following page, to be passed back as the [page] query parameter, or null
+ *   if this is the last page.
+ */
+public class StatePage<T extends ContractState> {
+    private final List<StateAndRef<T>> states;
+    private final long totalStatesAvailable;
+    private final int page;
+    private final int pageSize;
+
+    public StatePage(List<StateAndRef<T>> states, long totalStatesAvailable, int page, int pageSize) {
+        this.states = states;
+        this.totalStatesAvailable = totalStatesAvailable;
+        this.page = page;
+        this.pageSize = pageSize;
+    }
+
+    public List<StateAndRef<T>> getStates() {
+        return states;
+    }
+
+    public long getTotalStatesAvailable() {
+        return totalStatesAvailable;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    public Integer getNextPage() {
+        return (long) page * pageSize < totalStatesAvailable ? page + 1 : null;
+    }
+}
@@ -5,19 +5,13 @@ import net.corda.core.contracts.*;
 import static net.corda.core.contracts.ContractsDSL.requireSingleCommand;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
 
-import net.corda.core.identity.AbstractParty;
-import net.corda.core.identity.Party;
 import net.corda.core.transactions.LedgerTransaction;
 
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.training.state.IOUState;
 
-import javax.swing.plaf.nimbus.State;
-import javax.validation.constraints.NotNull;
-import java.lang.reflect.Array;
 import java.security.PublicKey;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * This is the contract code which defines how the [IOUState] behaves. Looks at the unit tests in
@@ -33,17 +27,32 @@ public class IOUContract implements Contract {
     /**
      * The IOUContract can handle three transaction types involving [IOUState]s.
      * - Issuance: Issuing a new [IOUState] on the ledger, which is a bilateral agreement between two parties.
+     * - Batch issuance: Issuing any number of new [IOUState]s between the same two parties in one transaction.
      * - Transfer: Re-assigning the lender/beneficiary.
+     * - Batch transfer: Re-assigning any number of [IOUState]s, possibly with different borrowers, to one new lender
+     *   in one transaction.
      * - Settle: Fully or partially settling the [IOUState] using the Corda [Cash] contract.
+     * - Batch settlement: Fully or partially settling many [IOUState]s with the same lender, borrower and currency
+     *   with a single cash payment.
+     * - Netting: Replacing a set of offsetting [IOUState]s between any number of parties with residual [IOUState]s,
+     *   leaving every party's net position unchanged.
      */
     public interface Commands extends CommandData {
         class Issue extends TypeOnlyCommandData implements Commands{}
+        class IssueBatch extends TypeOnlyCommandData implements Commands{}
         class Transfer extends TypeOnlyCommandData implements Commands{}
+        class TransferBatch extends TypeOnlyCommandData implements Commands{}
         class Settle extends TypeOnlyCommandData implements Commands{}
+        class SettleBatch extends TypeOnlyCommandData implements Commands{}
+        class Net extends TypeOnlyCommandData implements Commands{}
     }
     /**
      * The contract code for the [IOUContract].
      * The constraints are self documenting so don't require any additional explanation.
+     *
+     * Note: verification runs for every transaction the notary and each counterparty sees, so the checks below work
+     * directly on the transaction's component lists and the state fields. Dispatch is on the command's type and the
+     * signer checks compare keys in place, rather than building command instances, key sets or streams per call.
      */
     @Override
     public void verify(LedgerTransaction tx) {
@@ -57,122 +66,304 @@ public class IOUContract implements Contract {
          * should be performing - we will use different assertions to enable the contract to verify the transaction
          * for issuing, settling and transferring.
          */
-        if (commandData.equals(new Commands.Issue())) {
+        if (commandData instanceof Commands.Issue) {
 
             requireThat(require -> {
 
-                require.using("No inputs should be consumed when issuing an IOU.", tx.getInputStates().size() == 0);
-                require.using( "Only one output state should be created when issuing an IOU.", tx.getOutputStates().size() == 1);
+                require.using("No inputs should be consumed when issuing an IOU.", tx.getInputs().size() == 0);
+                require.using( "Only one output state should be created when issuing an IOU.", tx.getOutputs().size() == 1);
 
-                IOUState outputState = tx.outputsOfType(IOUState.class).get(0);
+                IOUState outputState = firstOutputIOU(tx);
+                require.using("The output state must be an IOU.", outputState != null);
                 require.using( "A newly issued IOU must have a positive amount.", outputState.amount.getQuantity() > 0);
-                require.using( "The lender and borrower cannot have the same identity.", outputState.lender.getOwningKey() != outputState.borrower.getOwningKey());
+                require.using( "The lender and borrower cannot have the same identity.", !outputState.lender.getOwningKey().equals(outputState.borrower.getOwningKey()));
 
-                List<PublicKey> signers = tx.getCommands().get(0).getSigners();
-                HashSet<PublicKey> signersSet = new HashSet<>();
-                for (PublicKey key: signers) {
-                    signersSet.add(key);
-                }
+                require.using("Both lender and borrower together only may sign IOU issue transaction.",
+                        isSignedByExactly(command.getSigners(), outputState.lender.getOwningKey(), outputState.borrower.getOwningKey()));
+
+                return null;
+            });
+
+        }
+
+        else if (commandData instanceof Commands.IssueBatch) {
+
+            requireThat(require -> {
+
+                require.using("No inputs should be consumed when issuing IOUs.", tx.getInputs().size() == 0);
+
+                IOUState firstState = firstOutputIOU(tx);
+                require.using("At least one IOU should be created when issuing a batch of IOUs.", firstState != null);
+
+                PublicKey lenderKey = firstState.lender.getOwningKey();
+                PublicKey borrowerKey = firstState.borrower.getOwningKey();
+                require.using("The lender and borrower cannot have the same identity.", !lenderKey.equals(borrowerKey));
+
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    ContractState output = tx.getOutputs().get(i).getData();
+                    require.using("Only IOUs may be created when issuing a batch of IOUs.", output instanceof IOUState);
 
-                List<AbstractParty> participants = tx.getOutputStates().get(0).getParticipants();
-                HashSet<PublicKey> participantKeys = new HashSet<>();
-                for (AbstractParty party: participants) {
-                    participantKeys.add(party.getOwningKey());
+                    IOUState outputState = (IOUState) output;
+                    require.using("A newly issued IOU must have a positive amount.", outputState.amount.getQuantity() > 0);
+                    require.using("All IOUs in a batch must be between the same two parties.", isBetween(outputState, lenderKey, borrowerKey));
                 }
 
-                require.using("Both lender and borrower together only may sign IOU issue transaction.", signersSet.containsAll(participantKeys) && signersSet.size() == 2);
+                require.using("Both lender and borrower together only may sign IOU issue transaction.",
+                        isSignedByExactly(command.getSigners(), lenderKey, borrowerKey));
 
                 return null;
             });
 
         }
 
-        else if (commandData.equals(new Commands.Transfer())) {
+        else if (commandData instanceof Commands.Transfer) {
 
             requireThat(require -> {
 
-                require.using("An IOU transfer transaction should only consume one input state.", tx.getInputStates().size() == 1);
-                require.using("An IOU transfer transaction should only create one output state.", tx.getOutputStates().size() == 1);
+                require.using("An IOU transfer transaction should only consume one input state.", tx.getInputs().size() == 1);
+                require.using("An IOU transfer transaction should only create one output state.", tx.getOutputs().size() == 1);
 
-                // Copy of input with new lender;
-                IOUState inputState = tx.inputsOfType(IOUState.class).get(0);
-                IOUState outputState = tx.outputsOfType(IOUState.class).get(0);
-                IOUState checkOutputState = outputState.withNewLender(inputState.getLender());
+                IOUState inputState = firstInputIOU(tx);
+                IOUState outputState = firstOutputIOU(tx);
+                require.using("The input and output states must be IOUs.", inputState != null && outputState != null);
 
                 require.using("Only the lender property may change.",
-                        checkOutputState.amount.equals(inputState.amount) && checkOutputState.getLinearId().equals(inputState.getLinearId()) && checkOutputState.borrower.equals(inputState.borrower) && checkOutputState.paid.equals(inputState.paid));
+                        outputState.amount.equals(inputState.amount) && outputState.getLinearId().equals(inputState.getLinearId()) && outputState.borrower.equals(inputState.borrower) && outputState.paid.equals(inputState.paid));
                 require.using("The lender property must change in a transfer.", !outputState.lender.getOwningKey().equals(inputState.lender.getOwningKey()));
 
-                List<PublicKey> listOfPublicKeys = new ArrayList<>();
-                listOfPublicKeys.add(inputState.lender.getOwningKey());
-                listOfPublicKeys.add(inputState.borrower.getOwningKey());
-                listOfPublicKeys.add(checkOutputState.lender.getOwningKey());
-
-                Set<PublicKey> listOfParticipantPublicKeys = inputState.getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toSet());
-                listOfParticipantPublicKeys.add(outputState.lender.getOwningKey());
-                List<PublicKey> arrayOfSigners = command.getSigners();
-                Set<PublicKey> setOfSigners = new HashSet<PublicKey>(arrayOfSigners);
-                require.using("The borrower, old lender and new lender only must sign an IOU transfer transaction", setOfSigners.equals(listOfParticipantPublicKeys) && setOfSigners.size() == 3);
+                PublicKey borrowerKey = inputState.borrower.getOwningKey();
+                PublicKey newLenderKey = outputState.lender.getOwningKey();
+                require.using("The borrower, old lender and new lender only must sign an IOU transfer transaction",
+                        !borrowerKey.equals(newLenderKey) && isSignedByExactly(command.getSigners(), inputState.lender.getOwningKey(), borrowerKey, newLenderKey));
                 return null;
 
             });
 
         }
 
-        else if (commandData.equals(new Commands.Settle())) {
+        else if (commandData instanceof Commands.TransferBatch) {
 
             requireThat(require -> {
 
-                // Check there is only one group of IOUs and that there is always an input IOU.
-                List<LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier>> groups = tx.groupStates(IOUState.class, IOUState::getLinearId);
-                require.using("There must be one input IOU.", groups.get(0).getInputs().size() > 0);
+                IOUState firstOutput = firstOutputIOU(tx);
+                require.using("At least one IOU should be transferred.", firstOutput != null);
+                require.using("Each transferred IOU must have one output state.", tx.getInputs().size() == tx.getOutputs().size());
+
+                PublicKey newLenderKey = firstOutput.lender.getOwningKey();
+                Set<PublicKey> requiredSigners = new HashSet<>();
+                requiredSigners.add(newLenderKey);
+
+                // Index the input IOUs by linearId, collecting the borrowers and old lenders as signers.
+                Map<UniqueIdentifier, IOUState> inputsById = new HashMap<>();
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    ContractState input = tx.getInputs().get(i).getState().getData();
+                    require.using("Only IOUs may be transferred.", input instanceof IOUState);
+
+                    IOUState inputIOU = (IOUState) input;
+                    require.using("Each IOU may only be transferred once.", inputsById.put(inputIOU.getLinearId(), inputIOU) == null);
+                    requiredSigners.add(inputIOU.lender.getOwningKey());
+                    requiredSigners.add(inputIOU.borrower.getOwningKey());
+                }
+
+                // Pair each output IOU with the input IOU that has the same linearId.
+                Set<UniqueIdentifier> transferred = new HashSet<>();
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    ContractState output = tx.getOutputs().get(i).getData();
+                    require.using("Only IOUs may be transferred.", output instanceof IOUState);
+
+                    IOUState outputIOU = (IOUState) output;
+                    IOUState inputIOU = inputsById.get(outputIOU.getLinearId());
+                    require.using("Each output IOU must have a matching input IOU.", inputIOU != null);
+                    require.using("Each IOU may only have one output IOU.", transferred.add(outputIOU.getLinearId()));
+                    require.using("Only the lender property may change.",
+                            outputIOU.amount.equals(inputIOU.amount) && outputIOU.borrower.equals(inputIOU.borrower) && outputIOU.paid.equals(inputIOU.paid));
+                    require.using("All IOUs in a batch must be transferred to the same new lender.", outputIOU.lender.getOwningKey().equals(newLenderKey));
+                    require.using("The lender property must change in a transfer.", !inputIOU.lender.getOwningKey().equals(newLenderKey));
+                    require.using("The new lender cannot be the borrower.", !inputIOU.borrower.getOwningKey().equals(newLenderKey));
+                }
 
-                // Check that there are output cash states.
-                List<Cash.State> allOutputCash = tx.outputsOfType(Cash.State.class);
-                require.using("There must be output cash.", !allOutputCash.isEmpty());
+                require.using("The borrowers, old lenders and new lender only must sign an IOU batch transfer transaction.",
+                        new HashSet<>(command.getSigners()).equals(requiredSigners));
 
-                // Check that there is only one group of input IOU's
-                List<LedgerTransaction.InOutGroup<IOUState, UniqueIdentifier>> allGroupStates = tx.groupStates(IOUState.class, IOUState::getLinearId);
-                require.using("List has more than one element.", allGroupStates.size() < 2);
+                return null;
+            });
 
-                IOUState inputIOU = tx.inputsOfType(IOUState.class).get(0);
-                Amount<Currency> inputAmount = inputIOU.amount;
+        }
 
-                // check that the output cash is being assigned to the lender
-                Party lenderIdentity = inputIOU.lender;
-                List<Cash.State> acceptableCash = allOutputCash.stream().filter(cash -> cash.getOwner().getOwningKey().equals(lenderIdentity.getOwningKey())).collect(Collectors.toList());
+        else if (commandData instanceof Commands.Settle) {
 
-                require.using("There must be output cash paid to the recipient.", acceptableCash.size() > 0);
+            requireThat(require -> {
 
-                // Sum the acceptable cash sent to the lender
-                Amount<Currency> acceptableCashSum = new Amount<>(0, inputAmount.getToken());
-                for (Cash.State cash: acceptableCash) {
-                    Amount<Currency> addCash = new Amount<>(cash.getAmount().getQuantity(), cash.getAmount().getToken().getProduct());
-                    acceptableCashSum = acceptableCashSum.plus(addCash);
+                // Check there is always an input IOU.
+                IOUState inputIOU = firstInputIOU(tx);
+                require.using("There must be one input IOU.", inputIOU != null);
+
+                // Check that there are output cash states, and count the output IOUs as we go.
+                boolean hasOutputCash = false;
+                int outputIOUCount = 0;
+                IOUState outputIOU = null;
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    ContractState output = tx.getOutputs().get(i).getData();
+                    if (output instanceof Cash.State) {
+                        hasOutputCash = true;
+                    } else if (output instanceof IOUState) {
+                        if (outputIOUCount++ == 0) outputIOU = (IOUState) output;
+                    }
                 }
+                require.using("There must be output cash.", hasOutputCash);
+
+                // Check that there is only one group of IOUs, i.e. every IOU shares the input IOU's linearId.
+                require.using("List has more than one element.", allIOUsHaveLinearId(tx, inputIOU.getLinearId()));
 
-                Amount<Currency> amountOutstanding = inputIOU.amount.minus(inputIOU.paid);
-                require.using("The amount settled cannot be more than the amount outstanding.", amountOutstanding.getQuantity() >= acceptableCashSum.getQuantity());
+                // Sum the cash sent to the lender, checking the output cash is in the IOU's currency.
+                Currency currency = inputIOU.amount.getToken();
+                PublicKey lenderKey = inputIOU.lender.getOwningKey();
+                long acceptableCashSum = sumCashPaidTo(tx, lenderKey, currency);
 
-                if (amountOutstanding.equals(acceptableCashSum)) {
+                require.using("There must be output cash paid to the recipient.", acceptableCashSum > 0);
+
+                requireSameToken(currency, inputIOU.paid.getToken());
+                long amountOutstanding = inputIOU.amount.getQuantity() - inputIOU.paid.getQuantity();
+                require.using("The amount settled cannot be more than the amount outstanding.", amountOutstanding >= acceptableCashSum);
+
+                if (amountOutstanding == acceptableCashSum) {
                     // If the IOU has been fully settled then there should be no IOU output state.
-                    require.using("There must be no output IOU as it has been fully settled.", tx.outputsOfType(IOUState.class).isEmpty());
+                    require.using("There must be no output IOU as it has been fully settled.", outputIOUCount == 0);
 
                 } else {
                     // If the IOU has been partially settled then it should still exist.
-                    require.using("There must be one output IOU.", tx.outputsOfType(IOUState.class).size() == 1);
+                    require.using("There must be one output IOU.", outputIOUCount == 1);
+
+                    require.using("The amount may not change when settling.", inputIOU.amount.equals(outputIOU.amount));
+                    require.using("The lender may not change when settling.", inputIOU.lender.equals(outputIOU.lender));
+                    require.using("The borrower may not change when settling.", inputIOU.borrower.equals(outputIOU.borrower));
+                }
+
+                require.using("Both lender and borrower must sign IOU settle transaction.",
+                        isSignedByExactly(command.getSigners(), lenderKey, inputIOU.borrower.getOwningKey()));
+
+                return null;
+            });
+
+        }
+
+        else if (commandData instanceof Commands.SettleBatch) {
+
+            requireThat(require -> {
 
-                    IOUState outputIOU = tx.outputsOfType(IOUState.class).get(0);
+                // Check there is at least one input IOU, and take the lender, borrower and currency from it.
+                IOUState firstInput = firstInputIOU(tx);
+                require.using("There must be at least one input IOU.", firstInput != null);
+
+                PublicKey lenderKey = firstInput.lender.getOwningKey();
+                PublicKey borrowerKey = firstInput.borrower.getOwningKey();
+                Currency currency = firstInput.amount.getToken();
+
+                // Index the input IOUs by linearId, checking they all share the lender, borrower and currency.
+                Map<UniqueIdentifier, IOUState> inputsById = new HashMap<>();
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    ContractState input = tx.getInputs().get(i).getState().getData();
+                    if (!(input instanceof IOUState)) continue;
+
+                    IOUState inputIOU = (IOUState) input;
+                    require.using("All settled IOUs must have the same lender.", inputIOU.lender.getOwningKey().equals(lenderKey));
+                    require.using("All settled IOUs must have the same borrower.", inputIOU.borrower.getOwningKey().equals(borrowerKey));
+                    require.using("All settled IOUs must be in the same currency.",
+                            inputIOU.amount.getToken().equals(currency) && inputIOU.paid.getToken().equals(currency));
+                    require.using("Each IOU may only be settled once.", inputsById.put(inputIOU.getLinearId(), inputIOU) == null);
+                }
 
+                // Every output IOU is the partially settled remainder of an input IOU. Inputs without an output are
+                // fully settled.
+                long totalPayments = 0;
+                Set<UniqueIdentifier> partiallySettled = new HashSet<>();
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    ContractState output = tx.getOutputs().get(i).getData();
+                    if (!(output instanceof IOUState)) continue;
+
+                    IOUState outputIOU = (IOUState) output;
+                    IOUState inputIOU = inputsById.get(outputIOU.getLinearId());
+                    require.using("Each output IOU must have a matching input IOU.", inputIOU != null);
+                    require.using("Each IOU may only have one output IOU.", partiallySettled.add(outputIOU.getLinearId()));
                     require.using("The amount may not change when settling.", inputIOU.amount.equals(outputIOU.amount));
                     require.using("The lender may not change when settling.", inputIOU.lender.equals(outputIOU.lender));
                     require.using("The borrower may not change when settling.", inputIOU.borrower.equals(outputIOU.borrower));
+                    require.using("The paid amount must be in the IOU's currency.", outputIOU.paid.getToken().equals(currency));
+
+                    long payment = outputIOU.paid.getQuantity() - inputIOU.paid.getQuantity();
+                    require.using("Each partially settled IOU must be paid a positive amount.", payment > 0);
+                    require.using("A partially settled IOU must have an amount outstanding.", outputIOU.paid.getQuantity() < outputIOU.amount.getQuantity());
+                    totalPayments = Math.addExact(totalPayments, payment);
+                }
+
+                for (IOUState inputIOU : inputsById.values()) {
+                    if (!partiallySettled.contains(inputIOU.getLinearId())) {
+                        totalPayments = Math.addExact(totalPayments, inputIOU.amount.getQuantity() - inputIOU.paid.getQuantity());
+                    }
+                }
+
+                // Check the cash paid to the lender matches the summed payments.
+                long cashPaid = sumCashPaidTo(tx, lenderKey, currency);
+                require.using("There must be output cash paid to the recipient.", cashPaid > 0);
+                require.using("The cash paid to the lender must cover the IOU payments.", cashPaid >= totalPayments);
+                require.using("The cash paid to the lender cannot be more than the IOU payments.", cashPaid <= totalPayments);
+
+                require.using("Both lender and borrower must sign IOU settle transaction.",
+                        isSignedByExactly(command.getSigners(), lenderKey, borrowerKey));
+
+                return null;
+            });
+
+        }
+
+        else if (commandData instanceof Commands.Net) {
+
+            requireThat(require -> {
+
+                require.using("At least one IOU must be netted.", firstInputIOU(tx) != null);
+
+                // Track each party's net position per currency: the amount outstanding to them as lender less the
+                // amount outstanding from them as borrower. Inputs add to the position and outputs take it away again.
+                Map<PublicKey, Map<Currency, Long>> positions = new HashMap<>();
+                Set<PublicKey> participantKeys = new HashSet<>();
+
+                for (int i = 0; i < tx.getInputs().size(); i++) {
+                    ContractState input = tx.getInputs().get(i).getState().getData();
+                    require.using("Only IOUs may be netted.", input instanceof IOUState);
+
+                    IOUState inputIOU = (IOUState) input;
+                    requireSameToken(inputIOU.amount.getToken(), inputIOU.paid.getToken());
+                    long outstanding = inputIOU.amount.getQuantity() - inputIOU.paid.getQuantity();
+                    addPosition(positions, inputIOU.lender.getOwningKey(), inputIOU.amount.getToken(), outstanding);
+                    addPosition(positions, inputIOU.borrower.getOwningKey(), inputIOU.amount.getToken(), -outstanding);
+                    participantKeys.add(inputIOU.lender.getOwningKey());
+                    participantKeys.add(inputIOU.borrower.getOwningKey());
                 }
 
-                Set<PublicKey> listOfParticipantPublicKeys = inputIOU.getParticipants().stream().map(AbstractParty::getOwningKey).collect(Collectors.toSet());
-                List<PublicKey> arrayOfSigners = command.getSigners();
-                Set<PublicKey> setOfSigners = new HashSet<PublicKey>(arrayOfSigners);
-                require.using("Both lender and borrower must sign IOU settle transaction.", setOfSigners.equals(listOfParticipantPublicKeys));
+                for (int i = 0; i < tx.getOutputs().size(); i++) {
+                    ContractState output = tx.getOutputs().get(i).getData();
+                    require.using("Only IOUs may be netted.", output instanceof IOUState);
+
+                    IOUState outputIOU = (IOUState) output;
+                    require.using("A residual IOU must have a positive amount.", outputIOU.amount.getQuantity() > 0);
+                    require.using("A residual IOU must not have been paid.", outputIOU.paid.getQuantity() == 0);
+                    require.using("The lender and borrower cannot have the same identity.", !outputIOU.lender.getOwningKey().equals(outputIOU.borrower.getOwningKey()));
+                    addPosition(positions, outputIOU.lender.getOwningKey(), outputIOU.amount.getToken(), -outputIOU.amount.getQuantity());
+                    addPosition(positions, outputIOU.borrower.getOwningKey(), outputIOU.amount.getToken(), outputIOU.amount.getQuantity());
+                    participantKeys.add(outputIOU.lender.getOwningKey());
+                    participantKeys.add(outputIOU.borrower.getOwningKey());
+                }
+
+                boolean conserved = true;
+                for (Map<Currency, Long> positionsByCurrency : positions.values()) {
+                    for (long position : positionsByCurrency.values()) {
+                        conserved &= position == 0;
+                    }
+                }
+                require.using("Each party's net position must be conserved in every currency.", conserved);
+
+                require.using("Every party to the netted IOUs only must sign an IOU netting transaction.",
+                        new HashSet<>(command.getSigners()).equals(participantKeys));
 
                 return null;
             });
@@ -181,4 +372,92 @@ public class IOUContract implements Contract {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Helpers for the checks above. They iterate the transaction's component lists by index rather than using
+     * [LedgerTransaction.inputsOfType], [LedgerTransaction.getOutputStates] or [LedgerTransaction.groupStates], all of
+     * which build new lists on every call.
+     */
+    private static IOUState firstInputIOU(LedgerTransaction tx) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            ContractState input = tx.getInputs().get(i).getState().getData();
+            if (input instanceof IOUState) return (IOUState) input;
+        }
+        return null;
+    }
+
+    private static IOUState firstOutputIOU(LedgerTransaction tx) {
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            ContractState output = tx.getOutputs().get(i).getData();
+            if (output instanceof IOUState) return (IOUState) output;
+        }
+        return null;
+    }
+
+    private static boolean allIOUsHaveLinearId(LedgerTransaction tx, UniqueIdentifier linearId) {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            ContractState input = tx.getInputs().get(i).getState().getData();
+            if (input instanceof IOUState && !((IOUState) input).getLinearId().equals(linearId)) return false;
+        }
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            ContractState output = tx.getOutputs().get(i).getData();
+            if (output instanceof IOUState && !((IOUState) output).getLinearId().equals(linearId)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sums the cash output to [ownerKey], checking each payment is in [currency].
+     */
+    private static long sumCashPaidTo(LedgerTransaction tx, PublicKey ownerKey, Currency currency) {
+        long sum = 0;
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            ContractState output = tx.getOutputs().get(i).getData();
+            if (output instanceof Cash.State && ((Cash.State) output).getOwner().getOwningKey().equals(ownerKey)) {
+                Amount<Issued<Currency>> cashAmount = ((Cash.State) output).getAmount();
+                requireSameToken(currency, cashAmount.getToken().getProduct());
+                sum = Math.addExact(sum, cashAmount.getQuantity());
+            }
+        }
+        return sum;
+    }
+
+    private static void addPosition(Map<PublicKey, Map<Currency, Long>> positions, PublicKey key, Currency currency, long amount) {
+        positions.computeIfAbsent(key, k -> new HashMap<>()).merge(currency, amount, Math::addExact);
+    }
+
+    private static boolean isBetween(IOUState state, PublicKey first, PublicKey second) {
+        PublicKey lenderKey = state.lender.getOwningKey();
+        PublicKey borrowerKey = state.borrower.getOwningKey();
+        return (lenderKey.equals(first) && borrowerKey.equals(second)) || (lenderKey.equals(second) && borrowerKey.equals(first));
+    }
+
+    /**
+     * Mirrors the check [Amount.plus] and [Amount.minus] make, so a mixed-currency settlement fails with the same
+     * message as before without summing [Amount] objects.
+     */
+    private static void requireSameToken(Currency expected, Currency actual) {
+        if (!expected.equals(actual)) {
+            throw new IllegalArgumentException("Token mismatch: " + actual + " vs " + expected);
+        }
+    }
+
+    /**
+     * Returns true if the distinct keys in [signers] are exactly the given keys. The caller must pass distinct keys.
+     */
+    private static boolean isSignedByExactly(List<PublicKey> signers, PublicKey first, PublicKey second) {
+        for (int i = 0; i < signers.size(); i++) {
+            PublicKey signer = signers.get(i);
+            if (!signer.equals(first) && !signer.equals(second)) return false;
+        }
+        return signers.contains(first) && signers.contains(second);
+    }
+
+    private static boolean isSignedByExactly(List<PublicKey> signers, PublicKey first, PublicKey second, PublicKey third) {
+        for (int i = 0; i < signers.size(); i++) {
+            PublicKey signer = signers.get(i);
+            if (!signer.equals(first) && !signer.equals(second) && !signer.equals(third)) return false;
+        }
+        return signers.contains(first) && signers.contains(second) && signers.contains(third);
+    }
+
+}
@@ -0,0 +1,167 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.training.service.FinalityDistributionService;
+
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * An alternative to the [FinalityFlow] for the IOU flows' opt-in asynchronous finality mode.
+ *
+ * The transaction is notarised (if required) and recorded locally, and then returned straight away. Sending it to the
+ * counterparties is handed off to a separate [DistributeFlow] for each of them, so the caller no longer waits for the
+ * slowest counterparty to record the transaction, and an unreachable counterparty holds up only its own flow.
+ *
+ * Counterparties learn which mode the initiator is using from a flag sent with [sendMode] before signatures are
+ * collected, and read with [receiveMode]. In asynchronous mode the responder returns once it has signed, and the
+ * transaction is recorded by the [DistributeResponder] instead of the [ReceiveFinalityFlow].
+ */
+public class AsyncFinalityFlow extends FlowLogic<SignedTransaction> {
+    private final SignedTransaction stx;
+    private final List<FlowSession> sessions;
+
+    public AsyncFinalityFlow(SignedTransaction stx, List<FlowSession> sessions) {
+        this.stx = stx;
+        this.sessions = sessions;
+    }
+
+    @Suspendable
+    @Override
+    public SignedTransaction call() throws FlowException {
+        // 1. Check the transaction is valid before asking the notary to sign it.
+        stx.verify(getServiceHub(), false);
+
+        // 2. Notarise the transaction, if it consumes states or has a time window.
+        SignedTransaction notarised = subFlow(new NotariseFlow(stx));
+
+        // 3. Record it ourselves, then hand the distribution to the counterparties over to a separate flow.
+        getServiceHub().recordTransactions(StatesToRecord.ONLY_RELEVANT, ImmutableList.of(notarised));
+        List<Party> recipients = sessions.stream().map(FlowSession::getCounterparty).collect(Collectors.toList());
+        getServiceHub().cordaService(FinalityDistributionService.class).distribute(notarised, recipients);
+        return notarised;
+    }
+
+    /**
+     * Tells each of [sessions] whether the initiator will use asynchronous finality, and returns whether it will.
+     * Counterparties whose flow version is older than [sinceVersion] don't read the flag and always use the
+     * [ReceiveFinalityFlow], so they aren't sent it, and asynchronous finality is only used if none of them is that old.
+     */
+    @Suspendable
+    public static boolean sendMode(List<FlowSession> sessions, boolean asyncFinality, int sinceVersion) throws FlowException {
+        List<FlowSession> current = new ArrayList<>();
+        for (FlowSession session : sessions) {
+            if (session.getCounterpartyFlowInfo().getFlowVersion() >= sinceVersion) {
+                current.add(session);
+            }
+        }
+        boolean useAsyncFinality = asyncFinality && current.size() == sessions.size();
+        for (FlowSession session : current) {
+            session.send(useAsyncFinality);
+        }
+        return useAsyncFinality;
+    }
+
+    /**
+     * Reads the flag sent by [sendMode], if the initiator's flow version is at least [sinceVersion]. Older initiators
+     * always use the [FinalityFlow].
+     */
+    @Suspendable
+    public static boolean receiveMode(FlowSession session, int sinceVersion) throws FlowException {
+        if (session.getCounterpartyFlowInfo().getFlowVersion() < sinceVersion) {
+            return false;
+        }
+        return session.receive(Boolean.class).unwrap(asyncFinality -> asyncFinality);
+    }
+
+    /**
+     * Sends a notarised transaction to its [recipient], retrying with exponential backoff if the recipient refuses it
+     * or fails to record it, and logging it after [MAX_ATTEMPTS] failures. An unreachable recipient isn't a failure:
+     * the node's messaging layer keeps the messages until the recipient is back, and this flow waits until then.
+     */
+    @InitiatingFlow
+    @StartableByService
+    public static class DistributeFlow extends FlowLogic<Void> {
+        private static final int MAX_ATTEMPTS = 5;
+        private static final Duration FIRST_BACKOFF = Duration.ofSeconds(1);
+
+        private final SignedTransaction stx;
+        private final Party recipient;
+
+        public DistributeFlow(SignedTransaction stx, Party recipient) {
+            this.stx = stx;
+            this.recipient = recipient;
+        }
+
+        @Suspendable
+        @Override
+        public Void call() throws FlowException {
+            Duration backoff = FIRST_BACKOFF;
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    FlowSession session = initiateFlow(recipient);
+                    subFlow(new SendTransactionFlow(session, stx));
+                    // Wait for the recipient to confirm it has recorded the transaction.
+                    session.receive(Boolean.class).unwrap(recorded -> recorded);
+                    return null;
+                } catch (FlowException | UnexpectedFlowEndException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        getLogger().error("Giving up sending transaction " + stx.getId() + " to " + recipient + ".", e);
+                        return null;
+                    }
+                    getLogger().warn("Failed to send transaction " + stx.getId() + " to " + recipient + ", retrying in " + backoff + ".", e);
+                    sleep(backoff);
+                    backoff = backoff.multipliedBy(2);
+                }
+            }
+        }
+    }
+
+    /**
+     * This is the flow which records a transaction sent by the [DistributeFlow]. The transaction must be fully signed,
+     * including by the notary, and only the states relevant to us are recorded.
+     *
+     * Only a transaction carrying a valid signature by one of our own keys is accepted, which is proof that one of the
+     * IOU responder flows agreed to it; any other is refused before anything is recorded. The check needs nothing but
+     * the transaction, so it holds across restarts of either node and however many transactions are outstanding.
+     */
+    @InitiatedBy(DistributeFlow.class)
+    public static class DistributeResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession otherPartyFlow;
+
+        public DistributeResponder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            SignedTransaction stx = subFlow(new ReceiveTransactionFlow(otherPartyFlow, true, StatesToRecord.ONLY_RELEVANT) {
+                @Override
+                protected void checkBeforeRecording(SignedTransaction stx) {
+                    Set<PublicKey> ourKeys = StreamSupport.stream(getServiceHub().getKeyManagementService().filterMyKeys(
+                            stx.getSigs().stream().map(TransactionSignature::getBy).collect(Collectors.toList())).spliterator(), false)
+                            .collect(Collectors.toSet());
+                    boolean signedByUs = stx.getSigs().stream()
+                            .anyMatch(sig -> ourKeys.contains(sig.getBy()) && sig.isValid(stx.getId()));
+                    if (!signedByUs) {
+                        throw new IllegalArgumentException("We didn't sign transaction " + stx.getId() + ".");
+                    }
+                }
+            });
+            otherPartyFlow.send(true);
+            return stx;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Amount;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.training.service.CashBalanceService;
+
+import java.util.Currency;
+import java.util.Map;
+
+/**
+ * Returns the node's cash balance in each currency from the [CashBalanceService], for RPC clients such as the web API.
+ */
+@StartableByRPC
+public class CashBalancesFlow extends FlowLogic<Map<Currency, Amount<Currency>>> {
+
+    @Suspendable
+    @Override
+    public Map<Currency, Amount<Currency>> call() throws FlowException {
+        return getServiceHub().cordaService(CashBalanceService.class).balances();
+    }
+}
@@ -0,0 +1,167 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.schemas.CashSchemaV1;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/**
+ * This is the flow which merges the node's small cash states in one currency into a few large ones. Partial settlements
+ * leave lenders holding many small payment and change states, which slows down coin selection and makes later spends
+ * larger, so they are periodically folded back together.
+ *
+ * Every unconsumed, unlocked cash state we own in [currency] worth less than [threshold] is a candidate. Candidates are
+ * grouped by notary and issuer, since states with a different notary can't be spent together and cash from different
+ * issuers isn't fungible. Each group of two or more is moved to ourselves as a single state, in transactions of at most
+ * [maxInputsPerTransaction] inputs. No other party needs to sign.
+ * The flow returns a [Result] describing what was merged.
+ */
+@InitiatingFlow
+@StartableByRPC
+public class CashConsolidationFlow extends FlowLogic<CashConsolidationFlow.Result> {
+    public static final int DEFAULT_MAX_INPUTS_PER_TRANSACTION = 500;
+    private static final int MAX_CANDIDATES = 10_000;
+
+    private final Currency currency;
+    private final Amount<Currency> threshold;
+    private final int maxInputsPerTransaction;
+
+    public CashConsolidationFlow(Currency currency, Amount<Currency> threshold) {
+        this(currency, threshold, DEFAULT_MAX_INPUTS_PER_TRANSACTION);
+    }
+
+    public CashConsolidationFlow(Currency currency, Amount<Currency> threshold, int maxInputsPerTransaction) {
+        this.currency = currency;
+        this.threshold = threshold;
+        this.maxInputsPerTransaction = maxInputsPerTransaction;
+    }
+
+    @Suspendable
+    @Override
+    public Result call() throws FlowException {
+        if (!threshold.getToken().equals(currency)) {
+            throw new IllegalArgumentException("The threshold must be in the currency being consolidated.");
+        } else if (maxInputsPerTransaction < 2) {
+            throw new IllegalArgumentException("At least two inputs per transaction are needed to merge cash states.");
+        }
+
+        // 1. Find the unlocked cash states in this currency below the threshold, smallest first.
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()))
+                .and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.equal(getField("currency", CashSchemaV1.PersistentCashState.class), currency.getCurrencyCode())))
+                .and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.lessThan(getField("pennies", CashSchemaV1.PersistentCashState.class), threshold.getQuantity())));
+        Sort bySize = new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Custom(CashSchemaV1.PersistentCashState.class, "pennies"), Sort.Direction.ASC)));
+        List<StateAndRef<Cash.State>> candidates = getServiceHub().getVaultService()
+                .queryBy(Cash.State.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, MAX_CANDIDATES), bySize)
+                .getStates();
+
+        // 2. Group the states we own by notary and issuer.
+        Party me = getOurIdentity();
+        Map<Party, Map<Issued<Currency>, List<StateAndRef<Cash.State>>>> groups = new LinkedHashMap<>();
+        for (StateAndRef<Cash.State> candidate : candidates) {
+            Cash.State cash = candidate.getState().getData();
+            if (!cash.getOwner().getOwningKey().equals(me.getOwningKey())) continue;
+            groups.computeIfAbsent(candidate.getState().getNotary(), notary -> new LinkedHashMap<>())
+                    .computeIfAbsent(cash.getAmount().getToken(), token -> new ArrayList<>())
+                    .add(candidate);
+        }
+
+        // 3. Merge each group in transactions of at most maxInputsPerTransaction inputs.
+        int statesMerged = 0;
+        int statesCreated = 0;
+        List<Integer> transactionSizes = new ArrayList<>();
+        for (Map.Entry<Party, Map<Issued<Currency>, List<StateAndRef<Cash.State>>>> byNotary : groups.entrySet()) {
+            for (List<StateAndRef<Cash.State>> group : byNotary.getValue().values()) {
+                for (int from = 0; group.size() - from >= 2; from += maxInputsPerTransaction) {
+                    List<StateAndRef<Cash.State>> inputs = group.subList(from, Math.min(from + maxInputsPerTransaction, group.size()));
+                    SignedTransaction stx = merge(byNotary.getKey(), inputs, me);
+                    statesMerged += inputs.size();
+                    statesCreated += 1;
+                    transactionSizes.add(stx.getTxBits().getSize());
+                }
+            }
+        }
+        return new Result(statesMerged, statesCreated, transactionSizes);
+    }
+
+    /**
+     * Moves [inputs], which share a notary and issuer, to a single cash state owned by [me].
+     */
+    @Suspendable
+    private SignedTransaction merge(Party notary, List<StateAndRef<Cash.State>> inputs, Party me) throws FlowException {
+        // Reserve the states so that a concurrent spend doesn't select them too.
+        List<StateRef> refs = inputs.stream().map(StateAndRef::getRef).collect(Collectors.toList());
+        getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.copyOf(refs));
+
+        long total = 0;
+        TransactionBuilder tb = new TransactionBuilder(notary);
+        for (StateAndRef<Cash.State> input : inputs) {
+            tb.addInputState(input);
+            total = Math.addExact(total, input.getState().getData().getAmount().getQuantity());
+        }
+        Issued<Currency> token = inputs.get(0).getState().getData().getAmount().getToken();
+        tb.addOutputState(new Cash.State(new Amount<>(total, token), me), Cash.PROGRAM_ID);
+        tb.addCommand(new Cash.Commands.Move(), me.getOwningKey());
+
+        tb.verify(getServiceHub());
+        SignedTransaction stx = getServiceHub().signInitialTransaction(tb);
+        return subFlow(new FinalityFlow(stx, Collections.<FlowSession>emptyList()));
+    }
+
+    /**
+     * The outcome of a consolidation:
+     * - [statesMerged] The number of cash states consumed.
+     * - [statesCreated] The number of cash states they were merged into, one per transaction.
+     * - [transactionSizes] The serialised size in bytes of each consolidation transaction.
+     */
+    @CordaSerializable
+    public static class Result {
+        private final int statesMerged;
+        private final int statesCreated;
+        private final List<Integer> transactionSizes;
+
+        public Result(int statesMerged, int statesCreated, List<Integer> transactionSizes) {
+            this.statesMerged = statesMerged;
+            this.statesCreated = statesCreated;
+            this.transactionSizes = transactionSizes;
+        }
+
+        public int getStatesMerged() {
+            return statesMerged;
+        }
+
+        public int getStatesCreated() {
+            return statesCreated;
+        }
+
+        public List<Integer> getTransactionSizes() {
+            return transactionSizes;
+        }
+
+        @Override
+        public String toString() {
+            return "Merged " + statesMerged + " cash states into " + statesCreated + " in transactions of " + transactionSizes + " bytes.";
+        }
+    }
+}
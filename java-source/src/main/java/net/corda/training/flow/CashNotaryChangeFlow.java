@@ -0,0 +1,90 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableSet;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.AbstractStateReplacementFlow;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.NotaryChangeFlow;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.schemas.CashSchemaV1;
+import net.corda.training.service.CashBalanceService;
+
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.getField;
+
+/**
+ * This is the flow which makes sure we hold at least [amount] of cash with [notary], so that a transaction notarised by
+ * [notary] can spend it. The settle flows run it before selecting cash, because they must use the notary of the IOU
+ * being settled while the [NotarySelectionService] may have issued our cash with other notaries.
+ *
+ * If the cash held with [notary] falls short, our unlocked cash states in the same currency held with other notaries
+ * are moved to [notary] with the [NotaryChangeFlow], largest first, until it covers [amount]. Only we own the states, so
+ * no other party needs to sign. The flow fails without moving anything if we don't hold [amount] in total.
+ */
+public class CashNotaryChangeFlow extends FlowLogic<Void> {
+    private static final int MAX_CANDIDATES = 1_000;
+
+    private final Amount<Currency> amount;
+    private final Party notary;
+
+    public CashNotaryChangeFlow(Amount<Currency> amount, Party notary) {
+        this.amount = amount;
+        this.notary = notary;
+    }
+
+    @Suspendable
+    @Override
+    public Void call() throws FlowException {
+        CashBalanceService balances = getServiceHub().cordaService(CashBalanceService.class);
+        Currency currency = amount.getToken();
+        long held = balances.balance(currency, notary).getQuantity();
+        if (held >= amount.getQuantity()) {
+            return null;
+        }
+        if (balances.balance(currency).getQuantity() < amount.getQuantity()) {
+            throw new IllegalArgumentException("Borrower doesn't have enough cash to settle with the amount specified.");
+        }
+
+        // 1. Find our unlocked cash in this currency, largest first, so that as few states as possible are moved.
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED, null, null, null,
+                new QueryCriteria.SoftLockingCondition(QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()))
+                .and(new QueryCriteria.VaultCustomQueryCriteria(
+                        Builder.equal(getField("currency", CashSchemaV1.PersistentCashState.class), currency.getCurrencyCode())));
+        Sort bySizeDescending = new Sort(ImmutableSet.of(new Sort.SortColumn(
+                new SortAttribute.Custom(CashSchemaV1.PersistentCashState.class, "pennies"), Sort.Direction.DESC)));
+        List<StateAndRef<Cash.State>> candidates = getServiceHub().getVaultService()
+                .queryBy(Cash.State.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, MAX_CANDIDATES), bySizeDescending)
+                .getStates();
+
+        // 2. Move the states held with other notaries until the cash held with ours covers the amount. Each state is
+        // reserved first so that a concurrent spend doesn't select it while its notary is being changed.
+        for (StateAndRef<Cash.State> candidate : candidates) {
+            if (held >= amount.getQuantity()) {
+                break;
+            }
+            Cash.State cash = candidate.getState().getData();
+            if (candidate.getState().getNotary().equals(notary) || !cash.getOwner().getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                continue;
+            }
+            getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.of(candidate.getRef()));
+            subFlow(new NotaryChangeFlow<>(candidate, notary, AbstractStateReplacementFlow.Instigator.Companion.tracker()));
+            held = Math.addExact(held, cash.getAmount().getQuantity());
+        }
+
+        if (held < amount.getQuantity()) {
+            throw new IllegalArgumentException("Not enough unlocked cash could be moved to the notary " + notary + " to settle with.");
+        }
+        return null;
+    }
+}
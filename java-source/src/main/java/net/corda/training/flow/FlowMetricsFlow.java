@@ -0,0 +1,22 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.training.service.FlowMetricsService;
+
+import java.util.Map;
+
+/**
+ * Returns the latency of each IOU flow step recorded by the [FlowMetricsService], for RPC clients such as the web API.
+ */
+@StartableByRPC
+public class FlowMetricsFlow extends FlowLogic<Map<String, FlowMetricsService.StepLatency>> {
+
+    @Suspendable
+    @Override
+    public Map<String, FlowMetricsService.StepLatency> call() throws FlowException {
+        return getServiceHub().cordaService(FlowMetricsService.class).snapshot();
+    }
+}
@@ -0,0 +1,47 @@
+package net.corda.training.flow;
+
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.service.FlowMetricsService;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Moves a flow through its [ProgressTracker] steps and records how long each step took in the [FlowMetricsService].
+ *
+ * A step is timed from the call to [step] that starts it until the next call to [step] or [finish]. The timer only
+ * holds the current step's label and start time, so it is safe to keep in a flow field across checkpoints.
+ */
+public class FlowStepTimer {
+    private final String flowName;
+    private String currentStep;
+    private Instant stepStarted;
+
+    public FlowStepTimer(Class<?> flowClass) {
+        this.flowName = flowClass.getName().substring(flowClass.getName().lastIndexOf('.') + 1).replace('$', '.');
+    }
+
+    /**
+     * Ends the current step, if any, and starts [step], updating the [flow]'s progress tracker if it has one.
+     */
+    public void step(FlowLogic<?> flow, ProgressTracker.Step step) {
+        finish(flow);
+        if (flow.getProgressTracker() != null) {
+            flow.getProgressTracker().setCurrentStep(step);
+        }
+        currentStep = step.getLabel().endsWith(".") ? step.getLabel().substring(0, step.getLabel().length() - 1) : step.getLabel();
+        stepStarted = flow.getServiceHub().getClock().instant();
+    }
+
+    /**
+     * Ends the current step, if any.
+     */
+    public void finish(FlowLogic<?> flow) {
+        if (currentStep != null) {
+            Duration duration = Duration.between(stepStarted, flow.getServiceHub().getClock().instant());
+            flow.getServiceHub().cordaService(FlowMetricsService.class).record(flowName, currentStep, duration);
+            currentStep = null;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package net.corda.training.flow;
+
+import net.corda.core.utilities.ProgressTracker;
+
+/**
+ * The [ProgressTracker] steps shared by the IOU flows. Each flow declares the steps only it goes through, such as
+ * generating its own kind of transaction, itself. The labels also name the [FlowStepTimer] metrics, so steps that do the
+ * same thing in different flows are reported under the same step name.
+ */
+public final class IOUFlowSteps {
+    // The initiators' steps.
+    public static final ProgressTracker.Step QUERYING = new ProgressTracker.Step("Retrieving the IOU from the vault.");
+    public static final ProgressTracker.Step QUERYING_IOUS = new ProgressTracker.Step("Retrieving the IOUs from the vault.");
+    public static final ProgressTracker.Step VERIFYING = new ProgressTracker.Step("Verifying the transaction.");
+    public static final ProgressTracker.Step SIGNING = new ProgressTracker.Step("Signing the transaction.");
+    public static final ProgressTracker.Step FINALISING = new ProgressTracker.Step("Notarising and recording the transaction.");
+
+    // The responders' steps.
+    public static final ProgressTracker.Step CHECKING = new ProgressTracker.Step("Checking and signing the transaction.");
+    public static final ProgressTracker.Step RECORDING = new ProgressTracker.Step("Recording the transaction.");
+
+    private IOUFlowSteps() {
+    }
+}
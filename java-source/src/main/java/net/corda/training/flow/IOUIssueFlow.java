@@ -1,23 +1,43 @@
 package net.corda.training.flow;
 
 import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
 import net.corda.core.utilities.ProgressTracker;
 
 import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IdempotencyKeySchemaV1.PersistentIdempotencyKey;
+import net.corda.training.service.IdempotencyKeyService;
+import net.corda.training.service.NotarySelectionService;
 import net.corda.training.state.IOUState;
 import static net.corda.training.contract.IOUContract.Commands.*;
+import static net.corda.training.flow.IOUFlowSteps.VERIFYING;
+import static net.corda.training.flow.IOUFlowSteps.SIGNING;
+import static net.corda.training.flow.IOUFlowSteps.FINALISING;
+import static net.corda.training.flow.IOUFlowSteps.CHECKING;
+import static net.corda.training.flow.IOUFlowSteps.RECORDING;
 
 /**
  * This is the flow which handles issuance of new IOUs on the ledger.
@@ -27,20 +47,84 @@ import static net.corda.training.contract.IOUContract.Commands.*;
  */
 public class IOUIssueFlow {
 
-    @InitiatingFlow(version = 2)
+    @InitiatingFlow(version = 3)
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU issuance transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the counterparty's signature.");
+
         private final IOUState state;
+        private final boolean asyncFinality;
+        private final String idempotencyKey;
+        private final ProgressTracker progressTracker = new ProgressTracker(GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(InitiatorFlow.class);
+
         public InitiatorFlow(IOUState state) {
+            this(state, false);
+        }
+
+        /**
+         * With [asyncFinality] the flow returns as soon as the transaction is recorded locally, and the counterparty
+         * receives it from the [AsyncFinalityFlow.DistributeFlow].
+         */
+        public InitiatorFlow(IOUState state, boolean asyncFinality) {
+            this(state, asyncFinality, null);
+        }
+
+        /**
+         * A non-null [idempotencyKey] is reserved with the [IdempotencyKeyService] and recorded as the external id of
+         * the IOU's [UniqueIdentifier], whose id is derived from the key. If we already issued an IOU with the same key,
+         * the flow returns the transaction that issued it instead of issuing another, so a client that lost the response
+         * to a request can safely retry it. A flow started while another is still issuing with the same key fails
+         * without issuing, unless the other flow's lease on the key has run out, in which case it takes the key over.
+         */
+        public InitiatorFlow(IOUState state, boolean asyncFinality, String idempotencyKey) {
             this.state = state;
+            this.asyncFinality = asyncFinality;
+            this.idempotencyKey = idempotencyKey;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
-            // Step 1. Get a reference to the notary service on our network and our key pair.
-            // Note: ongoing work to support multiple notary identities is still in progress.
-            final Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            timer.step(this, GENERATING);
+            if (idempotencyKey == null) {
+                SignedTransaction result = issue(this.state);
+                timer.finish(this);
+                return result;
+            }
+
+            // Step 0. Reserve the idempotency key before building anything. If the request has already been served,
+            // return the transaction that served it, and if another flow is serving it, leave it to that flow.
+            final UUID flowId = getRunId().getUuid();
+            final IdempotencyKeyService idempotencyKeys = getServiceHub().cordaService(IdempotencyKeyService.class);
+            final IOUState keyed = this.state.withLinearId(
+                    new UniqueIdentifier(idempotencyKey, idempotencyKeys.linearIdFor(idempotencyKey)));
+            final PersistentIdempotencyKey reservation = idempotencyKeys.reserve(idempotencyKey, keyed, flowId);
+            SignedTransaction existing = findIssuance(reservation.getLinearId());
+            if (existing != null) {
+                timer.finish(this);
+                return existing;
+            }
+            if (!reservation.getFlowId().equals(flowId)) {
+                throw new FlowException("An IOU with the idempotency key " + idempotencyKey
+                        + " is already being issued. Retry after " + idempotencyKeys.leaseExpiry(reservation) + ".");
+            }
+            SignedTransaction result = issue(keyed);
+            timer.finish(this);
+            return result;
+        }
+
+        @Suspendable
+        private SignedTransaction issue(IOUState state) throws FlowException {
+            // Step 1. Choose a notary for the new IOU using the node's notary selection strategy.
+            final NotarySelectionService notarySelection = getServiceHub().cordaService(NotarySelectionService.class);
+            final Party notary = notarySelection.selectNotary(state.getLinearId());
 
             // Step 2. Create a new issue command.
             // Remember that a command is a CommandData object and a list of CompositeKeys
@@ -58,11 +142,14 @@ public class IOUIssueFlow {
 
 
             // Step 5. Verify and sign it with our KeyPair.
+            timer.step(this, VERIFYING);
             builder.verify(getServiceHub());
+            timer.step(this, SIGNING);
             final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
 
 
             // Step 6. Collect the other party's signature using the SignTransactionFlow.
+            timer.step(this, COLLECTING);
             List<Party> otherParties = state.getParticipants()
                     .stream().map(el -> (Party)el)
                     .collect(Collectors.toList());
@@ -73,10 +160,39 @@ public class IOUIssueFlow {
                     .stream().map(el -> initiateFlow(el))
                     .collect(Collectors.toList());
 
+            boolean useAsyncFinality = AsyncFinalityFlow.sendMode(sessions, asyncFinality, 3);
             SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
 
-            // Step 7. Assuming no exceptions, we can now finalise the transaction
-            return subFlow(new FinalityFlow(stx, sessions));
+            // Step 7. Assuming no exceptions, we can now finalise the transaction, provided we still hold the
+            // idempotency key. A flow which took so long that its lease ran out may have been replaced by a retry.
+            timer.step(this, FINALISING);
+            if (idempotencyKey != null && !getServiceHub().cordaService(IdempotencyKeyService.class)
+                    .renew(idempotencyKey, getRunId().getUuid())) {
+                throw new FlowException("The lease on the idempotency key " + idempotencyKey + " ran out and was taken"
+                        + " over by a retry.");
+            }
+            return useAsyncFinality
+                    ? subFlow(new AsyncFinalityFlow(stx, sessions))
+                    : subFlow(new FinalityFlow(stx, sessions));
+        }
+
+        /**
+         * Returns the transaction that issued the IOU with the given [linearId], or null if there isn't one. The IOU may
+         * since have been transferred or settled.
+         */
+        @Suspendable
+        private SignedTransaction findIssuance(UUID linearId) {
+            QueryCriteria criteria = new QueryCriteria.LinearStateQueryCriteria(
+                    null, ImmutableList.of(linearId), null, Vault.StateStatus.ALL);
+            Sort byRecordedTime = new Sort(ImmutableSet.of(new Sort.SortColumn(
+                    new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.ASC)));
+            List<StateAndRef<IOUState>> issued = getServiceHub().getVaultService()
+                    .queryBy(IOUState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, 1), byRecordedTime)
+                    .getStates();
+            if (issued.isEmpty()) {
+                return null;
+            }
+            return getServiceHub().getValidatedTransactions().getTransaction(issued.get(0).getRef().getTxhash());
         }
     }
 
@@ -86,17 +202,24 @@ public class IOUIssueFlow {
      */
     @InitiatedBy(IOUIssueFlow.InitiatorFlow.class)
     public static class ResponderFlow extends FlowLogic<SignedTransaction> {
-
         private final FlowSession flowSession;
         private SecureHash txWeJustSigned;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(ResponderFlow.class);
 
         public ResponderFlow(FlowSession flowSession){
             this.flowSession = flowSession;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            final boolean asyncFinality = AsyncFinalityFlow.receiveMode(flowSession, 3);
 
             class SignTxFlow extends SignTransactionFlow {
 
@@ -116,17 +239,160 @@ public class IOUIssueFlow {
                 }
             }
 
-            flowSession.getCounterpartyFlowInfo().getFlowVersion();
+            // Create a sign transaction flow
+            timer.step(this, CHECKING);
+            SignTxFlow signTxFlow = new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker());
+
+            // Run the sign transaction flow to sign the transaction
+            SignedTransaction signedTransaction = subFlow(signTxFlow);
+
+            // With asynchronous finality the transaction is recorded when the AsyncFinalityFlow.DistributeFlow sends it.
+            if (asyncFinality) {
+                timer.finish(this);
+                return signedTransaction;
+            }
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+            timer.finish(this);
+            return recorded;
+
+        }
+    }
+
+    /**
+     * This is the flow which handles issuance of many new IOUs at once. The IOUs are grouped by counterparty and each
+     * group is committed in a single transaction using the [IOUContract.Commands.IssueBatch] command, so issuing N IOUs
+     * to the same counterparty costs one signature round and one notarisation rather than N.
+     * The flow returns the [SignedTransaction]s that were committed to the ledger, one per counterparty.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class BatchInitiatorFlow extends FlowLogic<List<SignedTransaction>> {
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU issuance transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the counterparty's signature.");
+
+        private final List<IOUState> states;
+        private final ProgressTracker progressTracker = new ProgressTracker(GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchInitiatorFlow.class);
+
+        public BatchInitiatorFlow(List<IOUState> states) {
+            this.states = states;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public List<SignedTransaction> call() throws FlowException {
+            // Step 1. Get the node's notary selection service and our identity.
+            final NotarySelectionService notarySelection = getServiceHub().cordaService(NotarySelectionService.class);
+            final Party me = getOurIdentity();
+
+            // Step 2. Group the IOUs by the counterparty, keeping the order they were given in.
+            Map<Party, List<IOUState>> statesByCounterparty = new LinkedHashMap<>();
+            for (IOUState state : states) {
+                Party counterparty;
+                if (state.lender.equals(me)) {
+                    counterparty = state.borrower;
+                } else if (state.borrower.equals(me)) {
+                    counterparty = state.lender;
+                } else {
+                    throw new IllegalArgumentException("We must be the lender or borrower of every IOU in the batch.");
+                }
+                statesByCounterparty.computeIfAbsent(counterparty, key -> new ArrayList<>()).add(state);
+            }
+            List<Party> counterparties = new ArrayList<>(statesByCounterparty.keySet());
+            List<List<IOUState>> groups = new ArrayList<>(statesByCounterparty.values());
+
+            // Step 3. Commit each group in its own transaction.
+            List<SignedTransaction> results = new ArrayList<>();
+            for (int i = 0; i < groups.size(); i++) {
+                timer.step(this, GENERATING);
+                Party counterparty = counterparties.get(i);
+                final Party notary = notarySelection.selectNotary(groups.get(i).get(0).getLinearId());
+
+                final TransactionBuilder builder = new TransactionBuilder(notary);
+                for (IOUState state : groups.get(i)) {
+                    builder.addOutputState(state, IOUContract.IOU_CONTRACT_ID);
+                }
+                builder.addCommand(new IssueBatch(), ImmutableList.of(me.getOwningKey(), counterparty.getOwningKey()));
+
+                timer.step(this, VERIFYING);
+                builder.verify(getServiceHub());
+                timer.step(this, SIGNING);
+                final SignedTransaction ptx = getServiceHub().signInitialTransaction(builder);
+
+                timer.step(this, COLLECTING);
+                List<FlowSession> sessions = Collections.singletonList(initiateFlow(counterparty));
+                SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, sessions));
+                timer.step(this, FINALISING);
+                results.add(subFlow(new FinalityFlow(stx, sessions)));
+            }
+            timer.finish(this);
+            return results;
+        }
+    }
+
+    /**
+     * This is the flow which signs batch IOU issuances.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUIssueFlow.BatchInitiatorFlow.class)
+    public static class BatchResponderFlow extends FlowLogic<SignedTransaction> {
+        private final FlowSession flowSession;
+        private SecureHash txWeJustSigned;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchResponderFlow.class);
+
+        public BatchResponderFlow(FlowSession flowSession){
+            this.flowSession = flowSession;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+
+            class SignTxFlow extends SignTransactionFlow {
+
+                private SignTxFlow(FlowSession flowSession, ProgressTracker progressTracker) {
+                    super(flowSession, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(req -> {
+                        req.using("This must be an IOU transaction",
+                                stx.getTx().getOutputs().stream().allMatch(output -> output.getData() instanceof IOUState));
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSigned = stx.getId();
+                }
+            }
 
             // Create a sign transaction flow
+            timer.step(this, CHECKING);
             SignTxFlow signTxFlow = new SignTxFlow(flowSession, SignTransactionFlow.Companion.tracker());
 
             // Run the sign transaction flow to sign the transaction
             subFlow(signTxFlow);
 
             // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
-            return subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(flowSession, txWeJustSigned));
+            timer.finish(this);
+            return recorded;
 
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,308 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Command;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+
+import java.security.PublicKey;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.training.flow.IOUFlowSteps.QUERYING_IOUS;
+import static net.corda.training.flow.IOUFlowSteps.VERIFYING;
+import static net.corda.training.flow.IOUFlowSteps.SIGNING;
+import static net.corda.training.flow.IOUFlowSteps.FINALISING;
+import static net.corda.training.flow.IOUFlowSteps.CHECKING;
+import static net.corda.training.flow.IOUFlowSteps.RECORDING;
+
+/**
+ * This is the flow which handles multilateral netting of existing IOUs on the ledger. The given IOUs are consumed and
+ * replaced by residual IOUs which leave every party's net position unchanged in each currency, so that a cycle such as
+ * "A owes B, B owes C, C owes A" collapses to at most one IOU per currency per debtor.
+ *
+ * The initiator does not need to hold every IOU to be netted: any it doesn't have are requested from the other parties,
+ * who send them back with their transaction history. A party only sends its IOUs to an initiator it has an IOU with in
+ * the same proposal, so that nobody can read another pair's IOU just by knowing its linearId. Every party to the netted
+ * IOUs must sign.
+ * The flow returns the [SignedTransaction] that was committed to the ledger.
+ */
+public class IOUNetFlow {
+
+    @InitiatingFlow
+    @StartableByRPC
+    public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step REQUESTING = new ProgressTracker.Step("Requesting the missing IOUs from the other parties.");
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU netting transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the counterparties' signatures.");
+
+        private final List<UniqueIdentifier> linearIds;
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                QUERYING_IOUS, REQUESTING, GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(InitiatorFlow.class);
+
+        public InitiatorFlow(List<UniqueIdentifier> linearIds) {
+            this.linearIds = linearIds;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+
+            // 1. Retrieve the IOUs we hold from our own vault.
+            timer.step(this, QUERYING_IOUS);
+            Map<UniqueIdentifier, StateAndRef<IOUState>> inputs = new LinkedHashMap<>();
+            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null,
+                    linearIds.stream().map(UniqueIdentifier::getId).collect(Collectors.toList()));
+            PageSpecification paging = new PageSpecification(DEFAULT_PAGE_NUM, Math.max(linearIds.size(), 1));
+            for (StateAndRef<IOUState> stateAndRef : getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria, paging).getStates()) {
+                inputs.put(stateAndRef.getState().getData().getLinearId(), stateAndRef);
+            }
+
+            if (inputs.isEmpty()) {
+                throw new IllegalArgumentException("We must be a party to at least one of the IOUs to net.");
+            }
+
+            // 2. Ask each party to the IOUs we know about for the IOUs we're missing, until we have them all. Every
+            // party gets exactly one request, which may be empty.
+            timer.step(this, REQUESTING);
+            Map<Party, FlowSession> sessions = new LinkedHashMap<>();
+            List<Party> partiesToAsk = otherParties(inputs.values(), sessions.keySet());
+            while (!partiesToAsk.isEmpty()) {
+                for (Party party : partiesToAsk) {
+                    FlowSession session = initiateFlow(party);
+                    sessions.put(party, session);
+
+                    List<UniqueIdentifier> missing = linearIds.stream().filter(id -> !inputs.containsKey(id)).collect(Collectors.toList());
+                    session.send(new Request(linearIds, missing));
+                    List<StateAndRef<IOUState>> received = subFlow(new ReceiveStateAndRefFlow<IOUState>(session));
+                    for (StateAndRef<IOUState> stateAndRef : received) {
+                        if (missing.contains(stateAndRef.getState().getData().getLinearId())) {
+                            inputs.put(stateAndRef.getState().getData().getLinearId(), stateAndRef);
+                        }
+                    }
+                }
+                partiesToAsk = otherParties(inputs.values(), sessions.keySet());
+            }
+
+            if (inputs.size() != new HashSet<>(linearIds).size()) {
+                throw new IllegalArgumentException("Could not find all of the IOUs to net.");
+            }
+
+            // 3. Check the IOUs share a notary and compute the residual IOUs.
+            timer.step(this, GENERATING);
+            List<StateAndRef<IOUState>> inputStateAndRefs = new ArrayList<>(inputs.values());
+            Party notary = inputStateAndRefs.get(0).getState().getNotary();
+            if (inputStateAndRefs.stream().anyMatch(stateAndRef -> !stateAndRef.getState().getNotary().equals(notary))) {
+                throw new IllegalArgumentException("All IOUs netted together must use the same notary.");
+            }
+            List<IOUState> residuals = residualIOUs(inputStateAndRefs.stream()
+                    .map(stateAndRef -> stateAndRef.getState().getData())
+                    .collect(Collectors.toList()));
+
+            // 4. Build the transaction. Every party to the netted IOUs must sign.
+            TransactionBuilder tb = new TransactionBuilder(notary);
+            inputStateAndRefs.forEach(tb::addInputState);
+            residuals.forEach(residual -> tb.addOutputState(residual, IOUContract.IOU_CONTRACT_ID));
+
+            List<PublicKey> requiredSigners = inputStateAndRefs.stream()
+                    .flatMap(stateAndRef -> stateAndRef.getState().getData().getParticipants().stream())
+                    .map(AbstractParty::getOwningKey)
+                    .distinct()
+                    .collect(Collectors.toList());
+            tb.addCommand(new Command<>(new IOUContract.Commands.Net(), requiredSigners));
+
+            // 5. Verify and sign the transaction, collect the other parties' signatures and finalise it.
+            timer.step(this, VERIFYING);
+            tb.verify(getServiceHub());
+            timer.step(this, SIGNING);
+            SignedTransaction ptx = getServiceHub().signInitialTransaction(tb);
+
+            timer.step(this, COLLECTING);
+            List<FlowSession> allSessions = new ArrayList<>(sessions.values());
+            SignedTransaction stx = subFlow(new CollectSignaturesFlow(ptx, allSessions));
+            timer.step(this, FINALISING);
+            SignedTransaction result = subFlow(new FinalityFlow(subFlow(new NotariseFlow(stx)), allSessions));
+            timer.finish(this);
+            return result;
+        }
+
+        /**
+         * The parties to [states] other than ourselves that aren't in [alreadyAsked].
+         */
+        private List<Party> otherParties(Collection<StateAndRef<IOUState>> states, Set<Party> alreadyAsked) {
+            return states.stream()
+                    .flatMap(stateAndRef -> stateAndRef.getState().getData().getParticipants().stream())
+                    .map(participant -> (Party) participant)
+                    .filter(party -> !party.equals(getOurIdentity()) && !alreadyAsked.contains(party))
+                    .distinct()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * What the initiator asks each party for:
+     * - [proposal] The linearIds of every IOU to be netted.
+     * - [missing] The ones the initiator doesn't hold yet.
+     */
+    @CordaSerializable
+    public static class Request {
+        private final List<UniqueIdentifier> proposal;
+        private final List<UniqueIdentifier> missing;
+
+        public Request(List<UniqueIdentifier> proposal, List<UniqueIdentifier> missing) {
+            this.proposal = proposal;
+            this.missing = missing;
+        }
+
+        public List<UniqueIdentifier> getProposal() {
+            return proposal;
+        }
+
+        public List<UniqueIdentifier> getMissing() {
+            return missing;
+        }
+    }
+
+    /**
+     * Computes the residual IOUs for [ious]. Each party's net position per currency is the amount outstanding to them
+     * less the amount outstanding from them. Within each currency, debtors are then matched greedily against creditors,
+     * which needs at most one fewer IOU than there are parties with a non-zero position.
+     */
+    public static List<IOUState> residualIOUs(List<IOUState> ious) {
+        Map<Currency, Map<Party, Long>> positions = new LinkedHashMap<>();
+        for (IOUState iou : ious) {
+            long outstanding = iou.amount.getQuantity() - iou.paid.getQuantity();
+            Map<Party, Long> positionsByParty = positions.computeIfAbsent(iou.amount.getToken(), currency -> new LinkedHashMap<>());
+            positionsByParty.merge(iou.lender, outstanding, Math::addExact);
+            positionsByParty.merge(iou.borrower, -outstanding, Math::addExact);
+        }
+
+        List<IOUState> residuals = new ArrayList<>();
+        for (Map.Entry<Currency, Map<Party, Long>> entry : positions.entrySet()) {
+            Currency currency = entry.getKey();
+            Comparator<Party> byName = Comparator.comparing(party -> party.getName().toString());
+            List<Party> creditors = entry.getValue().entrySet().stream().filter(e -> e.getValue() > 0).map(Map.Entry::getKey).sorted(byName).collect(Collectors.toList());
+            List<Party> debtors = entry.getValue().entrySet().stream().filter(e -> e.getValue() < 0).map(Map.Entry::getKey).sorted(byName).collect(Collectors.toList());
+
+            Map<Party, Long> remaining = new HashMap<>(entry.getValue());
+            int c = 0;
+            int d = 0;
+            while (c < creditors.size() && d < debtors.size()) {
+                Party creditor = creditors.get(c);
+                Party debtor = debtors.get(d);
+                long amount = Math.min(remaining.get(creditor), -remaining.get(debtor));
+                residuals.add(new IOUState(new Amount<>(amount, currency), creditor, debtor));
+                remaining.merge(creditor, -amount, Long::sum);
+                remaining.merge(debtor, amount, Long::sum);
+                if (remaining.get(creditor) == 0) c++;
+                if (remaining.get(debtor) == 0) d++;
+            }
+        }
+        return residuals;
+    }
+
+    /**
+     * This is the flow which supplies the requested IOUs to an initiator it shares one of them with, and signs IOU
+     * netting transactions.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUNetFlow.InitiatorFlow.class)
+    public static class Responder extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step SENDING = new ProgressTracker.Step("Sending the requested IOUs.");
+
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+        private final ProgressTracker progressTracker = new ProgressTracker(SENDING, CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(Responder.class);
+
+        public Responder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            // Send back any of the missing IOUs that we hold, but only if the initiator is a party to one of the IOUs in
+            // the proposal that we hold, so that the netting is between us. Otherwise send nothing.
+            timer.step(this, SENDING);
+            Request request = otherPartyFlow.receive(Request.class).unwrap(it -> {
+                if (!it.getProposal().containsAll(it.getMissing())) {
+                    throw new IllegalArgumentException("The IOUs requested must be part of the proposal.");
+                }
+                return it;
+            });
+            Party requester = otherPartyFlow.getCounterparty();
+            List<StateAndRef<IOUState>> toSend = new ArrayList<>();
+            if (!request.getMissing().isEmpty()) {
+                QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null,
+                        request.getProposal().stream().map(UniqueIdentifier::getId).collect(Collectors.toList()));
+                PageSpecification paging = new PageSpecification(DEFAULT_PAGE_NUM, request.getProposal().size());
+                List<StateAndRef<IOUState>> held = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria, paging).getStates();
+                boolean requesterInProposal = held.stream()
+                        .anyMatch(stateAndRef -> stateAndRef.getState().getData().getParticipants().contains(requester));
+                if (requesterInProposal) {
+                    held.stream()
+                            .filter(stateAndRef -> request.getMissing().contains(stateAndRef.getState().getData().getLinearId()))
+                            .forEach(toSend::add);
+                }
+            }
+            subFlow(new SendStateAndRefFlow(otherPartyFlow, toSend));
+
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
+                    super(otherPartyFlow, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be an IOU netting transaction",
+                                stx.getTx().getCommands().stream().anyMatch(command -> command.getValue() instanceof IOUContract.Commands.Net));
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Create a sign transaction flow
+            timer.step(this, CHECKING);
+            SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
+
+            // Run the sign transaction flow to sign the transaction
+            subFlow(signTxFlow);
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.finish(this);
+            return recorded;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.corda.training.flow;
 
 import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import net.corda.core.contracts.*;
 import net.corda.core.crypto.SecureHash;
@@ -8,6 +9,7 @@ import net.corda.core.flows.*;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
@@ -18,13 +20,22 @@ import net.corda.finance.flows.AbstractCashFlow;
 import net.corda.finance.flows.CashIssueFlow;
 import net.corda.finance.workflows.asset.CashUtils;
 import net.corda.training.contract.IOUContract;
+import net.corda.training.service.CashBalanceService;
+import net.corda.training.service.NotarySelectionService;
 import net.corda.training.state.IOUState;
 
 import java.lang.IllegalArgumentException;
 import java.util.*;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
-import static net.corda.finance.workflows.GetBalances.getCashBalance;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.training.flow.IOUFlowSteps.QUERYING;
+import static net.corda.training.flow.IOUFlowSteps.QUERYING_IOUS;
+import static net.corda.training.flow.IOUFlowSteps.VERIFYING;
+import static net.corda.training.flow.IOUFlowSteps.SIGNING;
+import static net.corda.training.flow.IOUFlowSteps.FINALISING;
+import static net.corda.training.flow.IOUFlowSteps.CHECKING;
+import static net.corda.training.flow.IOUFlowSteps.RECORDING;
 
 import java.util.ArrayList;
 import java.util.Currency;
@@ -40,16 +51,37 @@ public class IOUSettleFlow {
      * Notarisation (if required) and commitment to the ledger is handled by the [FinalityFlow].
      * The flow returns the [SignedTransaction] that was committed to the ledger.
      */
-    @InitiatingFlow
+    @InitiatingFlow(version = 2)
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step SELECTING_CASH = new ProgressTracker.Step("Selecting cash to settle with.");
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU settlement transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the lender's signature.");
 
         private final UniqueIdentifier stateLinearId;
         private final Amount<Currency> amount;
+        private final boolean asyncFinality;
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                QUERYING, SELECTING_CASH, GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(InitiatorFlow.class);
 
         public InitiatorFlow(UniqueIdentifier stateLinearId, Amount<Currency> amount) {
+            this(stateLinearId, amount, false);
+        }
+
+        /**
+         * With [asyncFinality] the flow returns as soon as the transaction is notarised, and the lender receives it
+         * from the [AsyncFinalityFlow.DistributeFlow].
+         */
+        public InitiatorFlow(UniqueIdentifier stateLinearId, Amount<Currency> amount, boolean asyncFinality) {
             this.stateLinearId = stateLinearId;
             this.amount = amount;
+            this.asyncFinality = asyncFinality;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
@@ -57,6 +89,7 @@ public class IOUSettleFlow {
         public SignedTransaction call() throws FlowException {
 
             // 1. Retrieve the IOU State from the vault using LinearStateQueryCriteria
+            timer.step(this, QUERYING);
             List<UUID> listOfLinearIds = Arrays.asList(stateLinearId.getId());
             QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
             Vault.Page results = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria);
@@ -71,12 +104,14 @@ public class IOUSettleFlow {
             }
 
             // 4. We should now get some of the components required for to execute the transaction
-            // Here we get a reference to the default notary and instantiate a transaction builder.
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            // Here we get a reference to the input state's notary, which must notarise its consumption, and instantiate
+            // a transaction builder. Only cash held with the same notary can be spent in this transaction.
+            Party notary = inputStateAndRefToSettle.getState().getNotary();
             TransactionBuilder tb = new TransactionBuilder(notary);
 
             // 5. Check we have enough cash to settle the requested amount
-            final Amount<Currency> cashBalance = getCashBalance(getServiceHub(), (Currency) amount.getToken());
+            timer.step(this, SELECTING_CASH);
+            final Amount<Currency> cashBalance = getServiceHub().cordaService(CashBalanceService.class).balance(amount.getToken());
 
             if (cashBalance.getQuantity() < amount.getQuantity()) {
                 throw new IllegalArgumentException("Borrower doesn't have enough cash to settle with the amount specified.");
@@ -84,9 +119,12 @@ public class IOUSettleFlow {
                 throw new IllegalArgumentException("Borrow tried to settle with more than was required for the obligation.");
             }
 
-            // 6. Get some cash from the vault and add a spend to our transaction builder.
+            // 6. Move cash held with other notaries to the IOU's notary if what we hold with it doesn't cover the amount,
+            // then get some cash from the vault and add a spend to our transaction builder.
+            subFlow(new CashNotaryChangeFlow(amount, notary));
             CashUtils.generateSpend(getServiceHub(), tb, amount, getOurIdentityAndCert(), inputStateToSettle.lender, ImmutableSet.of()).getSecond();
 
+            timer.step(this, GENERATING);
             // 7. Create a command. you will need to provide the Command constructor with a reference to the Settle Command as well as a list of required signers.
             Command<IOUContract.Commands.Settle> command = new Command<>(
                     new IOUContract.Commands.Settle(),
@@ -105,10 +143,13 @@ public class IOUSettleFlow {
             }
 
             // 10. Verify and sign the transaction
+            timer.step(this, VERIFYING);
             tb.verify(getServiceHub());
+            timer.step(this, SIGNING);
             SignedTransaction stx = getServiceHub().signInitialTransaction(tb, getOurIdentity().getOwningKey());
 
             // 11. Collect all of the required signatures from other Corda nodes using the CollectSignaturesFlow
+            timer.step(this, COLLECTING);
             List<FlowSession> sessions = new ArrayList<>();
 
             for (AbstractParty participant: inputStateToSettle.getParticipants()) {
@@ -117,12 +158,19 @@ public class IOUSettleFlow {
                     sessions.add(initiateFlow(partyToInitiateFlow));
                 }
             }
+            boolean useAsyncFinality = AsyncFinalityFlow.sendMode(sessions, asyncFinality, 2);
             SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(stx, sessions));
 
             /* 12. Return the output of the FinalityFlow which sends the transaction to the notary for verification
              *     and the causes it to be persisted to the vault of appropriate nodes.
              */
-            return subFlow(new FinalityFlow(fullySignedTransaction, sessions));
+            timer.step(this, FINALISING);
+            SignedTransaction notarised = subFlow(new NotariseFlow(fullySignedTransaction));
+            SignedTransaction result = useAsyncFinality
+                    ? subFlow(new AsyncFinalityFlow(notarised, sessions))
+                    : subFlow(new FinalityFlow(notarised, sessions));
+            timer.finish(this);
+            return result;
 
         }
 
@@ -134,17 +182,25 @@ public class IOUSettleFlow {
      */
     @InitiatedBy(IOUSettleFlow.InitiatorFlow.class)
     public static class Responder extends FlowLogic<SignedTransaction> {
-
         private final FlowSession otherPartyFlow;
         private SecureHash txWeJustSignedId;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(Responder.class);
 
         public Responder(FlowSession otherPartyFlow) {
             this.otherPartyFlow = otherPartyFlow;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            final boolean asyncFinality = AsyncFinalityFlow.receiveMode(otherPartyFlow, 2);
+
             class SignTxFlow extends SignTransactionFlow {
                 private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
                     super(otherPartyFlow, progressTracker);
@@ -163,13 +219,198 @@ public class IOUSettleFlow {
             }
 
             // Create a sign transaction flow
+            timer.step(this, CHECKING);
+            SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
+
+            // Run the sign transaction flow to sign the transaction
+            SignedTransaction signedTransaction = subFlow(signTxFlow);
+
+            // With asynchronous finality the transaction is recorded when the AsyncFinalityFlow.DistributeFlow sends it.
+            if (asyncFinality) {
+                timer.finish(this);
+                return signedTransaction;
+            }
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.finish(this);
+            return recorded;
+
+        }
+    }
+
+    /**
+     * This is the flow which handles the settlement (partial or complete) of many IOUs with the same lender and in the
+     * same currency in one transaction. The borrower makes a single cash spend covering all the payments, so settling
+     * N IOUs costs one coin selection and one notarisation rather than N.
+     * The flow takes a map from each IOU's [linearId] to the amount to pay towards it, and returns the
+     * [SignedTransaction] that was committed to the ledger.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class BatchInitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step SELECTING_CASH = new ProgressTracker.Step("Selecting cash to settle with.");
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU settlement transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the lender's signature.");
+
+        private final Map<UniqueIdentifier, Amount<Currency>> amounts;
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                QUERYING_IOUS, SELECTING_CASH, GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchInitiatorFlow.class);
+
+        public BatchInitiatorFlow(Map<UniqueIdentifier, Amount<Currency>> amounts) {
+            this.amounts = amounts;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+
+            if (amounts.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be settled.");
+            }
+
+            // 1. Retrieve the IOU States from the vault in a single query.
+            timer.step(this, QUERYING_IOUS);
+            List<UUID> listOfLinearIds = amounts.keySet().stream().map(UniqueIdentifier::getId).collect(Collectors.toList());
+            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
+            PageSpecification paging = new PageSpecification(DEFAULT_PAGE_NUM, listOfLinearIds.size());
+            List<StateAndRef<IOUState>> inputStateAndRefs = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria, paging).getStates();
+
+            if (inputStateAndRefs.size() != amounts.size()) {
+                throw new IllegalArgumentException("Could not find all of the IOUs to settle.");
+            }
+
+            // 2. Check the party running this flow is the borrower, and that the IOUs share a lender, currency and notary.
+            IOUState firstState = inputStateAndRefs.get(0).getState().getData();
+            Party lender = firstState.lender;
+            Currency currency = firstState.amount.getToken();
+            Party notary = inputStateAndRefs.get(0).getState().getNotary();
+
+            long total = 0;
+            for (StateAndRef<IOUState> stateAndRef : inputStateAndRefs) {
+                IOUState state = stateAndRef.getState().getData();
+                Amount<Currency> amount = amounts.get(state.getLinearId());
+
+                if (!state.borrower.getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    throw new IllegalArgumentException("The borrower must issue the flow");
+                } else if (!state.lender.equals(lender)) {
+                    throw new IllegalArgumentException("All IOUs settled together must have the same lender.");
+                } else if (!state.amount.getToken().equals(currency) || !amount.getToken().equals(currency)) {
+                    throw new IllegalArgumentException("All IOUs settled together must be in the same currency.");
+                } else if (!stateAndRef.getState().getNotary().equals(notary)) {
+                    throw new IllegalArgumentException("All IOUs settled together must use the same notary.");
+                } else if (amount.getQuantity() <= 0) {
+                    throw new IllegalArgumentException("Each IOU must be settled with a positive amount.");
+                } else if (amount.getQuantity() > (state.amount.getQuantity() - state.paid.getQuantity())) {
+                    throw new IllegalArgumentException("Borrow tried to settle with more than was required for the obligation.");
+                }
+                total = Math.addExact(total, amount.getQuantity());
+            }
+            Amount<Currency> totalAmount = new Amount<>(total, currency);
+
+            // 3. Check we have enough cash to settle all of the requested amounts, and that enough of it is held with the
+            // IOUs' notary, moving cash over from other notaries if not.
+            timer.step(this, SELECTING_CASH);
+            final Amount<Currency> cashBalance = getServiceHub().cordaService(CashBalanceService.class).balance(currency);
+            if (cashBalance.getQuantity() < totalAmount.getQuantity()) {
+                throw new IllegalArgumentException("Borrower doesn't have enough cash to settle with the amount specified.");
+            }
+            subFlow(new CashNotaryChangeFlow(totalAmount, notary));
+
+            // 4. Get some cash from the vault and add a single spend for the total to our transaction builder.
+            TransactionBuilder tb = new TransactionBuilder(notary);
+            CashUtils.generateSpend(getServiceHub(), tb, totalAmount, getOurIdentityAndCert(), lender, ImmutableSet.of()).getSecond();
+
+            // 5. Add the settle command, the input IOUs and an output IOU for each IOU that is not fully settled.
+            timer.step(this, GENERATING);
+            tb.addCommand(new IOUContract.Commands.SettleBatch(), ImmutableList.of(lender.getOwningKey(), getOurIdentity().getOwningKey()));
+            for (StateAndRef<IOUState> stateAndRef : inputStateAndRefs) {
+                IOUState state = stateAndRef.getState().getData();
+                Amount<Currency> amount = amounts.get(state.getLinearId());
+                tb.addInputState(stateAndRef);
+                if (amount.getQuantity() < state.amount.getQuantity() - state.paid.getQuantity()) {
+                    tb.addOutputState(state.pay(amount), IOUContract.IOU_CONTRACT_ID);
+                }
+            }
+
+            // 6. Verify and sign the transaction
+            timer.step(this, VERIFYING);
+            tb.verify(getServiceHub());
+            timer.step(this, SIGNING);
+            SignedTransaction stx = getServiceHub().signInitialTransaction(tb, getOurIdentity().getOwningKey());
+
+            // 7. Collect the lender's signature and finalise the transaction.
+            timer.step(this, COLLECTING);
+            List<FlowSession> sessions = Collections.singletonList(initiateFlow(lender));
+            SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(stx, sessions));
+            timer.step(this, FINALISING);
+            SignedTransaction notarised = subFlow(new NotariseFlow(fullySignedTransaction));
+            SignedTransaction result = subFlow(new FinalityFlow(notarised, sessions));
+            timer.finish(this);
+            return result;
+        }
+
+    }
+
+    /**
+     * This is the flow which signs batch IOU settlements.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUSettleFlow.BatchInitiatorFlow.class)
+    public static class BatchResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchResponder.class);
+
+        public BatchResponder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
+                    super(otherPartyFlow, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be an IOU settlement transaction",
+                                stx.getTx().getCommands().stream().anyMatch(command -> command.getValue() instanceof IOUContract.Commands.SettleBatch));
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Create a sign transaction flow
+            timer.step(this, CHECKING);
             SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
 
             // Run the sign transaction flow to sign the transaction
             subFlow(signTxFlow);
 
             // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
-            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.finish(this);
+            return recorded;
 
         }
     }
@@ -194,8 +435,8 @@ public class IOUSettleFlow {
         public Cash.State call() throws FlowException {
             // Create the cash issue command.
             OpaqueBytes issueRef = OpaqueBytes.of(new byte[0]);
-            // Note: ongoing work to support multiple notary identities is still in progress. */
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            // Choose a notary using the node's notary selection strategy.
+            Party notary = getServiceHub().cordaService(NotarySelectionService.class).selectNotary(null);
             // Create the cash issuance transaction.
             AbstractCashFlow.Result cashIssueTransaction = subFlow(new CashIssueFlow(amount, issueRef, notary));
             return (Cash.State) cashIssueTransaction.getStx().getTx().getOutput(0);
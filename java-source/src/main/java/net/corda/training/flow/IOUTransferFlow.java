@@ -12,6 +12,7 @@ import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.identity.AbstractParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
@@ -21,11 +22,21 @@ import net.corda.training.state.IOUState;
 import javax.validation.constraints.NotNull;
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.training.flow.IOUFlowSteps.QUERYING;
+import static net.corda.training.flow.IOUFlowSteps.QUERYING_IOUS;
+import static net.corda.training.flow.IOUFlowSteps.VERIFYING;
+import static net.corda.training.flow.IOUFlowSteps.SIGNING;
+import static net.corda.training.flow.IOUFlowSteps.FINALISING;
+import static net.corda.training.flow.IOUFlowSteps.CHECKING;
+import static net.corda.training.flow.IOUFlowSteps.RECORDING;
 
 
 /**
@@ -36,15 +47,35 @@ import static net.corda.core.contracts.ContractsDSL.requireThat;
  */
 public class IOUTransferFlow{
 
-    @InitiatingFlow
+    @InitiatingFlow(version = 2)
     @StartableByRPC
     public static class InitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU transfer transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the counterparties' signatures.");
+
         private final UniqueIdentifier stateLinearId;
         private final Party newLender;
+        private final boolean asyncFinality;
+        private final ProgressTracker progressTracker = new ProgressTracker(QUERYING, GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(InitiatorFlow.class);
 
         public InitiatorFlow(UniqueIdentifier stateLinearId, Party newLender) {
+            this(stateLinearId, newLender, false);
+        }
+
+        /**
+         * With [asyncFinality] the flow returns as soon as the transaction is notarised, and the other parties
+         * receive it from the [AsyncFinalityFlow.DistributeFlow].
+         */
+        public InitiatorFlow(UniqueIdentifier stateLinearId, Party newLender, boolean asyncFinality) {
             this.stateLinearId = stateLinearId;
             this.newLender = newLender;
+            this.asyncFinality = asyncFinality;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
         @Suspendable
@@ -55,15 +86,18 @@ public class IOUTransferFlow{
             List<UUID> listOfLinearIds = new ArrayList<>();
             listOfLinearIds.add(stateLinearId.getId());
             QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
+            timer.step(this, QUERYING);
 
             // 2. Get a reference to the inputState data that we are going to settle.
             Vault.Page results = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria);
             StateAndRef inputStateAndRefToTransfer = (StateAndRef) results.getStates().get(0);
             IOUState inputStateToTransfer = (IOUState) inputStateAndRefToTransfer.getState().getData();
 
+            timer.step(this, GENERATING);
             // 3. We should now get some of the components required for to execute the transaction
-            // Here we get a reference to the default notary and instantiate a transaction builder.
-            Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+            // Here we get a reference to the input state's notary, which must notarise its consumption, and instantiate
+            // a transaction builder.
+            Party notary = inputStateAndRefToTransfer.getState().getNotary();
             TransactionBuilder tb = new TransactionBuilder(notary);
 
             // 4. Construct a transfer command to be added to the transaction.
@@ -90,10 +124,13 @@ public class IOUTransferFlow{
             }
 
             // 8. Verify and sign the transaction
+            timer.step(this, VERIFYING);
             tb.verify(getServiceHub());
+            timer.step(this, SIGNING);
             SignedTransaction partiallySignedTransaction = getServiceHub().signInitialTransaction(tb);
 
             // 9. Collect all of the required signatures from other Corda nodes using the CollectSignaturesFlow
+            timer.step(this, COLLECTING);
             List<FlowSession> sessions = new ArrayList<>();
 
             for (AbstractParty participant: inputStateToTransfer.getParticipants()) {
@@ -103,11 +140,18 @@ public class IOUTransferFlow{
                 }
             }
             sessions.add(initiateFlow(newLender));
+            boolean useAsyncFinality = AsyncFinalityFlow.sendMode(sessions, asyncFinality, 2);
             SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(partiallySignedTransaction, sessions));
             /* 10. Return the output of the FinalityFlow which sends the transaction to the notary for verification
              *     and the causes it to be persisted to the vault of appropriate nodes.
              */
-            return subFlow(new FinalityFlow(fullySignedTransaction, sessions));
+            timer.step(this, FINALISING);
+            SignedTransaction notarised = subFlow(new NotariseFlow(fullySignedTransaction));
+            SignedTransaction result = useAsyncFinality
+                    ? subFlow(new AsyncFinalityFlow(notarised, sessions))
+                    : subFlow(new FinalityFlow(notarised, sessions));
+            timer.finish(this);
+            return result;
         }
     }
 
@@ -118,17 +162,25 @@ public class IOUTransferFlow{
      */
     @InitiatedBy(IOUTransferFlow.InitiatorFlow.class)
     public static class Responder extends FlowLogic<SignedTransaction> {
-
         private final FlowSession otherPartyFlow;
         private SecureHash txWeJustSignedId;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(Responder.class);
 
         public Responder(FlowSession otherPartyFlow) {
             this.otherPartyFlow = otherPartyFlow;
         }
 
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
         @Suspendable
         @Override
         public SignedTransaction call() throws FlowException {
+            final boolean asyncFinality = AsyncFinalityFlow.receiveMode(otherPartyFlow, 2);
+
             class SignTxFlow extends SignTransactionFlow {
                 private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
                     super(otherPartyFlow, progressTracker);
@@ -148,15 +200,179 @@ public class IOUTransferFlow{
             }
 
             // Create a sign transaction flow
+            timer.step(this, CHECKING);
             SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
 
             // Run the sign transaction flow to sign the transaction
-            subFlow(signTxFlow);
+            SignedTransaction signedTransaction = subFlow(signTxFlow);
+
+            // With asynchronous finality the transaction is recorded when the AsyncFinalityFlow.DistributeFlow sends it.
+            if (asyncFinality) {
+                timer.finish(this);
+                return signedTransaction;
+            }
 
             // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
-            return subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.finish(this);
+            return recorded;
+        }
+
+    }
+
+    /**
+     * This is the flow which handles transfers of many existing IOUs, possibly with different borrowers, to one new
+     * lender in a single transaction using the [IOUContract.Commands.TransferBatch] command. It must be run by the
+     * current lender of every IOU, and the IOUs must share a notary.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class BatchInitiatorFlow extends FlowLogic<SignedTransaction> {
+        private static final ProgressTracker.Step GENERATING = new ProgressTracker.Step("Generating the IOU transfer transaction.");
+        private static final ProgressTracker.Step COLLECTING = new ProgressTracker.Step("Collecting the counterparties' signatures.");
+
+        private final List<UniqueIdentifier> stateLinearIds;
+        private final Party newLender;
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                QUERYING_IOUS, GENERATING, VERIFYING, SIGNING, COLLECTING, FINALISING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchInitiatorFlow.class);
+
+        public BatchInitiatorFlow(List<UniqueIdentifier> stateLinearIds, Party newLender) {
+            this.stateLinearIds = stateLinearIds;
+            this.newLender = newLender;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+
+            if (stateLinearIds.isEmpty()) {
+                throw new IllegalArgumentException("At least one IOU must be transferred.");
+            }
+
+            // 1. Retrieve the IOU States from the vault in a single query.
+            timer.step(this, QUERYING_IOUS);
+            List<UUID> listOfLinearIds = stateLinearIds.stream().map(UniqueIdentifier::getId).distinct().collect(Collectors.toList());
+            QueryCriteria queryCriteria = new QueryCriteria.LinearStateQueryCriteria(null, listOfLinearIds);
+            PageSpecification paging = new PageSpecification(DEFAULT_PAGE_NUM, listOfLinearIds.size());
+            List<StateAndRef<IOUState>> inputStateAndRefs = getServiceHub().getVaultService().queryBy(IOUState.class, queryCriteria, paging).getStates();
+
+            if (inputStateAndRefs.size() != listOfLinearIds.size()) {
+                throw new IllegalArgumentException("Could not find all of the IOUs to transfer.");
+            }
+
+            // 2. Check we are the lender of every IOU, that none is borrowed by the new lender, and that they share a
+            // notary, collecting the borrowers as we go.
+            Party notary = inputStateAndRefs.get(0).getState().getNotary();
+            Set<Party> borrowers = new LinkedHashSet<>();
+            for (StateAndRef<IOUState> stateAndRef : inputStateAndRefs) {
+                IOUState state = stateAndRef.getState().getData();
+                if (!state.lender.getOwningKey().equals(getOurIdentity().getOwningKey())) {
+                    throw new IllegalArgumentException("This flow must be run by the current lender.");
+                } else if (state.borrower.equals(newLender) || state.lender.equals(newLender)) {
+                    throw new IllegalArgumentException("The new lender cannot be a party to the IOUs being transferred.");
+                } else if (!stateAndRef.getState().getNotary().equals(notary)) {
+                    throw new IllegalArgumentException("All IOUs transferred together must use the same notary.");
+                }
+                borrowers.add(state.borrower);
+            }
+
+            // 3. Add the transfer command, signed by every borrower, ourselves and the new lender, and an input and
+            // output state for each IOU.
+            timer.step(this, GENERATING);
+            List<PublicKey> listOfRequiredSigners = new ArrayList<>();
+            listOfRequiredSigners.add(getOurIdentity().getOwningKey());
+            listOfRequiredSigners.add(newLender.getOwningKey());
+            borrowers.forEach(borrower -> listOfRequiredSigners.add(borrower.getOwningKey()));
+
+            TransactionBuilder tb = new TransactionBuilder(notary);
+            tb.addCommand(new IOUContract.Commands.TransferBatch(), listOfRequiredSigners);
+            for (StateAndRef<IOUState> stateAndRef : inputStateAndRefs) {
+                tb.addInputState(stateAndRef);
+                tb.addOutputState(stateAndRef.getState().getData().withNewLender(newLender), IOUContract.IOU_CONTRACT_ID);
+            }
+
+            // 4. Verify and sign the transaction
+            timer.step(this, VERIFYING);
+            tb.verify(getServiceHub());
+            timer.step(this, SIGNING);
+            SignedTransaction partiallySignedTransaction = getServiceHub().signInitialTransaction(tb);
+
+            // 5. Collect the borrowers' and the new lender's signatures and finalise the transaction.
+            timer.step(this, COLLECTING);
+            List<FlowSession> sessions = new ArrayList<>();
+            for (Party borrower : borrowers) {
+                sessions.add(initiateFlow(borrower));
+            }
+            sessions.add(initiateFlow(newLender));
+            SignedTransaction fullySignedTransaction = subFlow(new CollectSignaturesFlow(partiallySignedTransaction, sessions));
+            timer.step(this, FINALISING);
+            SignedTransaction notarised = subFlow(new NotariseFlow(fullySignedTransaction));
+            SignedTransaction result = subFlow(new FinalityFlow(notarised, sessions));
+            timer.finish(this);
+            return result;
+        }
+    }
+
+    /**
+     * This is the flow which signs batch IOU transfers.
+     * The signing is handled by the [SignTransactionFlow].
+     */
+    @InitiatedBy(IOUTransferFlow.BatchInitiatorFlow.class)
+    public static class BatchResponder extends FlowLogic<SignedTransaction> {
+        private final FlowSession otherPartyFlow;
+        private SecureHash txWeJustSignedId;
+        private final ProgressTracker progressTracker = new ProgressTracker(CHECKING, RECORDING);
+        private final FlowStepTimer timer = new FlowStepTimer(BatchResponder.class);
+
+        public BatchResponder(FlowSession otherPartyFlow) {
+            this.otherPartyFlow = otherPartyFlow;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
         }
 
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            class SignTxFlow extends SignTransactionFlow {
+                private SignTxFlow(FlowSession otherPartyFlow, ProgressTracker progressTracker) {
+                    super(otherPartyFlow, progressTracker);
+                }
+
+                @Override
+                protected void checkTransaction(SignedTransaction stx) {
+                    requireThat(require -> {
+                        require.using("This must be an IOU transfer transaction",
+                                stx.getTx().getCommands().stream().anyMatch(command -> command.getValue() instanceof IOUContract.Commands.TransferBatch));
+                        return null;
+                    });
+                    // Once the transaction has verified, initialize txWeJustSignedID variable.
+                    txWeJustSignedId = stx.getId();
+                }
+            }
+
+            // Create a sign transaction flow
+            timer.step(this, CHECKING);
+            SignTxFlow signTxFlow = new SignTxFlow(otherPartyFlow, SignTransactionFlow.Companion.tracker());
+
+            // Run the sign transaction flow to sign the transaction
+            subFlow(signTxFlow);
+
+            // Run the ReceiveFinalityFlow to finalize the transaction and persist it to the vault.
+            timer.step(this, RECORDING);
+            SignedTransaction recorded = subFlow(new ReceiveFinalityFlow(otherPartyFlow, txWeJustSignedId));
+            timer.finish(this);
+            return recorded;
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.crypto.TransactionSignature;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.NotaryFlow;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.training.service.NotarySelectionService;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Notarises a transaction with the [NotaryFlow.Client] and returns it with the notary's signatures, recording how long
+ * the notary took with the [NotarySelectionService], so that latency-based strategies measure the notaries themselves.
+ *
+ * A transaction which doesn't need notarising (no inputs, references or time window) or which the notary has already
+ * signed is returned unchanged. The [FinalityFlow] and [AsyncFinalityFlow] don't notarise a transaction again, so the
+ * IOU flows run this just before either.
+ */
+public class NotariseFlow extends FlowLogic<SignedTransaction> {
+    private final SignedTransaction stx;
+
+    public NotariseFlow(SignedTransaction stx) {
+        this.stx = stx;
+    }
+
+    @Suspendable
+    @Override
+    public SignedTransaction call() throws FlowException {
+        Party notary = stx.getNotary();
+        boolean needsNotarising = !stx.getInputs().isEmpty() || !stx.getReferences().isEmpty() || stx.getTx().getTimeWindow() != null;
+        boolean notarised = notary != null && stx.getSigs().stream().anyMatch(sig -> sig.getBy().equals(notary.getOwningKey()));
+        if (notary == null || !needsNotarising || notarised) {
+            return stx;
+        }
+        Instant started = getServiceHub().getClock().instant();
+        List<TransactionSignature> notarySignatures = subFlow(new NotaryFlow.Client(stx));
+        getServiceHub().cordaService(NotarySelectionService.class)
+                .recordNotarisation(notary, Duration.between(started, getServiceHub().getClock().instant()));
+        return stx.withAdditionalSignatures(notarySignatures);
+    }
+}
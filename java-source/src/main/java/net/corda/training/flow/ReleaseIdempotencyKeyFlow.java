@@ -0,0 +1,31 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.training.service.IdempotencyKeyService;
+
+import java.util.UUID;
+
+/**
+ * This is the flow which frees an idempotency key reserved by an [IOUIssueFlow.InitiatorFlow] that failed before
+ * issuing its IOU, so that the request can be retried at once rather than after the key's lease runs out. Started by the
+ * web server when it sees the flow fail.
+ */
+@StartableByRPC
+public class ReleaseIdempotencyKeyFlow extends FlowLogic<Void> {
+    private final String key;
+    private final UUID flowId;
+
+    public ReleaseIdempotencyKeyFlow(String key, UUID flowId) {
+        this.key = key;
+        this.flowId = flowId;
+    }
+
+    @Suspendable
+    @Override
+    public Void call() {
+        getServiceHub().cordaService(IdempotencyKeyService.class).delete(key, flowId);
+        return null;
+    }
+}
@@ -8,25 +8,36 @@ import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.utilities.OpaqueBytes;
 import net.corda.finance.contracts.asset.Cash;
 import net.corda.finance.flows.CashIssueFlow;
+import net.corda.training.service.NotarySelectionService;
 import org.intellij.lang.annotations.Flow;
 
 import javax.annotation.Signed;
 import java.util.Currency;
 
+@StartableByRPC
 public class SelfIssueCashFlow extends FlowLogic<Cash.State> {
 
     private Amount<Currency> amount;
+    private Party notary;
 
     public SelfIssueCashFlow(Amount<Currency> amount) {
+        this(amount, null);
+    }
+
+    /**
+     * Issues the cash with the given [notary], so it can be spent alongside IOUs held with that notary.
+     */
+    public SelfIssueCashFlow(Amount<Currency> amount, Party notary) {
         this.amount = amount;
+        this.notary = notary;
     }
 
     @Suspendable
     public Cash.State call() throws FlowException {
         /** Create the cash issue command. */
         OpaqueBytes issueRef = OpaqueBytes.of("1".getBytes());
-        /** Note: ongoing work to support multiple notary identities is still in progress. */
-        Party notary = getServiceHub().getNetworkMapCache().getNotaryIdentities().get(0);
+        /** Choose a notary using the node's notary selection strategy, unless one was given. */
+        Party notary = this.notary != null ? this.notary : getServiceHub().cordaService(NotarySelectionService.class).selectNotary(null);
         /** Create the cash issuance transaction. */
         SignedTransaction cashIssueTransaction = subFlow(new CashIssueFlow(amount, issueRef, notary)).getStx();
         /** Return the cash output. */
@@ -0,0 +1,107 @@
+package net.corda.training.plugin;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import net.corda.training.state.IOUState;
+
+import java.io.IOException;
+
+/**
+ * Compact JSON serializers for the types the [IOUApi] returns, registered with the web server's [ObjectMapper] by
+ * [IOUPlugin.customizeJSONSerialization]. Each writes its fields directly rather than through Jackson's reflective bean
+ * serialization:
+ * - [StateAndRef] as {"ref": "<txhash>(<index>)", "notary": "<X.500 name>", "data": {...}}, leaving out the
+ *   [TransactionState] wrapper, encumbrance and constraint.
+ * - [IOUState] as {"linearId", "externalId" (if any), "lender", "borrower", "amount", "paid"}.
+ * - [Party] as its X.500 name.
+ * - [Amount] as its decimal quantity and token, e.g. "10.00 GBP", the format [Amount.parseCurrency] reads.
+ * - [UniqueIdentifier] as its UUID, which is what identifies a linear state in vault queries and the API.
+ */
+public class IOUJacksonModule extends SimpleModule {
+
+    public IOUJacksonModule() {
+        super("IOUJacksonModule");
+        addSerializer(new StateAndRefSerializer());
+        addSerializer(new IOUStateSerializer());
+        addSerializer(new PartySerializer());
+        addSerializer(new AmountSerializer());
+        addSerializer(new UniqueIdentifierSerializer());
+    }
+
+    @SuppressWarnings("rawtypes")
+    static class StateAndRefSerializer extends StdSerializer<StateAndRef> {
+        StateAndRefSerializer() {
+            super(StateAndRef.class);
+        }
+
+        @Override
+        public void serialize(StateAndRef value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            gen.writeStringField("ref", value.getRef().toString());
+            gen.writeStringField("notary", value.getState().getNotary().getName().toString());
+            gen.writeFieldName("data");
+            provider.defaultSerializeValue(value.getState().getData(), gen);
+            gen.writeEndObject();
+        }
+    }
+
+    static class IOUStateSerializer extends StdSerializer<IOUState> {
+        IOUStateSerializer() {
+            super(IOUState.class);
+        }
+
+        @Override
+        public void serialize(IOUState value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeStartObject();
+            gen.writeStringField("linearId", value.getLinearId().getId().toString());
+            if (value.getLinearId().getExternalId() != null) {
+                gen.writeStringField("externalId", value.getLinearId().getExternalId());
+            }
+            gen.writeStringField("lender", value.lender.getName().toString());
+            gen.writeStringField("borrower", value.borrower.getName().toString());
+            gen.writeStringField("amount", value.amount.toString());
+            gen.writeStringField("paid", value.paid.toString());
+            gen.writeEndObject();
+        }
+    }
+
+    static class PartySerializer extends StdSerializer<Party> {
+        PartySerializer() {
+            super(Party.class);
+        }
+
+        @Override
+        public void serialize(Party value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(value.getName().toString());
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    static class AmountSerializer extends StdSerializer<Amount> {
+        AmountSerializer() {
+            super(Amount.class);
+        }
+
+        @Override
+        public void serialize(Amount value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(value.toString());
+        }
+    }
+
+    static class UniqueIdentifierSerializer extends StdSerializer<UniqueIdentifier> {
+        UniqueIdentifierSerializer() {
+            super(UniqueIdentifier.class);
+        }
+
+        @Override
+        public void serialize(UniqueIdentifier value, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            gen.writeString(value.getId().toString());
+        }
+    }
+}
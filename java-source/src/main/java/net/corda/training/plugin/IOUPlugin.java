@@ -35,8 +35,12 @@ public class IOUPlugin implements WebServerPluginRegistry {
         return staticServeDirs;
     }
 
+    /**
+     * Replaces the reflective serialization of IOUs, and the parties, amounts and ids within them, with the compact
+     * serializers in [IOUJacksonModule].
+     */
     @Override
     public void customizeJSONSerialization(ObjectMapper objectMapper) {
-
+        objectMapper.registerModule(new IOUJacksonModule());
     }
 }
\ No newline at end of file
@@ -0,0 +1,7 @@
+package net.corda.training.schema;
+
+/**
+ * The family of schemas for [IOUState]s.
+ */
+public class IOUSchema {
+}
@@ -0,0 +1,104 @@
+package net.corda.training.schema;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import javax.annotation.Nullable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.util.UUID;
+
+/**
+ * An [IOUState] schema. Each unconsumed and consumed IOU is persisted to the iou_states table with indexed columns for
+ * the fields IOUs are usually filtered by, so that vault queries using [VaultCustomQueryCriteria] on them don't need to
+ * load and deserialize every IOU.
+ *
+ * Amounts are stored as quantities of the currency's smallest unit, as in [Amount.getQuantity].
+ *
+ * The two exposure indexes cover the aggregate queries behind /api/iou/exposure, which filter on one party, group by
+ * the other and the currency, and sum the outstanding amount, so the database can read the groups from an index rather
+ * than scanning the table.
+ */
+public class IOUSchemaV1 extends MappedSchema {
+    public IOUSchemaV1() {
+        super(IOUSchema.class, 1, ImmutableList.of(PersistentIOU.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "iou.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "iou_states", indexes = {
+            @Index(name = "iou_lender_idx", columnList = "lender"),
+            @Index(name = "iou_borrower_idx", columnList = "borrower"),
+            @Index(name = "iou_currency_idx", columnList = "currency"),
+            @Index(name = "iou_outstanding_idx", columnList = "outstanding"),
+            @Index(name = "iou_linear_id_idx", columnList = "linear_id"),
+            @Index(name = "iou_lender_exposure_idx", columnList = "lender, borrower, currency, outstanding"),
+            @Index(name = "iou_borrower_exposure_idx", columnList = "borrower, lender, currency, outstanding")
+    })
+    public static class PersistentIOU extends PersistentState {
+        @Column(name = "lender", nullable = false) private final String lender;
+        @Column(name = "borrower", nullable = false) private final String borrower;
+        @Column(name = "currency", nullable = false, length = 3) private final String currency;
+        @Column(name = "amount", nullable = false) private final long amount;
+        @Column(name = "paid", nullable = false) private final long paid;
+        @Column(name = "outstanding", nullable = false) private final long outstanding;
+        @Column(name = "linear_id", nullable = false) private final UUID linearId;
+
+        public PersistentIOU(String lender, String borrower, String currency, long amount, long paid, UUID linearId) {
+            this.lender = lender;
+            this.borrower = borrower;
+            this.currency = currency;
+            this.amount = amount;
+            this.paid = paid;
+            this.outstanding = amount - paid;
+            this.linearId = linearId;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentIOU() {
+            this.lender = null;
+            this.borrower = null;
+            this.currency = null;
+            this.amount = 0;
+            this.paid = 0;
+            this.outstanding = 0;
+            this.linearId = null;
+        }
+
+        public String getLender() {
+            return lender;
+        }
+
+        public String getBorrower() {
+            return borrower;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public long getPaid() {
+            return paid;
+        }
+
+        public long getOutstanding() {
+            return outstanding;
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package net.corda.training.schema;
+
+/**
+ * The family of schemas for the idempotency keys reserved by [IOUIssueFlow.InitiatorFlow].
+ */
+public class IdempotencyKeySchema {
+}
@@ -0,0 +1,105 @@
+package net.corda.training.schema;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+
+import javax.annotation.Nullable;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * The idempotency keys [IOUIssueFlow.InitiatorFlow] has reserved, one row per key in the iou_idempotency_keys table.
+ *
+ * The key is the primary key, so two flows issuing with the same key can't both reserve it, even if they run at the same
+ * time: the second insert fails on the constraint. The table is the node's own and only its initiating flows write to
+ * it, so a key is scoped to the node's identity, and a counterparty using the same key for its own IOUs doesn't clash.
+ *
+ * Each row keeps the linearId the IOU is issued with, the fields that identify the request (so a key reused for a
+ * different IOU is refused), the id of the flow issuing it and when that flow's lease on the key was last renewed
+ * (null for keys reserved before leases were recorded, which have expired). Amounts are in the currency's smallest
+ * unit.
+ */
+public class IdempotencyKeySchemaV1 extends MappedSchema {
+    public IdempotencyKeySchemaV1() {
+        super(IdempotencyKeySchema.class, 1, ImmutableList.of(PersistentIdempotencyKey.class));
+    }
+
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "iou-idempotency-keys.changelog-master";
+    }
+
+    @Entity
+    @Table(name = "iou_idempotency_keys")
+    public static class PersistentIdempotencyKey {
+        @Id @Column(name = "idempotency_key", nullable = false) private final String idempotencyKey;
+        @Column(name = "linear_id", nullable = false) private final UUID linearId;
+        @Column(name = "lender", nullable = false) private final String lender;
+        @Column(name = "borrower", nullable = false) private final String borrower;
+        @Column(name = "currency", nullable = false, length = 3) private final String currency;
+        @Column(name = "amount", nullable = false) private final long amount;
+        @Column(name = "flow_id", nullable = false) private final UUID flowId;
+        @Column(name = "reserved_at") private final Instant reservedAt;
+
+        public PersistentIdempotencyKey(String idempotencyKey, UUID linearId, String lender, String borrower,
+                                        String currency, long amount, UUID flowId, Instant reservedAt) {
+            this.idempotencyKey = idempotencyKey;
+            this.linearId = linearId;
+            this.lender = lender;
+            this.borrower = borrower;
+            this.currency = currency;
+            this.amount = amount;
+            this.flowId = flowId;
+            this.reservedAt = reservedAt;
+        }
+
+        // Default constructor required by hibernate.
+        public PersistentIdempotencyKey() {
+            this.idempotencyKey = null;
+            this.linearId = null;
+            this.lender = null;
+            this.borrower = null;
+            this.currency = null;
+            this.amount = 0;
+            this.flowId = null;
+            this.reservedAt = null;
+        }
+
+        public String getIdempotencyKey() {
+            return idempotencyKey;
+        }
+
+        public UUID getLinearId() {
+            return linearId;
+        }
+
+        public String getLender() {
+            return lender;
+        }
+
+        public String getBorrower() {
+            return borrower;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public UUID getFlowId() {
+            return flowId;
+        }
+
+        public Instant getReservedAt() {
+            return reservedAt;
+        }
+    }
+}
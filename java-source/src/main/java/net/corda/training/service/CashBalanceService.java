@@ -0,0 +1,94 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.Issued;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.finance.contracts.asset.Cash;
+
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.MAX_PAGE_SIZE;
+
+/**
+ * A node service which keeps the node's cash balance in each currency up to date from vault updates, so that flows
+ * (and the web API, via [CashBalancesFlow]) can check balances without aggregating over the whole cash vault.
+ *
+ * The balances are kept per notary as well as in total, since a transaction can only spend cash held with its own
+ * notary. They are seeded from the unconsumed cash states when the node starts and then adjusted for every cash state
+ * produced or consumed. Like [GetBalances.getCashBalance], they include cash that is currently soft locked.
+ */
+@CordaService
+public class CashBalanceService extends SingletonSerializeAsToken {
+    private final Map<Party, Map<Currency, Long>> balancesByNotary = new HashMap<>();
+
+    public CashBalanceService(AppServiceHub serviceHub) {
+        QueryCriteria unconsumed = new QueryCriteria.VaultQueryCriteria(Vault.StateStatus.UNCONSUMED);
+        DataFeed<Vault.Page<Cash.State>, Vault.Update<Cash.State>> feed = serviceHub.getVaultService()
+                .trackBy(Cash.State.class, unconsumed, new PageSpecification(DEFAULT_PAGE_NUM, MAX_PAGE_SIZE));
+
+        synchronized (this) {
+            feed.getSnapshot().getStates().forEach(stateAndRef -> adjust(stateAndRef, 1));
+        }
+        feed.getUpdates().subscribe(this::apply);
+    }
+
+    /**
+     * Returns the node's cash balance in [currency] across all notaries, which is zero if it holds none.
+     */
+    public synchronized Amount<Currency> balance(Currency currency) {
+        long total = 0;
+        for (Map<Currency, Long> balances : balancesByNotary.values()) {
+            total = Math.addExact(total, balances.getOrDefault(currency, 0L));
+        }
+        return new Amount<>(total, currency);
+    }
+
+    /**
+     * Returns the node's cash balance in [currency] held with [notary], which is the most a transaction notarised by
+     * [notary] can spend.
+     */
+    public synchronized Amount<Currency> balance(Currency currency, Party notary) {
+        return new Amount<>(balancesByNotary.getOrDefault(notary, Collections.emptyMap()).getOrDefault(currency, 0L), currency);
+    }
+
+    /**
+     * Returns the node's cash balance in each currency it holds, across all notaries.
+     */
+    public synchronized Map<Currency, Amount<Currency>> balances() {
+        Map<Currency, Long> totals = new HashMap<>();
+        balancesByNotary.values().forEach(balances -> balances.forEach((currency, quantity) -> totals.merge(currency, quantity, Math::addExact)));
+        Map<Currency, Amount<Currency>> result = new HashMap<>();
+        totals.forEach((currency, quantity) -> result.put(currency, new Amount<>(quantity, currency)));
+        return result;
+    }
+
+    private synchronized void apply(Vault.Update<Cash.State> update) {
+        update.getConsumed().forEach(stateAndRef -> adjust(stateAndRef, -1));
+        update.getProduced().forEach(stateAndRef -> adjust(stateAndRef, 1));
+    }
+
+    private void adjust(StateAndRef<Cash.State> stateAndRef, int sign) {
+        Amount<Issued<Currency>> amount = stateAndRef.getState().getData().getAmount();
+        Currency currency = amount.getToken().getProduct();
+        Party notary = stateAndRef.getState().getNotary();
+        Map<Currency, Long> balances = balancesByNotary.computeIfAbsent(notary, key -> new HashMap<>());
+        if (balances.merge(currency, sign * amount.getQuantity(), Math::addExact) == 0) {
+            balances.remove(currency);
+            if (balances.isEmpty()) {
+                balancesByNotary.remove(notary);
+            }
+        }
+    }
+}
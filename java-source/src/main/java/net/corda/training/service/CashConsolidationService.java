@@ -0,0 +1,59 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.Amount;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.training.flow.CashConsolidationFlow;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Currency;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node service which runs the [CashConsolidationFlow] on a schedule for every currency the node holds.
+ *
+ * It is off unless "cashConsolidationIntervalMinutes" is set in the CorDapp config. "cashConsolidationThreshold" sets
+ * the size, in minor units of each currency, below which cash states are merged (default 10000, e.g. 100.00 GBP), and
+ * "cashConsolidationMaxInputs" the number of states merged per transaction.
+ */
+@CordaService
+public class CashConsolidationService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(CashConsolidationService.class);
+
+    public static final String INTERVAL_KEY = "cashConsolidationIntervalMinutes";
+    public static final String THRESHOLD_KEY = "cashConsolidationThreshold";
+    public static final String MAX_INPUTS_KEY = "cashConsolidationMaxInputs";
+    private static final long DEFAULT_THRESHOLD = 10_000;
+
+    public CashConsolidationService(AppServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        if (!config.exists(INTERVAL_KEY)) {
+            return;
+        }
+        long intervalMinutes = config.getLong(INTERVAL_KEY);
+        long threshold = config.exists(THRESHOLD_KEY) ? config.getLong(THRESHOLD_KEY) : DEFAULT_THRESHOLD;
+        int maxInputs = config.exists(MAX_INPUTS_KEY) ? config.getInt(MAX_INPUTS_KEY) : CashConsolidationFlow.DEFAULT_MAX_INPUTS_PER_TRANSACTION;
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cash-consolidation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            for (Currency currency : serviceHub.cordaService(CashBalanceService.class).balances().keySet()) {
+                try {
+                    CashConsolidationFlow.Result result = serviceHub.startFlow(
+                            new CashConsolidationFlow(currency, new Amount<>(threshold, currency), maxInputs)).getReturnValue().get();
+                    logger.info("Consolidated {} cash: {}", currency, result);
+                } catch (Exception e) {
+                    logger.warn("Failed to consolidate " + currency + " cash.", e);
+                }
+            }
+        }, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+}
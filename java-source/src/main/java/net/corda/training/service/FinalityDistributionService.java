@@ -0,0 +1,32 @@
+package net.corda.training.service;
+
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.training.flow.AsyncFinalityFlow;
+
+import java.util.List;
+
+/**
+ * A node service which starts an [AsyncFinalityFlow.DistributeFlow] for each counterparty of a transaction, so that the
+ * flow which notarised it can return without waiting for them.
+ */
+@CordaService
+public class FinalityDistributionService extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+
+    public FinalityDistributionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+    }
+
+    /**
+     * Starts sending [stx] to each of [recipients] in the background. Nothing waits for the distribution to finish.
+     */
+    public void distribute(SignedTransaction stx, List<Party> recipients) {
+        for (Party recipient : recipients) {
+            serviceHub.startFlow(new AsyncFinalityFlow.DistributeFlow(stx, recipient));
+        }
+    }
+}
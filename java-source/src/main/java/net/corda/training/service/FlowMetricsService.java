@@ -0,0 +1,113 @@
+package net.corda.training.service;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import com.codahale.metrics.jmx.JmxReporter;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A node service which records how long each step of the IOU flows and their responders takes, as Dropwizard timers
+ * named "[flow].[step]". The timers are published over JMX in the [JMX_DOMAIN] domain (and so through Jolokia), and
+ * summarised by [snapshot] for the web API.
+ */
+@CordaService
+public class FlowMetricsService extends SingletonSerializeAsToken {
+    public static final String JMX_DOMAIN = "net.corda.training";
+
+    private final MetricRegistry registry = new MetricRegistry();
+
+    public FlowMetricsService(AppServiceHub serviceHub) {
+        JmxReporter.forRegistry(registry)
+                .inDomain(JMX_DOMAIN)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build()
+                .start();
+    }
+
+    public MetricRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Records that [step] of [flow] took [duration].
+     */
+    public void record(String flow, String step, Duration duration) {
+        if (!duration.isNegative()) {
+            registry.timer(MetricRegistry.name(flow, step)).update(duration.toNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Returns the latency distribution of every recorded step, keyed by timer name.
+     */
+    public Map<String, StepLatency> snapshot() {
+        Map<String, StepLatency> result = new TreeMap<>();
+        registry.getTimers().forEach((name, timer) -> result.put(name, StepLatency.of(timer)));
+        return result;
+    }
+
+    /**
+     * The latency distribution of one flow step, in milliseconds.
+     */
+    @CordaSerializable
+    public static class StepLatency {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p95;
+        private final double p99;
+        private final double max;
+
+        public StepLatency(long count, double mean, double p50, double p95, double p99, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        static StepLatency of(Timer timer) {
+            Snapshot snapshot = timer.getSnapshot();
+            return new StepLatency(timer.getCount(), millis(snapshot.getMean()), millis(snapshot.getMedian()),
+                    millis(snapshot.get95thPercentile()), millis(snapshot.get99thPercentile()), millis(snapshot.getMax()));
+        }
+
+        private static double millis(double nanos) {
+            return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP95() {
+            return p95;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
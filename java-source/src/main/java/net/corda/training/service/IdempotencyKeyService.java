@@ -0,0 +1,140 @@
+package net.corda.training.service;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.training.schema.IdempotencyKeySchemaV1.PersistentIdempotencyKey;
+import net.corda.training.state.IOUState;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A node service which reserves the idempotency keys of IOU issuances in the iou_idempotency_keys table (see
+ * [IdempotencyKeySchemaV1]), so that two flows can never issue an IOU for the same key at the same time.
+ *
+ * The IOU issued for a key gets the linearId [linearIdFor] derives from the key, so whether a key has been served can be
+ * read from the vault. [IOUIssueFlow.InitiatorFlow] reserves its key with [reserve] before building its transaction, in
+ * the flow's own database transaction. The reservation is committed with the flow's first checkpoint; a second flow
+ * reserving the same key before then fails on the table's primary key, and one reserving it afterwards is given the
+ * first flow's reservation.
+ *
+ * A reservation is a lease, renewed by the flow with [renew] before it finalises. A flow which fails cleanly has its
+ * reservation freed by the web server with [ReleaseIdempotencyKeyFlow]. One that never finishes, because it was killed,
+ * is stuck in the flow hospital or died with the node, keeps its reservation only until the lease, [LEASE] or the
+ * "idempotencyKeyLeaseSeconds" key of the CorDapp config, runs out, after which a retry takes the key over.
+ */
+@CordaService
+public class IdempotencyKeyService extends SingletonSerializeAsToken {
+    public static final String LEASE_CONFIG_KEY = "idempotencyKeyLeaseSeconds";
+    private static final Duration LEASE = Duration.ofMinutes(5);
+
+    private final AppServiceHub serviceHub;
+    private final Duration lease;
+
+    public IdempotencyKeyService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        this.lease = serviceHub.getAppContext().getConfig().exists(LEASE_CONFIG_KEY)
+                ? Duration.ofSeconds(serviceHub.getAppContext().getConfig().getLong(LEASE_CONFIG_KEY))
+                : LEASE;
+    }
+
+    /**
+     * Returns the linearId of the IOU issued for [key]. It is derived from the key and our identity, so it is the same
+     * for every retry and doesn't clash with a counterparty's IOU issued with the same key.
+     */
+    public UUID linearIdFor(String key) {
+        String name = serviceHub.getMyInfo().getLegalIdentities().get(0).getName().toString();
+        return UUID.nameUUIDFromBytes((name + "\n" + key).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reserves [key] for issuing [state] in the flow [flowId], and returns the reservation. If the key is already
+     * reserved, returns that reservation instead, having first taken it over for [flowId] if its lease has run out.
+     * Must be called from a flow. Throws an [IllegalArgumentException] if the key was reserved for a different IOU.
+     */
+    public PersistentIdempotencyKey reserve(String key, IOUState state, UUID flowId) {
+        Instant now = serviceHub.getClock().instant();
+        PersistentIdempotencyKey reservation = serviceHub.withEntityManager(entityManager -> {
+            PersistentIdempotencyKey existing = entityManager.find(PersistentIdempotencyKey.class, key);
+            if (existing == null) {
+                PersistentIdempotencyKey reserved = new PersistentIdempotencyKey(key, state.getLinearId().getId(),
+                        state.lender.getName().toString(), state.borrower.getName().toString(),
+                        state.amount.getToken().getCurrencyCode(), state.amount.getQuantity(), flowId, now);
+                entityManager.persist(reserved);
+                // Insert now rather than at commit, so a concurrent reservation of the key fails here.
+                entityManager.flush();
+                return reserved;
+            }
+            if (!existing.getFlowId().equals(flowId) && leaseExpired(existing, now)) {
+                // Take the key over only from the flow we found holding it, so that of two retries taking over an
+                // expired reservation at once, the second finds the first's and leaves it alone.
+                entityManager.createQuery("UPDATE PersistentIdempotencyKey k SET k.flowId = :flowId, k.reservedAt = :now"
+                        + " WHERE k.idempotencyKey = :key AND k.flowId = :previous")
+                        .setParameter("flowId", flowId)
+                        .setParameter("now", now)
+                        .setParameter("key", key)
+                        .setParameter("previous", existing.getFlowId())
+                        .executeUpdate();
+                entityManager.refresh(existing);
+            }
+            return existing;
+        });
+        if (!reservation.getLender().equals(state.lender.getName().toString())
+                || !reservation.getBorrower().equals(state.borrower.getName().toString())
+                || !reservation.getCurrency().equals(state.amount.getToken().getCurrencyCode())
+                || reservation.getAmount() != state.amount.getQuantity()) {
+            throw new IllegalArgumentException("The idempotency key " + key + " was already used for a different IOU.");
+        }
+        return reservation;
+    }
+
+    /**
+     * Returns when the lease on [reservation] runs out, after which another flow may take the key over.
+     */
+    public Instant leaseExpiry(PersistentIdempotencyKey reservation) {
+        return reservation.getReservedAt() == null ? Instant.MIN : reservation.getReservedAt().plus(lease);
+    }
+
+    /**
+     * Renews the lease on [key] for the flow [flowId], and returns whether that flow still holds it. A flow whose lease
+     * ran out and was taken over mustn't issue its IOU. Must be called from a flow.
+     */
+    public boolean renew(String key, UUID flowId) {
+        Instant now = serviceHub.getClock().instant();
+        return serviceHub.withEntityManager(entityManager -> entityManager
+                .createQuery("UPDATE PersistentIdempotencyKey k SET k.reservedAt = :now"
+                        + " WHERE k.idempotencyKey = :key AND k.flowId = :flowId")
+                .setParameter("now", now)
+                .setParameter("key", key)
+                .setParameter("flowId", flowId)
+                .executeUpdate() == 1);
+    }
+
+    /**
+     * Deletes the reservation of [key] if it is still held by the flow [flowId] and no IOU was issued for it. Must be
+     * called from a flow.
+     */
+    public void delete(String key, UUID flowId) {
+        serviceHub.withEntityManager(entityManager -> {
+            PersistentIdempotencyKey reservation = entityManager.find(PersistentIdempotencyKey.class, key);
+            if (reservation == null || !reservation.getFlowId().equals(flowId)) {
+                return;
+            }
+            QueryCriteria issued = new QueryCriteria.LinearStateQueryCriteria(
+                    null, ImmutableList.of(reservation.getLinearId()), null, Vault.StateStatus.ALL);
+            if (serviceHub.getVaultService().queryBy(IOUState.class, issued).getStates().isEmpty()) {
+                entityManager.remove(reservation);
+            }
+        });
+    }
+
+    private boolean leaseExpired(PersistentIdempotencyKey reservation, Instant now) {
+        return !leaseExpiry(reservation).isAfter(now);
+    }
+}
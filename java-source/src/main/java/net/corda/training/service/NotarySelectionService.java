@@ -0,0 +1,74 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * A node service which picks the notary for new IOU and cash issuances using a [NotarySelectionStrategy], so that
+ * new states are spread over all of the network's notaries rather than always landing on the first one.
+ *
+ * The strategy is read from the "notarySelection" key of the CorDapp config: one of first (the default), round-robin,
+ * linear-id-hash or least-latency. Other strategies can be plugged in with [setStrategy].
+ */
+@CordaService
+public class NotarySelectionService extends SingletonSerializeAsToken {
+    public static final String CONFIG_KEY = "notarySelection";
+
+    private final AppServiceHub serviceHub;
+    private volatile NotarySelectionStrategy strategy;
+
+    public NotarySelectionService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.strategy = strategyNamed(config.exists(CONFIG_KEY) ? config.getString(CONFIG_KEY) : "first");
+    }
+
+    /**
+     * Returns the strategy with the given config [name].
+     */
+    public static NotarySelectionStrategy strategyNamed(String name) {
+        switch (name) {
+            case "first": return new NotarySelectionStrategy.First();
+            case "round-robin": return new NotarySelectionStrategy.RoundRobin();
+            case "linear-id-hash": return new NotarySelectionStrategy.LinearIdHash();
+            case "least-latency": return new NotarySelectionStrategy.LeastLatency();
+            default: throw new IllegalArgumentException("Unknown notary selection strategy " + name + ".");
+        }
+    }
+
+    public NotarySelectionStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(NotarySelectionStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    /**
+     * Returns the notary for a transaction creating the state with [linearId], which may be null.
+     */
+    public Party selectNotary(UniqueIdentifier linearId) {
+        List<Party> notaries = serviceHub.getNetworkMapCache().getNotaryIdentities();
+        if (notaries.isEmpty()) {
+            throw new IllegalArgumentException("There are no notaries on the network.");
+        }
+        return strategy.select(notaries, linearId);
+    }
+
+    /**
+     * Records how long [notary] took to notarise a transaction, for strategies that take latency into account. Called
+     * by the [NotariseFlow] for every transaction the IOU flows notarise, whichever notary it uses.
+     */
+    public void recordNotarisation(Party notary, Duration duration) {
+        if (!duration.isNegative()) {
+            strategy.recordNotarisation(notary, duration);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the notary for a transaction that creates new states, such as an IOU issuance or a cash issuance.
+ * Transactions which consume states must keep using the notary of their inputs, so they don't consult the strategy.
+ *
+ * Strategies are installed in the [NotarySelectionService], either from the CorDapp config or programmatically.
+ */
+public interface NotarySelectionStrategy {
+
+    /**
+     * Returns one of [notaries], which is never empty, for a transaction creating the state with [linearId]. The
+     * [linearId] is null for states that don't have one, such as cash.
+     */
+    Party select(List<Party> notaries, UniqueIdentifier linearId);
+
+    /**
+     * Called with the time [notary] took to notarise a transaction, from sending it to the notary to receiving the
+     * notary's signature. Issuances aren't notarised, so the times come from the transfers, settlements and netting
+     * transactions, whose notary was chosen when their IOUs were issued.
+     */
+    default void recordNotarisation(Party notary, Duration duration) {
+    }
+
+    /**
+     * Always picks the first notary in the network map, which was the behaviour before strategies were introduced.
+     */
+    class First implements NotarySelectionStrategy {
+        @Override
+        public Party select(List<Party> notaries, UniqueIdentifier linearId) {
+            return notaries.get(0);
+        }
+    }
+
+    /**
+     * Cycles through the notaries in turn.
+     */
+    class RoundRobin implements NotarySelectionStrategy {
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public Party select(List<Party> notaries, UniqueIdentifier linearId) {
+            return notaries.get(Math.floorMod(next.getAndIncrement(), notaries.size()));
+        }
+    }
+
+    /**
+     * Picks a notary from the hash of the state's linearId, so the choice is stable for a given state. States without
+     * a linearId are spread round-robin.
+     */
+    class LinearIdHash implements NotarySelectionStrategy {
+        private final RoundRobin withoutLinearId = new RoundRobin();
+
+        @Override
+        public Party select(List<Party> notaries, UniqueIdentifier linearId) {
+            if (linearId == null) {
+                return withoutLinearId.select(notaries, null);
+            }
+            return notaries.get(Math.floorMod(linearId.getId().hashCode(), notaries.size()));
+        }
+    }
+
+    /**
+     * Picks the notary with the lowest observed notarisation time, tracked as an exponentially weighted moving average.
+     * Notaries which haven't been observed yet are tried first.
+     */
+    class LeastLatency implements NotarySelectionStrategy {
+        private static final double WEIGHT = 0.2;
+        private final Map<Party, Double> averageMillis = new ConcurrentHashMap<>();
+
+        @Override
+        public Party select(List<Party> notaries, UniqueIdentifier linearId) {
+            return notaries.stream()
+                    .min(Comparator.comparingDouble(notary -> averageMillis.getOrDefault(notary, 0.0)))
+                    .orElseThrow(() -> new IllegalArgumentException("There are no notaries to choose from."));
+        }
+
+        @Override
+        public void recordNotarisation(Party notary, Duration duration) {
+            double millis = duration.toNanos() / 1e6;
+            averageMillis.merge(notary, millis, (average, latest) -> average + WEIGHT * (latest - average));
+        }
+    }
+}
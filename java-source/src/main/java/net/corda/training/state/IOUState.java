@@ -6,9 +6,13 @@ import net.corda.core.identity.AbstractParty;
 
 import java.util.*;
 import com.google.common.collect.ImmutableList;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
 import net.corda.core.serialization.ConstructorForDeserialization;
 import net.corda.core.serialization.CordaSerializable;
 import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IOUSchemaV1;
 
 import javax.servlet.http.Part;
 
@@ -22,10 +26,13 @@ import javax.servlet.http.Part;
  * - [linearId] A unique id shared by all LinearState states representing the same agreement throughout history within
  *   the vaults of all parties. Verify methods should check that one input and one output share the id in a transaction,
  *   except at issuance/termination.
+ *
+ * IOUs are also persisted to the vault using [IOUSchemaV1], so they can be queried by lender, borrower, currency and
+ * amounts without deserializing every state.
  */
 
 @BelongsToContract(IOUContract.class)
-public class IOUState implements ContractState, LinearState {
+public class IOUState implements ContractState, LinearState, QueryableState {
 
     public final Amount<Currency> amount;
     public final Party lender;
@@ -77,11 +84,33 @@ public class IOUState implements ContractState, LinearState {
         return ImmutableList.of(lender, borrower);
     }
 
+    @Override
+    public PersistentState generateMappedObject(MappedSchema schema) {
+        if (schema instanceof IOUSchemaV1) {
+            return new IOUSchemaV1.PersistentIOU(
+                    lender.getName().toString(),
+                    borrower.getName().toString(),
+                    amount.getToken().getCurrencyCode(),
+                    amount.getQuantity(),
+                    paid.getQuantity(),
+                    linearId.getId());
+        } else {
+            throw new IllegalArgumentException("Unrecognised schema " + schema);
+        }
+    }
+
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return ImmutableList.of(new IOUSchemaV1());
+    }
+
     /**
      * Helper methods for when building transactions for settling and transferring IOUs.
      * - [pay] adds an amount to the paid property. It does no validation.
      * - [withNewLender] creates a copy of the current state with a newly specified lender. For use when transferring.
      * - [copy] creates a copy of the state using the internal copy constructor ensuring the LinearId is preserved.
+     * - [withExternalId] creates a copy of the state whose LinearId carries an external id.
+     * - [withLinearId] creates a copy of the state with the given LinearId.
      */
     public IOUState pay(Amount<Currency> amountToPay) {
         Amount<Currency> newAmountPaid = this.paid.plus(amountToPay);
@@ -96,4 +125,15 @@ public class IOUState implements ContractState, LinearState {
         return new IOUState(amount, lender, borrower, paid, this.getLinearId());
     }
 
+    /**
+     * Creates a copy of the state whose [linearId] carries the given [externalId], such as a client's idempotency key.
+     */
+    public IOUState withExternalId(String externalId) {
+        return new IOUState(amount, lender, borrower, paid, new UniqueIdentifier(externalId, linearId.getId()));
+    }
+
+    public IOUState withLinearId(UniqueIdentifier linearId) {
+        return new IOUState(amount, lender, borrower, paid, linearId);
+    }
+
 }
\ No newline at end of file
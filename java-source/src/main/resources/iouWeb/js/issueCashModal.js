@@ -1,9 +1,11 @@
 "use strict";
 
 // Similar to the IOU creation modal - see createIOUModal.js for comments.
-angular.module('demoAppModule').controller('IssueCashModalCtrl', function($http, $uibModalInstance, $uibModal, apiBaseURL) {
+angular.module('demoAppModule').controller('IssueCashModalCtrl', function($http, $uibModalInstance, $uibModal, apiBaseURL, notaries, awaitFlow) {
     const issueCashModal = this;
 
+    issueCashModal.notaries = notaries;
+
     issueCashModal.form = {};
     issueCashModal.formError = false;
 
@@ -15,14 +17,17 @@ angular.module('demoAppModule').controller('IssueCashModalCtrl', function($http,
 
             const amount = issueCashModal.form.amount;
             const currency = issueCashModal.form.currency;
+            // Leaving the notary unset lets the node choose one.
+            const notary = issueCashModal.form.notary;
 
             $uibModalInstance.close();
 
             const issueCashEndpoint =
                 apiBaseURL +
-                `self-issue-cash?amount=${amount}&currency=${currency}`;
+                `self-issue-cash?amount=${amount}&currency=${currency}` +
+                (notary ? `&notary=${notary}` : '');
 
-            $http.get(issueCashEndpoint).then(
+            $http.post(issueCashEndpoint).then(awaitFlow).then(
                 (result) => {console.log(result.toString()); issueCashModal.displayMessage(result); },
                 (result) => {console.log(result.toString()); issueCashModal.displayMessage(result); }
             );
@@ -1,15 +1,17 @@
 "use strict";
 
 // Define your backend here.
-angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', function($http, $location, $uibModal) {
+angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', function($http, $location, $uibModal, $scope, $interval, $timeout) {
     const demoApp = this;
 
     const apiBaseURL = "/api/iou/";
 
     // Retrieves the identity of this and other nodes.
     let peers = [];
+    let notaries = [];
     $http.get(apiBaseURL + "me").then((response) => demoApp.thisNode = response.data.me);
     $http.get(apiBaseURL + "peers").then((response) => peers = response.data.peers);
+    $http.get(apiBaseURL + "notaries").then((response) => notaries = response.data.notaries);
 
     /** Displays the IOU creation modal. */
     demoApp.openCreateIOUModal = () => {
@@ -34,7 +36,8 @@ angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', func
             controller: 'IssueCashModalCtrl',
             controllerAs: 'issueCashModal',
             resolve: {
-                apiBaseURL: () => apiBaseURL
+                apiBaseURL: () => apiBaseURL,
+                notaries: () => notaries
             }
         });
 
@@ -72,18 +75,90 @@ angular.module('demoAppModule', ['ui.bootstrap']).controller('DemoAppCtrl', func
         settleModal.result.then(() => {}, () => {});
     };
 
+    // The IOUs shown, keyed by the ref of their current state, in the order they were recorded.
+    const iouStates = new Map();
+    const showIOUs = (stateAndRefs) => {
+        iouStates.clear();
+        stateAndRefs.forEach((stateAndRef) => iouStates.set(stateAndRef.ref, stateAndRef.data));
+        demoApp.ious = Array.from(iouStates.values());
+    };
+
     /** Refreshes the front-end. */
     demoApp.refresh = () => {
         // Update the list of IOUs.
-        $http.get(apiBaseURL + "ious").then((response) => demoApp.ious =
-            Object.keys(response.data).map((key) => response.data[key].state.data));
+        $http.get(apiBaseURL + "ious", { params: { pageSize: 1000 } }).then((response) =>
+            showIOUs(response.data.states));
 
         // Update the cash balances.
         $http.get(apiBaseURL + "cash-balances").then((response) => demoApp.cashBalances =
             response.data);
     }
 
-    demoApp.refresh();
+    /** Applies the changes streamed by the node, starting from a snapshot of its IOUs and cash balances. */
+    const subscribe = () => {
+        const updates = new EventSource(apiBaseURL + "updates");
+        const apply = (handler) => (event) => $scope.$apply(() => handler(JSON.parse(event.data)));
+
+        updates.addEventListener("snapshot", apply((snapshot) => {
+            showIOUs(snapshot.ious);
+            demoApp.cashBalances = snapshot.cashBalances;
+        }));
+        updates.addEventListener("ious", apply((changes) => {
+            changes.consumed.forEach((ref) => iouStates.delete(ref));
+            changes.produced.forEach((stateAndRef) => iouStates.set(stateAndRef.ref, stateAndRef.data));
+            demoApp.ious = Array.from(iouStates.values());
+        }));
+        updates.addEventListener("cash", apply((changes) => demoApp.cashBalances = changes.balances));
+
+        // EventSource reconnects by itself after a dropped connection, resuming from the last event it received, but
+        // gives up if the node refuses the stream, as it does while its vault feed is down or too many streams are
+        // open. Fall back to polling the IOUs and balances, and try the stream again later.
+        updates.onopen = () => {
+            if (polling) {
+                $interval.cancel(polling);
+                polling = null;
+            }
+        };
+        updates.onerror = () => {
+            if (updates.readyState === EventSource.CLOSED) {
+                if (!polling) {
+                    demoApp.refresh();
+                    polling = $interval(demoApp.refresh, 10000);
+                }
+                $timeout(subscribe, 60000);
+            }
+        };
+    };
+    let polling = null;
+
+    if (typeof EventSource !== "undefined") {
+        subscribe();
+    } else {
+        demoApp.refresh();
+    }
+});
+
+// Waits for a flow started by the API to finish, given the 202 Accepted response that started it, by long-polling its
+// status. Resolves with a message describing the outcome, in the same form as an $http response.
+angular.module('demoAppModule').factory('awaitFlow', function($http, $q, $timeout) {
+    // The node answers without waiting, with a Retry-After header, when too many requests are already waiting.
+    const awaitStatus = (response) => {
+        const status = response.data;
+        if (status.state !== "RUNNING") {
+            return $q.resolve(status);
+        }
+        const retryAfter = Number(response.headers("Retry-After")) || 0;
+        return $timeout(retryAfter * 1000)
+            .then(() => $http.get(`/api/iou/flows/${status.id}`, { params: { wait: 30 } }))
+            .then(awaitStatus);
+    };
+
+    return (response) => awaitStatus(response).then((status) => {
+        if (status.state === "FAILED") {
+            return $q.reject({ data: status.error });
+        }
+        return { data: status.txId ? `Transaction id ${status.txId} committed to ledger.` : "Flow completed." };
+    });
 });
 
 // Causes the webapp to ignore unhandled modal dismissals.
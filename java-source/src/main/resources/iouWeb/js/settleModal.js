@@ -1,7 +1,7 @@
 "use strict";
 
 // Similar to the IOU creation modal - see createIOUModal.js for comments.
-angular.module('demoAppModule').controller('SettleModalCtrl', function($http, $uibModalInstance, $uibModal, apiBaseURL, id) {
+angular.module('demoAppModule').controller('SettleModalCtrl', function($http, $uibModalInstance, $uibModal, apiBaseURL, awaitFlow, id) {
     const settleModal = this;
 
     settleModal.id = id;
@@ -24,7 +24,7 @@ angular.module('demoAppModule').controller('SettleModalCtrl', function($http, $u
                 apiBaseURL +
                 `settle-iou?id=${id}&amount=${amount}&currency=${currency}`;
 
-            $http.get(issueIOUEndpoint).then(
+            $http.post(issueIOUEndpoint).then(awaitFlow).then(
                 (result) => settleModal.displayMessage(result),
                 (result) => settleModal.displayMessage(result)
             );
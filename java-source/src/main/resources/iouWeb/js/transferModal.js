@@ -1,7 +1,7 @@
 "use strict";
 
 // Similar to the IOU creation modal - see createIOUModal.js for comments.
-angular.module('demoAppModule').controller('TransferModalCtrl', function ($http, $uibModalInstance, $uibModal, apiBaseURL, peers, id) {
+angular.module('demoAppModule').controller('TransferModalCtrl', function ($http, $uibModalInstance, $uibModal, apiBaseURL, awaitFlow, peers, id) {
     const transferModal = this;
 
     transferModal.peers = peers;
@@ -24,7 +24,7 @@ angular.module('demoAppModule').controller('TransferModalCtrl', function ($http,
                 apiBaseURL +
                 `transfer-iou?id=${id}&party=${party}`;
 
-            $http.get(issueIOUEndpoint).then(
+            $http.post(issueIOUEndpoint).then(awaitFlow).then(
                 (result) => transferModal.displayMessage(result),
                 (result) => transferModal.displayMessage(result)
             );
@@ -0,0 +1,117 @@
+package net.corda.training;
+
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.testing.node.*;
+import org.junit.rules.ExternalResource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Currency;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A [MockNetwork] with a notary (or more, see [withNotaries]) and [nodeCount] nodes, shared by every test in a class.
+ * Use it as a JUnit @ClassRule.
+ *
+ * Starting the nodes takes most of the flow tests' run time, so the network is started once per class rather than
+ * once per test. Tests sharing it must not depend on the nodes' vaults being empty: they should only look at the IOUs
+ * they issued themselves, by linearId, and at cash in a currency no other test uses (see [freshCurrency]).
+ */
+public class MockNetworkRule extends ExternalResource {
+    // The two-decimal currencies the tests don't otherwise use, in a fixed order.
+    private static final Iterator<Currency> unusedCurrencies = Currency.getAvailableCurrencies().stream()
+            .filter(currency -> currency.getDefaultFractionDigits() == 2)
+            .filter(currency -> !Arrays.asList("GBP", "USD", "CHF").contains(currency.getCurrencyCode()))
+            .sorted(Comparator.comparing(Currency::getCurrencyCode))
+            .collect(Collectors.toList())
+            .iterator();
+
+    private final int nodeCount;
+    private final List<Class<? extends FlowLogic<?>>> responderFlows;
+    private int notaryCount = 1;
+    private MockNetwork mockNetwork;
+    private List<StartedMockNode> nodes;
+
+    /**
+     * Registers each of [responderFlows] on every node, as happens automatically for real nodes.
+     */
+    @SafeVarargs
+    public MockNetworkRule(int nodeCount, Class<? extends FlowLogic<?>>... responderFlows) {
+        this.nodeCount = nodeCount;
+        this.responderFlows = Arrays.asList(responderFlows);
+    }
+
+    /**
+     * Starts [notaryCount] notaries rather than one. The first is "Notary" and is the one the nodes' default
+     * [NotarySelectionService] chooses; the others are "Notary2", "Notary3" and so on.
+     */
+    public MockNetworkRule withNotaries(int notaryCount) {
+        if (notaryCount < 1) {
+            throw new IllegalArgumentException("The network needs at least one notary.");
+        }
+        this.notaryCount = notaryCount;
+        return this;
+    }
+
+    @Override
+    protected void before() {
+        List<MockNetworkNotarySpec> notarySpecs = new ArrayList<>();
+        for (int i = 0; i < notaryCount; i++) {
+            notarySpecs.add(new MockNetworkNotarySpec(new CordaX500Name(i == 0 ? "Notary" : "Notary" + (i + 1), "London", "GB")));
+        }
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.training"),
+                        TestCordapp.findCordapp("net.corda.finance.schemas")
+                )
+        ).withNotarySpecs(notarySpecs);
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        List<StartedMockNode> startedNodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            startedNodes.add(mockNetwork.createNode(new MockNodeParameters()));
+        }
+        for (Class<? extends FlowLogic<?>> responderFlow : responderFlows) {
+            startedNodes.forEach(el -> el.registerInitiatedFlow(responderFlow));
+        }
+        nodes = Collections.unmodifiableList(startedNodes);
+        mockNetwork.runNetwork();
+    }
+
+    @Override
+    protected void after() {
+        mockNetwork.stopNodes();
+    }
+
+    public MockNetwork getMockNetwork() {
+        return mockNetwork;
+    }
+
+    public StartedMockNode node(int index) {
+        return nodes.get(index);
+    }
+
+    /**
+     * Returns the identity of the [index]th notary, in the order given by [withNotaries].
+     */
+    public Party notary(int index) {
+        return mockNetwork.getNotaryNodes().get(index).getInfo().getLegalIdentities().get(0);
+    }
+
+    /**
+     * Returns a currency, with two decimal places, that no earlier caller in this JVM has been given. A test settling
+     * IOUs in its own currency sees only the cash it issued itself, whatever other tests left in the vault.
+     */
+    public static synchronized Currency freshCurrency() {
+        if (!unusedCurrencies.hasNext()) {
+            throw new IllegalStateException("Every currency has already been used.");
+        }
+        return unusedCurrencies.next();
+    }
+}
@@ -0,0 +1,103 @@
+package net.corda.training.api;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.Party;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.training.MockNetworkRule;
+import net.corda.training.flow.IOUIssueFlow;
+import net.corda.training.state.IOUState;
+import org.junit.ClassRule;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.MAX_PAGE_SIZE;
+import static org.junit.Assert.*;
+
+public class ExposureTests {
+
+    @ClassRule
+    public static final MockNetworkRule network = new MockNetworkRule(3, IOUIssueFlow.ResponderFlow.class);
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    private static void issueIOU(StartedMockNode initiator, IOUState state) throws Exception {
+        CordaFuture<?> future = initiator.startFlow(new IOUIssueFlow.InitiatorFlow(state));
+        network.getMockNetwork().runNetwork();
+        future.get();
+    }
+
+    private static List<?> aggregate(StartedMockNode node, QueryCriteria criteria) {
+        return node.transaction(() -> node.getServices().getVaultService()
+                .queryBy(IOUState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, MAX_PAGE_SIZE))
+                .getOtherResults());
+    }
+
+    @Test
+    public void fromAggregatesCombinesBothSidesByCounterpartyAndCurrency() {
+        List<Exposure> exposures = Exposure.fromAggregates(
+                Arrays.asList(1000L, "O=Bob,L=London,C=GB", "GBP", 250L, "O=Alice,L=London,C=GB", "USD"),
+                Arrays.asList(400L, "O=Bob,L=London,C=GB", "GBP", 75L, "O=Alice,L=London,C=GB", "GBP"));
+
+        assertEquals(3, exposures.size());
+        assertEquals(Arrays.asList("O=Alice,L=London,C=GB", "O=Alice,L=London,C=GB", "O=Bob,L=London,C=GB"),
+                exposures.stream().map(Exposure::getCounterparty).collect(Collectors.toList()));
+        assertEquals(Arrays.asList("GBP", "USD", "GBP"),
+                exposures.stream().map(Exposure::getCurrency).collect(Collectors.toList()));
+
+        Exposure aliceGBP = exposures.get(0);
+        assertEquals(new BigDecimal("0.00"), aliceGBP.getOwedToUs());
+        assertEquals(new BigDecimal("0.75"), aliceGBP.getOwedByUs());
+        assertEquals(new BigDecimal("-0.75"), aliceGBP.getNet());
+
+        Exposure bobGBP = exposures.get(2);
+        assertEquals(new BigDecimal("10.00"), bobGBP.getOwedToUs());
+        assertEquals(new BigDecimal("4.00"), bobGBP.getOwedByUs());
+        assertEquals(new BigDecimal("6.00"), bobGBP.getNet());
+    }
+
+    @Test
+    public void fromAggregatesReturnsNothingForAnEmptyVault() {
+        assertEquals(Collections.emptyList(), Exposure.fromAggregates(Collections.emptyList(), Collections.emptyList()));
+    }
+
+    @Test
+    public void aggregateQueriesSumTheOutstandingAmountByCounterpartyAndCurrency() throws Exception {
+        StartedMockNode a = network.node(0);
+        StartedMockNode b = network.node(1);
+        StartedMockNode c = network.node(2);
+        // Other tests in the class may share the nodes, so only look at the IOUs issued here, in a currency of their own.
+        Currency currency = MockNetworkRule.freshCurrency();
+        issueIOU(a, new IOUState(Amount.fromDecimal(BigDecimal.valueOf(10), currency), party(a), party(b)));
+        issueIOU(a, new IOUState(Amount.fromDecimal(BigDecimal.valueOf(2), currency), party(a), party(b)));
+        issueIOU(a, new IOUState(Amount.fromDecimal(BigDecimal.valueOf(5), currency), party(a), party(c)));
+        issueIOU(b, new IOUState(Amount.fromDecimal(BigDecimal.valueOf(3), currency), party(b), party(a)));
+
+        List<Exposure> exposures = Exposure.fromAggregates(
+                aggregate(a, Exposure.owedToUsCriteria(party(a).getName())),
+                aggregate(a, Exposure.owedByUsCriteria(party(a).getName())))
+                .stream()
+                .filter(exposure -> exposure.getCurrency().equals(currency.getCurrencyCode()))
+                .collect(Collectors.toList());
+
+        assertEquals(2, exposures.size());
+        Exposure withB = exposures.stream().filter(exposure -> exposure.getCounterparty().equals(party(b).getName().toString())).findFirst().get();
+        Exposure withC = exposures.stream().filter(exposure -> exposure.getCounterparty().equals(party(c).getName().toString())).findFirst().get();
+        assertEquals(new BigDecimal("12.00"), withB.getOwedToUs());
+        assertEquals(new BigDecimal("3.00"), withB.getOwedByUs());
+        assertEquals(new BigDecimal("9.00"), withB.getNet());
+        assertEquals(new BigDecimal("5.00"), withC.getOwedToUs());
+        assertEquals(new BigDecimal("0.00"), withC.getOwedByUs());
+    }
+}
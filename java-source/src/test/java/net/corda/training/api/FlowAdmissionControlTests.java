@@ -0,0 +1,109 @@
+package net.corda.training.api;
+
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.internal.concurrent.OpenFuture;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowHandleImpl;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static net.corda.core.internal.concurrent.CordaFutureImplKt.openFuture;
+import static org.junit.Assert.*;
+
+public class FlowAdmissionControlTests {
+
+    private static FlowHandle<String> handle(OpenFuture<String> returnValue) {
+        return new FlowHandleImpl<>(StateMachineRunId.createRandom(), returnValue);
+    }
+
+    @Test
+    public void flowsBeyondTheLimitAndQueueAreRejected() throws Exception {
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(2, 0, Duration.ZERO);
+        admissionControl.start(() -> handle(openFuture()));
+        admissionControl.start(() -> handle(openFuture()));
+        try {
+            admissionControl.start(() -> handle(openFuture()));
+            fail("The third flow should have been rejected.");
+        } catch (FlowAdmissionControl.RejectedException e) {
+            assertTrue(e.getRetryAfterSeconds() >= 1);
+        }
+        assertEquals(2L, (long) admissionControl.snapshot().get("inFlight"));
+        assertEquals(0L, (long) admissionControl.snapshot().get("queued"));
+        assertEquals(1L, (long) admissionControl.snapshot().get("rejected"));
+    }
+
+    @Test
+    public void aCompletedFlowFreesItsPlace() throws Exception {
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(1, 0, Duration.ZERO);
+        OpenFuture<String> first = openFuture();
+        admissionControl.start(() -> handle(first));
+        first.set("done");
+        admissionControl.start(() -> handle(openFuture()));
+        assertEquals(1L, (long) admissionControl.snapshot().get("inFlight"));
+        assertEquals(0L, (long) admissionControl.snapshot().get("rejected"));
+    }
+
+    @Test
+    public void aFlowThatFailsToStartFreesItsPlace() throws Exception {
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(1, 0, Duration.ZERO);
+        try {
+            admissionControl.<FlowHandle<String>>start(() -> {
+                throw new IllegalArgumentException("Unknown party name.");
+            });
+            fail("The flow should have failed to start.");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0L, (long) admissionControl.snapshot().get("inFlight"));
+        }
+    }
+
+    @Test
+    public void aQueuedFlowStartsWhenARunningFlowCompletes() throws Exception {
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(1, 1, Duration.ofSeconds(30));
+        OpenFuture<String> first = openFuture();
+        admissionControl.start(() -> handle(first));
+        Thread completer = new Thread(() -> {
+            while (admissionControl.snapshot().get("queued") == 0) {
+                Thread.yield();
+            }
+            first.set("done");
+        });
+        completer.start();
+        admissionControl.start(() -> handle(openFuture()));
+        completer.join();
+        assertEquals(1L, (long) admissionControl.snapshot().get("inFlight"));
+        assertEquals(0L, (long) admissionControl.snapshot().get("rejected"));
+    }
+
+    @Test
+    public void aFlowIsRejectedAtOnceWhileTheQueueIsFull() throws Exception {
+        FlowAdmissionControl admissionControl = new FlowAdmissionControl(1, 1, Duration.ofSeconds(30));
+        OpenFuture<String> first = openFuture();
+        admissionControl.start(() -> handle(first));
+        Thread queued = new Thread(() -> {
+            try {
+                admissionControl.start(() -> handle(openFuture()));
+            } catch (FlowAdmissionControl.RejectedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        queued.start();
+        while (admissionControl.snapshot().get("queued") == 0) {
+            Thread.yield();
+        }
+
+        long started = System.nanoTime();
+        try {
+            admissionControl.start(() -> handle(openFuture()));
+            fail("The flow should have been rejected while the queue is full.");
+        } catch (FlowAdmissionControl.RejectedException e) {
+            // Rejected straight away, rather than after waiting for a place.
+            assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            first.set("done");
+            queued.join();
+        }
+        assertEquals(1L, (long) admissionControl.snapshot().get("rejected"));
+    }
+}
@@ -0,0 +1,75 @@
+package net.corda.training.api;
+
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.internal.concurrent.OpenFuture;
+import net.corda.core.messaging.FlowHandle;
+import net.corda.core.messaging.FlowHandleImpl;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.corda.core.internal.concurrent.CordaFutureImplKt.openFuture;
+import static org.junit.Assert.*;
+
+public class FlowStatusTrackerTests {
+
+    private static FlowHandle<String> handle(OpenFuture<String> returnValue) {
+        return new FlowHandleImpl<>(StateMachineRunId.createRandom(), returnValue);
+    }
+
+    @Test
+    public void concurrentRequestsWithTheSameKeyStartOneFlow() throws Exception {
+        FlowStatusTracker tracker = new FlowStatusTracker();
+        AtomicInteger starts = new AtomicInteger();
+        CountDownLatch starting = new CountDownLatch(1);
+        OpenFuture<String> returnValue = openFuture();
+        Callable<FlowHandle<String>> starter = () -> {
+            starts.incrementAndGet();
+            // Hold the first start open until the other requests are waiting on it.
+            starting.await();
+            return handle(returnValue);
+        };
+
+        ExecutorService requests = Executors.newFixedThreadPool(4);
+        try {
+            CompletionService<FlowStatusTracker.Started<String>> results = new ExecutorCompletionService<>(requests);
+            for (int i = 0; i < 4; i++) {
+                results.submit(() -> tracker.startOnce("key-1", "request", starter));
+            }
+            Thread.sleep(100);
+            starting.countDown();
+            FlowStatusTracker.Started<String> first = results.take().get();
+            for (int i = 1; i < 4; i++) {
+                assertSame(first.getStatus(), results.take().get().getStatus());
+            }
+        } finally {
+            requests.shutdownNow();
+        }
+        assertEquals(1, starts.get());
+    }
+
+    @Test
+    public void aKeyIsFreedOnceItsFlowCompletes() throws Exception {
+        FlowStatusTracker tracker = new FlowStatusTracker();
+        OpenFuture<String> first = openFuture();
+        FlowStatusTracker.Started<String> started = tracker.startOnce("key-2", "request", () -> handle(first));
+        first.set("done");
+        assertEquals(FlowStatusTracker.FlowStatus.State.COMPLETED, started.getStatus().getState());
+
+        FlowStatusTracker.Started<String> retried = tracker.startOnce("key-2", "request", () -> handle(openFuture()));
+        assertNotSame(started.getStatus(), retried.getStatus());
+    }
+
+    @Test
+    public void reusingARunningKeyForADifferentRequestFails() throws Exception {
+        FlowStatusTracker tracker = new FlowStatusTracker();
+        tracker.startOnce("key-3", "request", () -> handle(openFuture()));
+        try {
+            tracker.startOnce("key-3", "another request", () -> handle(openFuture()));
+            fail("The key should have been refused.");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("key-3"));
+        }
+    }
+}
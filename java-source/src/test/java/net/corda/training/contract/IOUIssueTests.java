@@ -281,4 +281,50 @@ public class IOUIssueTests {
             return null;
         });
     }
+
+    /**
+     * Batch issuance.
+     * The [IOUContract.Commands.IssueBatch] command allows any number of IOUs to be issued in one transaction, as long
+     * as they are all between the same two parties and those two parties only sign.
+     */
+    @Test
+    public void batchIssueTransactionMayHaveManyOutputsBetweenTheSameParties() {
+        IOUState iouOne = new IOUState(Currencies.POUNDS(1), ALICE.getParty(), BOB.getParty());
+        IOUState iouTwo = new IOUState(Currencies.POUNDS(2), ALICE.getParty(), BOB.getParty());
+        IOUState iouThree = new IOUState(Currencies.DOLLARS(3), BOB.getParty(), ALICE.getParty());
+        IOUState iouWithCharlie = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), CHARLIE.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.IssueBatch());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithCharlie);
+                return tx.failsWith("All IOUs in a batch must be between the same two parties.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.IssueBatch());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(Currencies.POUNDS(0), ALICE.getParty(), BOB.getParty()));
+                return tx.failsWith("A newly issued IOU must have a positive amount.");
+            });
+            l.transaction(tx -> {
+                tx.command(ALICE.getPublicKey(), new IOUContract.Commands.IssueBatch());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                return tx.failsWith("Both lender and borrower together only may sign IOU issue transaction.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.IssueBatch());
+                return tx.failsWith("At least one IOU should be created when issuing a batch of IOUs.");
+            });
+            l.transaction(tx -> {
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.IssueBatch());
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouThree);
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
 }
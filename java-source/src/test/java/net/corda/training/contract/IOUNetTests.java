@@ -0,0 +1,116 @@
+package net.corda.training.contract;
+
+import net.corda.core.contracts.*;
+import net.corda.finance.Currencies;
+import net.corda.testing.contracts.DummyState;
+import net.corda.testing.node.MockServices;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static net.corda.testing.node.NodeTestUtils.ledger;
+import static net.corda.training.TestUtils.*;
+
+/**
+ * Tests for the [IOUContract.Commands.Net] command, which replaces a set of offsetting IOUs with residual IOUs that
+ * leave every party's net position unchanged in each currency.
+ */
+public class IOUNetTests {
+
+    static private final MockServices ledgerServices = new MockServices(Arrays.asList("net.corda.training", "net.corda.finance.contracts"));
+
+    @Test
+    public void netPositionsMustBeConserved() {
+        // ALICE owes BOB 10, BOB owes CHARLIE 10 and CHARLIE owes ALICE 4, so ALICE owes 6 overall, BOB is flat and
+        // CHARLIE is owed 6.
+        IOUState aliceOwesBob = new IOUState(Currencies.POUNDS(10), BOB.getParty(), ALICE.getParty());
+        IOUState bobOwesCharlie = new IOUState(Currencies.POUNDS(10), CHARLIE.getParty(), BOB.getParty());
+        IOUState charlieOwesAlice = new IOUState(Currencies.POUNDS(4), ALICE.getParty(), CHARLIE.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesAlice);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(Currencies.POUNDS(5), CHARLIE.getParty(), ALICE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Each party's net position must be conserved in every currency.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesAlice);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(Currencies.DOLLARS(6), CHARLIE.getParty(), ALICE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Each party's net position must be conserved in every currency.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.input(IOUContract.IOU_CONTRACT_ID, charlieOwesAlice);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(Currencies.POUNDS(6), CHARLIE.getParty(), ALICE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void onlyIOUsMayBeNetted() {
+        IOUState aliceOwesBob = new IOUState(Currencies.POUNDS(10), BOB.getParty(), ALICE.getParty());
+        IOUState bobOwesAlice = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.output(IOUContract.IOU_CONTRACT_ID, new DummyState());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Only IOUs may be netted.");
+            });
+            l.transaction(tx -> {
+                tx.output(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("At least one IOU must be netted.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesAlice);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+    @Test
+    public void everyPartyToTheNettedIOUsMustSign() {
+        IOUState aliceOwesBob = new IOUState(Currencies.POUNDS(10), BOB.getParty(), ALICE.getParty());
+        IOUState bobOwesCharlie = new IOUState(Currencies.POUNDS(10), CHARLIE.getParty(), BOB.getParty());
+        IOUState residual = new IOUState(Currencies.POUNDS(10), CHARLIE.getParty(), ALICE.getParty());
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, residual);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Every party to the netted IOUs only must sign an IOU netting transaction.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, residual);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey(), MINICORP.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.failsWith("Every party to the netted IOUs only must sign an IOU netting transaction.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, aliceOwesBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, bobOwesCharlie);
+                tx.output(IOUContract.IOU_CONTRACT_ID, residual);
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.Net());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+}
@@ -513,4 +513,74 @@ public class IOUSettleTests {
 
     }
 
-}
\ No newline at end of file
+    /**
+     * Batch settlement.
+     * The [IOUContract.Commands.SettleBatch] command settles many IOUs with the same lender, borrower and currency in
+     * one transaction. IOUs without an output are fully settled, and the cash paid to the lender must equal the sum of
+     * the payments.
+     */
+    @Test
+    public void batchSettlementMustBeCoveredByCashPaidToTheLender() {
+        IOUState iouOne = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState iouTwo = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty());
+        IOUState iouWithCharlie = new IOUState(Currencies.POUNDS(10), CHARLIE.getParty(), BOB.getParty());
+        Cash.State fifteenPounds = createCashState(BOB.getParty(), Currencies.POUNDS(15));
+        Cash.State fourteenPounds = createCashState(BOB.getParty(), Currencies.POUNDS(14));
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithCharlie);
+                tx.input(Cash.class.getName(), fifteenPounds);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(5)));
+                tx.output(Cash.class.getName(), fifteenPounds.withNewOwner(ALICE.getParty()).getOwnableState());
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.SettleBatch());
+                return tx.failsWith("All settled IOUs must have the same lender.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.input(Cash.class.getName(), fourteenPounds);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(5)));
+                tx.output(Cash.class.getName(), fourteenPounds.withNewOwner(ALICE.getParty()).getOwnableState());
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.SettleBatch());
+                return tx.failsWith("The cash paid to the lender must cover the IOU payments.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.input(Cash.class.getName(), fifteenPounds);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(5)));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(6)));
+                tx.output(Cash.class.getName(), fifteenPounds.withNewOwner(ALICE.getParty()).getOwnableState());
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.SettleBatch());
+                return tx.failsWith("Each IOU may only have one output IOU.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.input(Cash.class.getName(), fifteenPounds);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(5)));
+                tx.output(Cash.class.getName(), fifteenPounds.withNewOwner(ALICE.getParty()).getOwnableState());
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(BOB.getPublicKey(), new IOUContract.Commands.SettleBatch());
+                return tx.failsWith("Both lender and borrower must sign IOU settle transaction.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouOne);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouTwo);
+                tx.input(Cash.class.getName(), fifteenPounds);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouOne.pay(Currencies.POUNDS(5)));
+                tx.output(Cash.class.getName(), fifteenPounds.withNewOwner(ALICE.getParty()).getOwnableState());
+                tx.command(BOB.getPublicKey(), new Cash.Commands.Move());
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey()), new IOUContract.Commands.SettleBatch());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
+}
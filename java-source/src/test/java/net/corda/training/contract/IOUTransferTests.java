@@ -16,6 +16,7 @@ import net.corda.training.state.IOUState;
 import org.junit.Test;
 
 import javax.validation.constraints.NotNull;
+import java.security.PublicKey;
 import java.util.Arrays;
 import java.util.Currency;
 import java.util.List;
@@ -262,4 +263,75 @@ public class IOUTransferTests {
         });
     }
 
+    /**
+     * Batch transfer.
+     * The [IOUContract.Commands.TransferBatch] command moves many IOUs, possibly with different borrowers, to one new
+     * lender. Inputs and outputs are paired by linearId, and every borrower, old lender and the new lender must sign.
+     */
+    @Test
+    public void batchTransferMustPairIOUsByLinearIdAndBeSignedByEveryParty() {
+        IOUState iouWithBob = new IOUState(Currencies.DOLLARS(10), ALICE.getParty(), BOB.getParty());
+        IOUState iouWithMiniCorp = new IOUState(Currencies.DOLLARS(20), ALICE.getParty(), MINICORP.getParty());
+        List<PublicKey> allSigners = Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), MINICORP.getPublicKey(), CHARLIE.getPublicKey());
+
+        ledger(ledgerServices, l -> {
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.command(allSigners, new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("Each transferred IOU must have one output state.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.command(allSigners, new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("Each IOU may only have one output IOU.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, new IOUState(Currencies.DOLLARS(20), CHARLIE.getParty(), MINICORP.getParty()));
+                tx.command(allSigners, new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("Each output IOU must have a matching input IOU.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp.withNewLender(CHARLIE.getParty()).pay(Currencies.DOLLARS(5)));
+                tx.command(allSigners, new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("Only the lender property may change.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp.withNewLender(MEGACORP.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), MINICORP.getPublicKey(), CHARLIE.getPublicKey(), MEGACORP.getPublicKey()), new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("All IOUs in a batch must be transferred to the same new lender.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp.withNewLender(CHARLIE.getParty()));
+                tx.command(Arrays.asList(ALICE.getPublicKey(), BOB.getPublicKey(), CHARLIE.getPublicKey()), new IOUContract.Commands.TransferBatch());
+                return tx.failsWith("The borrowers, old lenders and new lender only must sign an IOU batch transfer transaction.");
+            });
+            l.transaction(tx -> {
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithBob);
+                tx.input(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp);
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithBob.withNewLender(CHARLIE.getParty()));
+                tx.output(IOUContract.IOU_CONTRACT_ID, iouWithMiniCorp.withNewLender(CHARLIE.getParty()));
+                tx.command(allSigners, new IOUContract.Commands.TransferBatch());
+                return tx.verifies();
+            });
+            return null;
+        });
+    }
+
 }
@@ -0,0 +1,89 @@
+package net.corda.training.flow;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.finance.Currencies;
+import net.corda.finance.contracts.asset.Cash;
+import net.corda.testing.node.*;
+import net.corda.training.service.CashBalanceService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Currency;
+
+import static org.junit.Assert.assertEquals;
+
+public class CashConsolidationFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.training"),
+                        TestCordapp.findCordapp("net.corda.finance.schemas")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+        a = mockNetwork.createNode(new MockNodeParameters());
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private void issueCash(Amount<Currency> amount) throws Exception {
+        CordaFuture<Cash.State> future = a.startFlow(new SelfIssueCashFlow(amount));
+        mockNetwork.runNetwork();
+        future.get();
+    }
+
+    private int unconsumedCashStates() {
+        return a.transaction(() -> a.getServices().getVaultService().queryBy(Cash.State.class).getStates().size());
+    }
+
+    @Test
+    public void smallCashStatesAreMergedIntoOne() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            issueCash(Currencies.POUNDS(1));
+        }
+        issueCash(Currencies.POUNDS(50));
+        assertEquals(6, unconsumedCashStates());
+
+        CordaFuture<CashConsolidationFlow.Result> future = a.startFlow(
+                new CashConsolidationFlow(Currencies.POUNDS(0).getToken(), Currencies.POUNDS(10)));
+        mockNetwork.runNetwork();
+        CashConsolidationFlow.Result result = future.get();
+
+        assertEquals(5, result.getStatesMerged());
+        assertEquals(1, result.getStatesCreated());
+        assertEquals(1, result.getTransactionSizes().size());
+        // The large state is left alone and the balance is unchanged.
+        assertEquals(2, unconsumedCashStates());
+        assertEquals(Currencies.POUNDS(55), a.getServices().cordaService(CashBalanceService.class).balance(Currencies.POUNDS(0).getToken()));
+    }
+
+    @Test
+    public void mergesAreSplitIntoTransactionsOfAtMostTheMaximumInputs() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            issueCash(Currencies.POUNDS(1));
+        }
+
+        CordaFuture<CashConsolidationFlow.Result> future = a.startFlow(
+                new CashConsolidationFlow(Currencies.POUNDS(0).getToken(), Currencies.POUNDS(10), 2));
+        mockNetwork.runNetwork();
+        CashConsolidationFlow.Result result = future.get();
+
+        // Two transactions of two inputs each; the fifth state has nothing left to merge with.
+        assertEquals(4, result.getStatesMerged());
+        assertEquals(2, result.getStatesCreated());
+        assertEquals(3, unconsumedCashStates());
+    }
+}
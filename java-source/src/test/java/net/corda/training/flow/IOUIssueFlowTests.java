@@ -6,18 +6,28 @@ import net.corda.core.flows.FlowLogic;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.finance.*;
+import net.corda.finance.flows.AbstractCashFlow;
+import net.corda.finance.flows.CashIssueFlow;
 import net.corda.core.node.NodeInfo;
 import net.corda.testing.node.*;
 import net.corda.core.identity.Party;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.OpaqueBytes;
 
 
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.training.MockNetworkRule;
 import net.corda.training.contract.IOUContract;
+import net.corda.training.schema.IdempotencyKeySchemaV1.PersistentIdempotencyKey;
+import net.corda.training.service.FlowMetricsService;
+import net.corda.training.service.IdempotencyKeyService;
 import net.corda.training.state.IOUState;
 
 import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.*;
 
@@ -28,6 +38,7 @@ import static org.junit.Assert.*;
 import static org.hamcrest.core.IsInstanceOf.*;
 
 import java.security.PublicKey;
+import java.time.Instant;
 
 /**
  * Practical exercise instructions Flows part 1.
@@ -35,34 +46,21 @@ import java.security.PublicKey;
  */
 public class IOUIssueFlowTests {
 
+    // The nodes are shared by every test in the class, so each test only looks at the IOUs it issues itself.
+    @ClassRule
+    public static final MockNetworkRule network = new MockNetworkRule(2,
+            IOUIssueFlow.ResponderFlow.class,
+            IOUIssueFlow.BatchResponderFlow.class,
+            AsyncFinalityFlow.DistributeResponder.class);
+
     private MockNetwork mockNetwork;
     private StartedMockNode a, b;
 
     @Before
     public void setup() {
-        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
-                Arrays.asList(
-                        TestCordapp.findCordapp("net.corda.training")
-                )
-        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
-        mockNetwork = new MockNetwork(mockNetworkParameters);
-        System.out.println(mockNetwork);
-
-        a = mockNetwork.createNode(new MockNodeParameters());
-        b = mockNetwork.createNode(new MockNodeParameters());
-
-        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
-        startedNodes.add(a);
-        startedNodes.add(b);
-
-        // For real nodes this happens automatically, but we have to manually register the flow for tests
-        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
-        mockNetwork.runNetwork();
-    }
-
-    @After
-    public void tearDown() {
-        mockNetwork.stopNodes();
+        mockNetwork = network.getMockNetwork();
+        a = network.node(0);
+        b = network.node(1);
     }
 
     @Rule
@@ -223,4 +221,228 @@ public class IOUIssueFlowTests {
             assertEquals(stx.getId(), txHash);
         });
     }
+
+    /**
+     * Batch issuance.
+     * IOUs issued together with the same counterparty are committed in a single transaction.
+     */
+    @Test
+    public void batchFlowCommitsIOUsWithTheSameCounterpartyInOneTransaction() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        List<IOUState> ious = Arrays.asList(
+                new IOUState(Currencies.POUNDS(10), lender, borrower),
+                new IOUState(Currencies.POUNDS(20), lender, borrower),
+                new IOUState(Currencies.DOLLARS(30), lender, borrower));
+
+        Future<List<SignedTransaction>> future = a.startFlow(new IOUIssueFlow.BatchInitiatorFlow(ious));
+        mockNetwork.runNetwork();
+        List<SignedTransaction> stxs = future.get();
+
+        assertEquals(1, stxs.size());
+        SignedTransaction stx = stxs.get(0);
+        stx.verifyRequiredSignatures();
+        assertEquals(3, stx.getTx().outputsOfType(IOUState.class).size());
+        assert (stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.IssueBatch);
+        assertEquals(stx.getId(), b.getServices().getValidatedTransactions().getTransaction(stx.getId()).getId());
+    }
+
+    /**
+     * Asynchronous finality.
+     * The flow returns once the transaction is recorded locally, and the counterparty receives it afterwards.
+     */
+    @Test
+    public void asyncFinalityRecordsTheTransactionWithTheCounterpartyAfterReturning() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        IOUState iou = new IOUState(Currencies.POUNDS(10), lender, borrower);
+
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(iou, true));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+        stx.verifyRequiredSignatures();
+        assertEquals(stx.getId(), a.getServices().getValidatedTransactions().getTransaction(stx.getId()).getId());
+
+        // Let the distribution flow run to completion.
+        mockNetwork.runNetwork();
+        assertEquals(stx.getId(), b.getServices().getValidatedTransactions().getTransaction(stx.getId()).getId());
+    }
+
+    /**
+     * The counterparty only records a transaction pushed by the distribution flow if it signed it for the sender.
+     */
+    @Test
+    public void asyncFinalityRefusesATransactionTheCounterpartyDidNotSign() throws Exception {
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party notary = mockNetwork.getDefaultNotaryIdentity();
+
+        Future<AbstractCashFlow.Result> issue = a.startFlow(new CashIssueFlow(Currencies.POUNDS(10), OpaqueBytes.of((byte) 1), notary));
+        mockNetwork.runNetwork();
+        SignedTransaction unsigned = issue.get().getStx();
+
+        a.startFlow(new AsyncFinalityFlow.DistributeFlow(unsigned, borrower));
+        mockNetwork.runNetwork();
+        assertNull(b.getServices().getValidatedTransactions().getTransaction(unsigned.getId()));
+    }
+
+    /**
+     * Idempotent issuance.
+     * Retrying an issuance with the same idempotency key returns the original transaction instead of a new IOU.
+     */
+    @Test
+    public void retryWithTheSameIdempotencyKeyReturnsTheOriginalTransaction() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        Future<SignedTransaction> first = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-1"));
+        mockNetwork.runNetwork();
+        Future<SignedTransaction> retry = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-1"));
+        mockNetwork.runNetwork();
+
+        assertEquals(first.get().getId(), retry.get().getId());
+        assertEquals("request-1", first.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId().getExternalId());
+        QueryCriteria byIdempotencyKey = new QueryCriteria.LinearStateQueryCriteria(null, null, Arrays.asList("request-1"), Vault.StateStatus.ALL);
+        assertEquals(1, (int) a.transaction(() -> a.getServices().getVaultService().queryBy(IOUState.class, byIdempotencyKey).getStates().size()));
+    }
+
+    @Test
+    public void reusingAnIdempotencyKeyForADifferentIOUFails() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        Future<SignedTransaction> first = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-2"));
+        mockNetwork.runNetwork();
+        first.get();
+
+        Future<SignedTransaction> reuse = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(20), lender, borrower), false, "request-2"));
+        mockNetwork.runNetwork();
+        exception.expectCause(instanceOf(IllegalArgumentException.class));
+        reuse.get();
+    }
+
+    /**
+     * Two flows started at the same time with the same key issue one IOU between them: the key is reserved in the
+     * node's database before either builds its transaction. The other flow returns the same transaction, or fails
+     * because the IOU is still being issued.
+     */
+    @Test
+    public void concurrentFlowsWithTheSameIdempotencyKeyIssueOneIOU() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        Future<SignedTransaction> first = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-3"));
+        Future<SignedTransaction> second = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-3"));
+        mockNetwork.runNetwork();
+
+        List<SecureHash> issued = new ArrayList<>();
+        for (Future<SignedTransaction> future : Arrays.asList(first, second)) {
+            try {
+                issued.add(future.get().getId());
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("is already being issued"));
+            }
+        }
+        assertFalse(issued.isEmpty());
+        assertEquals(1, new HashSet<>(issued).size());
+        QueryCriteria byIdempotencyKey = new QueryCriteria.LinearStateQueryCriteria(null, null, Arrays.asList("request-3"), Vault.StateStatus.ALL);
+        assertEquals(1, (int) a.transaction(() -> a.getServices().getVaultService().queryBy(IOUState.class, byIdempotencyKey).getStates().size()));
+    }
+
+    /**
+     * Idempotency keys are scoped to the node issuing with them, so an IOU the counterparty issued to us with the same
+     * key doesn't stop us issuing our own.
+     */
+    @Test
+    public void theCounterpartysIdempotencyKeysDontClashWithOurs() throws Exception {
+        Party partyA = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party partyB = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        Future<SignedTransaction> theirs = b.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(20), partyB, partyA), false, "request-4"));
+        mockNetwork.runNetwork();
+        Future<SignedTransaction> ours = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), partyA, partyB), false, "request-4"));
+        mockNetwork.runNetwork();
+
+        assertNotEquals(theirs.get().getId(), ours.get().getId());
+        assertEquals(Currencies.POUNDS(10), ours.get().getTx().outputsOfType(IOUState.class).get(0).amount);
+    }
+
+    /**
+     * A key reserved by a flow which never finished, here one whose lease ran out long ago, is taken over by a retry.
+     */
+    @Test
+    public void aRetryTakesOverAnIdempotencyKeyWhoseLeaseRanOut() throws Exception {
+        Party lender = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        UUID linearId = a.getServices().cordaService(IdempotencyKeyService.class).linearIdFor("request-5");
+        a.transaction(() -> {
+            a.getServices().withEntityManager(entityManager -> {
+                entityManager.persist(new PersistentIdempotencyKey("request-5", linearId, lender.getName().toString(),
+                        borrower.getName().toString(), "GBP", 1000, UUID.randomUUID(), Instant.EPOCH));
+            });
+            return null;
+        });
+
+        Future<SignedTransaction> retry = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower), false, "request-5"));
+        mockNetwork.runNetwork();
+
+        assertEquals(linearId, retry.get().getTx().outputsOfType(IOUState.class).get(0).getLinearId().getId());
+    }
+
+    /**
+     * Flow step metrics.
+     * Each step of the initiator and the responder is recorded as a timer on the node that ran it.
+     */
+    @Test
+    public void flowStepLatenciesAreRecordedOnBothNodes() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        FlowMetricsService initiatorMetrics = a.getServices().cordaService(FlowMetricsService.class);
+        FlowMetricsService responderMetrics = b.getServices().cordaService(FlowMetricsService.class);
+        long verified = stepCount(initiatorMetrics, "IOUIssueFlow.InitiatorFlow.Verifying the transaction");
+        long finalised = stepCount(initiatorMetrics, "IOUIssueFlow.InitiatorFlow.Notarising and recording the transaction");
+        long signed = stepCount(responderMetrics, "IOUIssueFlow.ResponderFlow.Checking and signing the transaction");
+        long recorded = stepCount(responderMetrics, "IOUIssueFlow.ResponderFlow.Recording the transaction");
+
+        Future<SignedTransaction> future = a.startFlow(new IOUIssueFlow.InitiatorFlow(new IOUState(Currencies.POUNDS(10), lender, borrower)));
+        mockNetwork.runNetwork();
+        future.get();
+
+        assertEquals(verified + 1, stepCount(initiatorMetrics, "IOUIssueFlow.InitiatorFlow.Verifying the transaction"));
+        assertEquals(finalised + 1, stepCount(initiatorMetrics, "IOUIssueFlow.InitiatorFlow.Notarising and recording the transaction"));
+        assertEquals(signed + 1, stepCount(responderMetrics, "IOUIssueFlow.ResponderFlow.Checking and signing the transaction"));
+        assertEquals(recorded + 1, stepCount(responderMetrics, "IOUIssueFlow.ResponderFlow.Recording the transaction"));
+    }
+
+    /**
+     * The batch flows record the same steps as the single-IOU flows, under their own names.
+     */
+    @Test
+    public void batchFlowStepLatenciesAreRecordedOnBothNodes() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrower = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+
+        FlowMetricsService initiatorMetrics = a.getServices().cordaService(FlowMetricsService.class);
+        FlowMetricsService responderMetrics = b.getServices().cordaService(FlowMetricsService.class);
+        long verified = stepCount(initiatorMetrics, "IOUIssueFlow.BatchInitiatorFlow.Verifying the transaction");
+        long finalised = stepCount(initiatorMetrics, "IOUIssueFlow.BatchInitiatorFlow.Notarising and recording the transaction");
+        long signed = stepCount(responderMetrics, "IOUIssueFlow.BatchResponderFlow.Checking and signing the transaction");
+        long recorded = stepCount(responderMetrics, "IOUIssueFlow.BatchResponderFlow.Recording the transaction");
+
+        Future<List<SignedTransaction>> future = a.startFlow(new IOUIssueFlow.BatchInitiatorFlow(Arrays.asList(
+                new IOUState(Currencies.POUNDS(10), lender, borrower),
+                new IOUState(Currencies.POUNDS(20), lender, borrower))));
+        mockNetwork.runNetwork();
+        future.get();
+
+        assertEquals(verified + 1, stepCount(initiatorMetrics, "IOUIssueFlow.BatchInitiatorFlow.Verifying the transaction"));
+        assertEquals(finalised + 1, stepCount(initiatorMetrics, "IOUIssueFlow.BatchInitiatorFlow.Notarising and recording the transaction"));
+        assertEquals(signed + 1, stepCount(responderMetrics, "IOUIssueFlow.BatchResponderFlow.Checking and signing the transaction"));
+        assertEquals(recorded + 1, stepCount(responderMetrics, "IOUIssueFlow.BatchResponderFlow.Recording the transaction"));
+    }
+
+    private static long stepCount(FlowMetricsService metrics, String timer) {
+        FlowMetricsService.StepLatency latency = metrics.snapshot().get(timer);
+        return latency == null ? 0 : latency.getCount();
+    }
 }
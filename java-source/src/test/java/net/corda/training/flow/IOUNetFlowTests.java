@@ -0,0 +1,141 @@
+package net.corda.training.flow;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowSession;
+import net.corda.core.flows.ReceiveStateAndRefFlow;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.finance.Currencies;
+import net.corda.testing.node.*;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the [IOUNetFlow], which collapses a set of cross-party IOUs into residual IOUs in one transaction.
+ */
+public class IOUNetFlowTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode a, b, c, d;
+
+    @Before
+    public void setup() {
+        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
+                Arrays.asList(
+                        TestCordapp.findCordapp("net.corda.training")
+                )
+        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
+        mockNetwork = new MockNetwork(mockNetworkParameters);
+
+        a = mockNetwork.createNode(new MockNodeParameters());
+        b = mockNetwork.createNode(new MockNodeParameters());
+        c = mockNetwork.createNode(new MockNodeParameters());
+        d = mockNetwork.createNode(new MockNodeParameters());
+
+        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
+        startedNodes.add(a);
+        startedNodes.add(b);
+        startedNodes.add(c);
+        startedNodes.add(d);
+
+        // For real nodes this happens automatically, but we have to manually register the flow for tests
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUIssueFlow.ResponderFlow.class));
+        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUNetFlow.Responder.class));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    private IOUState issueIOU(StartedMockNode borrowerNode, IOUState iouState) throws InterruptedException, ExecutionException {
+        CordaFuture<SignedTransaction> future = borrowerNode.startFlow(new IOUIssueFlow.InitiatorFlow(iouState));
+        mockNetwork.runNetwork();
+        return future.get().getTx().outputsOfType(IOUState.class).get(0);
+    }
+
+    @Test
+    public void cycleOfIOUsNetsToOneResidualIOU() throws Exception {
+        Party partyA = a.getInfo().getLegalIdentities().get(0);
+        Party partyB = b.getInfo().getLegalIdentities().get(0);
+        Party partyC = c.getInfo().getLegalIdentities().get(0);
+
+        // A owes B 10, B owes C 10 and C owes A 4. Node A doesn't hold the IOU between B and C.
+        IOUState aOwesB = issueIOU(a, new IOUState(Currencies.POUNDS(10), partyB, partyA));
+        IOUState bOwesC = issueIOU(b, new IOUState(Currencies.POUNDS(10), partyC, partyB));
+        IOUState cOwesA = issueIOU(c, new IOUState(Currencies.POUNDS(4), partyA, partyC));
+
+        Future<SignedTransaction> future = a.startFlow(new IOUNetFlow.InitiatorFlow(
+                Arrays.asList(aOwesB.getLinearId(), bOwesC.getLinearId(), cOwesA.getLinearId())));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+
+        stx.verifyRequiredSignatures();
+        assertEquals(3, stx.getTx().getInputs().size());
+        List<IOUState> residuals = stx.getTx().outputsOfType(IOUState.class);
+        assertEquals(1, residuals.size());
+        assertEquals(Currencies.POUNDS(6), residuals.get(0).amount);
+        assertEquals(partyC, residuals.get(0).lender);
+        assertEquals(partyA, residuals.get(0).borrower);
+        assert (stx.getTx().getCommands().get(0).getValue() instanceof IOUContract.Commands.Net);
+
+        // Every node records the netting transaction.
+        Arrays.asList(a, b, c).forEach(node ->
+                assertEquals(stx.getId(), node.getServices().getValidatedTransactions().getTransaction(stx.getId()).getId()));
+    }
+
+    /**
+     * Asks [holder] for the IOUs [requested] the way the [IOUNetFlow.InitiatorFlow] does, and fails if any are sent.
+     */
+    public static class RequestIOUsFlow extends IOUNetFlow.InitiatorFlow {
+        private final Party holder;
+        private final List<UniqueIdentifier> requested;
+
+        public RequestIOUsFlow(Party holder, List<UniqueIdentifier> requested) {
+            super(requested);
+            this.holder = holder;
+            this.requested = requested;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            FlowSession session = initiateFlow(holder);
+            session.send(new IOUNetFlow.Request(requested, requested));
+            List<StateAndRef<IOUState>> received = subFlow(new ReceiveStateAndRefFlow<IOUState>(session));
+            if (!received.isEmpty()) {
+                throw new FlowException("Was sent " + received.size() + " IOUs.");
+            }
+            return null;
+        }
+    }
+
+    @Test
+    public void iousAreNotSentToAPartyThatIsntInTheProposal() throws Exception {
+        Party partyA = a.getInfo().getLegalIdentities().get(0);
+        Party partyB = b.getInfo().getLegalIdentities().get(0);
+
+        // D has no IOU with B, so B sends it nothing, however it asks.
+        IOUState aOwesB = issueIOU(a, new IOUState(Currencies.POUNDS(10), partyB, partyA));
+        Future<SignedTransaction> future = d.startFlow(new RequestIOUsFlow(partyB, Arrays.asList(aOwesB.getLinearId())));
+        mockNetwork.runNetwork();
+        future.get();
+    }
+}
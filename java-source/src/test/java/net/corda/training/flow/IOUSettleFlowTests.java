@@ -5,6 +5,7 @@ import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.CommandAndState;
 import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.contracts.UniqueIdentifier;
 import net.corda.core.flows.FlowSession;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
@@ -13,21 +14,27 @@ import net.corda.core.transactions.LedgerTransaction;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.finance.Currencies;
 import net.corda.finance.contracts.asset.Cash;
+import net.corda.finance.workflows.GetBalances;
 import net.corda.testing.node.*;
+import net.corda.training.MockNetworkRule;
 import net.corda.training.contract.IOUContract;
 import net.corda.training.contract.IOUIssueTests;
+import net.corda.training.service.CashBalanceService;
 import net.corda.training.state.IOUState;
-import org.junit.After;
 import org.junit.Before;
+import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
 import javax.annotation.Signed;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Currency;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.stream.Collectors;
@@ -43,38 +50,24 @@ import static net.corda.training.TestUtils.BOB;
  */
 public class IOUSettleFlowTests{
 
+    // The nodes are shared by every test in the class. Each test settles its own IOUs in a currency of its own, so
+    // it only sees the cash it issued itself.
+    @ClassRule
+    public static final MockNetworkRule network = new MockNetworkRule(3,
+            IOUSettleFlow.Responder.class,
+            IOUSettleFlow.BatchResponder.class).withNotaries(2);
+
     private MockNetwork mockNetwork;
     private StartedMockNode a, b, c;
+    private Currency currency;
 
     @Before
     public void setup() {
-
-        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
-                Arrays.asList(
-                        TestCordapp.findCordapp("net.corda.training"),
-                        TestCordapp.findCordapp("net.corda.finance.schemas")
-                )
-        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
-        mockNetwork = new MockNetwork(mockNetworkParameters);
-        System.out.println(mockNetwork);
-
-        a = mockNetwork.createNode(new MockNodeParameters());
-        b = mockNetwork.createNode(new MockNodeParameters());
-        c = mockNetwork.createNode(new MockNodeParameters());
-
-        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
-        startedNodes.add(a);
-        startedNodes.add(b);
-        startedNodes.add(c);
-
-        // For real nodes this happens automatically, but we have to manually register the flow for tests
-        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUSettleFlow.Responder.class));
-        mockNetwork.runNetwork();
-    }
-
-    @After
-    public void tearDown() {
-        mockNetwork.stopNodes();
+        mockNetwork = network.getMockNetwork();
+        a = network.node(0);
+        b = network.node(1);
+        c = network.node(2);
+        currency = MockNetworkRule.freshCurrency();
     }
 
     @Rule
@@ -87,8 +80,16 @@ public class IOUSettleFlowTests{
         return (SignedTransaction) future.get();
     }
 
+    private Amount<Currency> amount(int units) {
+        return Amount.fromDecimal(BigDecimal.valueOf(units), currency);
+    }
+
     private Cash.State issueCash(Amount<Currency> amount) throws InterruptedException, ExecutionException {
-        SelfIssueCashFlow flow = new SelfIssueCashFlow(amount);
+        return issueCash(amount, null);
+    }
+
+    private Cash.State issueCash(Amount<Currency> amount, Party notary) throws InterruptedException, ExecutionException {
+        SelfIssueCashFlow flow = new SelfIssueCashFlow(amount, notary);
         CordaFuture future = a.startFlow(flow);
         mockNetwork.runNetwork();
         return (Cash.State) future.get();
@@ -111,10 +112,10 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void flowReturnsCorrectlyFormedPartiallySignedTransaction() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
-        issueCash(Currencies.POUNDS(5));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(5));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = a.startFlow(flow);
 
         mockNetwork.runNetwork();
@@ -129,7 +130,7 @@ public class IOUSettleFlowTests{
                 assert(ledgerTx.getOutputs().size() == 2);
 
                 IOUState outputIOU = ledgerTx.outputsOfType(IOUState.class).get(0);
-                IOUState correctOutputIOU = inputIOU.pay(Currencies.POUNDS(5));
+                IOUState correctOutputIOU = inputIOU.pay(amount(5));
 
                 assert (outputIOU.amount.equals(correctOutputIOU.amount));
                 assert (outputIOU.paid.equals(correctOutputIOU.paid));
@@ -174,10 +175,10 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void settleFlowCanOnlyBeRunByBorrower() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
-        issueCash(Currencies.POUNDS(5));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(5));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = b.startFlow(flow);
 
         try {
@@ -198,10 +199,10 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void borrowerMustHaveCashInRightCurrency() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
-        issueCash(Currencies.POUNDS(5));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(5));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = a.startFlow(flow);
 
         try {
@@ -220,9 +221,9 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void borrowerMustHaveEnoughCashInRightCurrency() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = a.startFlow(flow);
 
         try {
@@ -240,10 +241,10 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void flowReturnsTransactionSignedByBothParties() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
-        issueCash(Currencies.POUNDS(5));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(5));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = a.startFlow(flow);
 
         try {
@@ -261,10 +262,10 @@ public class IOUSettleFlowTests{
      */
     @Test
     public void flowReturnsCommittedTransaction() throws Exception {
-        SignedTransaction stx = issueIOU(new IOUState(Currencies.POUNDS(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
-        issueCash(Currencies.POUNDS(5));
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(5));
         IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
-        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), Currencies.POUNDS(5));
+        IOUSettleFlow.InitiatorFlow flow = new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5));
         Future<SignedTransaction> futureSettleResult = a.startFlow(flow);
 
         try {
@@ -275,4 +276,76 @@ public class IOUSettleFlowTests{
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Batch settlement.
+     * Many IOUs with the same lender are settled with a single cash spend in one transaction.
+     */
+    @Test
+    public void batchFlowSettlesManyIOUsInOneTransaction() throws Exception {
+        Party lender = b.getInfo().getLegalIdentities().get(0);
+        Party borrower = a.getInfo().getLegalIdentities().get(0);
+        IOUState iouOne = issueIOU(new IOUState(amount(10), lender, borrower)).getTx().outputsOfType(IOUState.class).get(0);
+        IOUState iouTwo = issueIOU(new IOUState(amount(10), lender, borrower)).getTx().outputsOfType(IOUState.class).get(0);
+        issueCash(amount(15));
+
+        Map<UniqueIdentifier, Amount<Currency>> amounts = new LinkedHashMap<>();
+        amounts.put(iouOne.getLinearId(), amount(5));
+        amounts.put(iouTwo.getLinearId(), amount(10));
+        Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.BatchInitiatorFlow(amounts));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+
+        stx.verifyRequiredSignatures();
+        List<IOUState> outputIOUs = stx.getTx().outputsOfType(IOUState.class);
+        assert (outputIOUs.size() == 1);
+        assert (outputIOUs.get(0).getLinearId().equals(iouOne.getLinearId()));
+        assert (outputIOUs.get(0).paid.equals(amount(5)));
+        assert (stx.getTx().getCommands().stream().anyMatch(command -> command.getValue() instanceof IOUContract.Commands.SettleBatch));
+    }
+
+    /**
+     * The [CashBalanceService] used for the settle flow's balance check follows cash being issued and spent.
+     */
+    @Test
+    public void cashBalanceServiceTracksIssuedAndSpentCash() throws Exception {
+        CashBalanceService balances = a.getServices().cordaService(CashBalanceService.class);
+        assert (balances.balance(currency).equals(amount(0)));
+
+        SignedTransaction stx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        issueCash(amount(8));
+        assert (balances.balance(currency).equals(amount(8)));
+
+        IOUState inputIOU = stx.getTx().outputsOfType(IOUState.class).get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(5)));
+        mockNetwork.runNetwork();
+        future.get();
+        assert (balances.balance(currency).equals(amount(3)));
+        assert (balances.balances().equals(a.transaction(() -> GetBalances.getCashBalances(a.getServices()))));
+    }
+
+    /**
+     * Cash held with another notary than the IOU's is moved to the IOU's notary before it is spent, so the settlement
+     * succeeds whichever notaries the borrower's cash was issued with.
+     */
+    @Test
+    public void settlingMovesCashHeldWithAnotherNotaryToTheIOUsNotary() throws Exception {
+        SignedTransaction issueTx = issueIOU(new IOUState(amount(10), b.getInfo().getLegalIdentities().get(0), a.getInfo().getLegalIdentities().get(0)));
+        Party iouNotary = issueTx.getNotary();
+        Party otherNotary = iouNotary.equals(network.notary(0)) ? network.notary(1) : network.notary(0);
+        issueCash(amount(3), iouNotary);
+        issueCash(amount(4), otherNotary);
+        CashBalanceService balances = a.getServices().cordaService(CashBalanceService.class);
+        assert (balances.balance(currency, iouNotary).equals(amount(3)));
+        assert (balances.balance(currency, otherNotary).equals(amount(4)));
+
+        IOUState inputIOU = issueTx.getTx().outputsOfType(IOUState.class).get(0);
+        Future<SignedTransaction> future = a.startFlow(new IOUSettleFlow.InitiatorFlow(inputIOU.getLinearId(), amount(6)));
+        mockNetwork.runNetwork();
+        SignedTransaction settleTx = future.get();
+
+        assert (settleTx.getNotary().equals(iouNotary));
+        assert (settleTx.getTx().outputsOfType(IOUState.class).get(0).paid.equals(amount(6)));
+        assert (balances.balance(currency, otherNotary).equals(amount(0)));
+        assert (balances.balance(currency).equals(amount(1)));
+    }
+}
@@ -4,53 +4,42 @@ import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.Amount;
 import net.corda.core.contracts.Command;
 import net.corda.core.contracts.StateRef;
-import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.finance.Currencies;
 import net.corda.testing.node.*;
+import net.corda.training.MockNetworkRule;
 import net.corda.training.contract.IOUContract;
 import net.corda.training.state.IOUState;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 public class IOUTransferFlowTests {
 
+    // The nodes are shared by every test in the class, so each test only transfers the IOUs it issues itself.
+    @ClassRule
+    public static final MockNetworkRule network = new MockNetworkRule(4,
+            IOUTransferFlow.Responder.class,
+            IOUTransferFlow.BatchResponder.class);
+
     private MockNetwork mockNetwork;
-    private StartedMockNode a, b, c;
+    private StartedMockNode a, b, c, d;
 
     @Before
     public void setup() {
-        MockNetworkParameters mockNetworkParameters = new MockNetworkParameters().withCordappsForAllNodes(
-                Arrays.asList(
-                        TestCordapp.findCordapp("net.corda.training")
-                )
-        ).withNotarySpecs(Arrays.asList(new MockNetworkNotarySpec(new CordaX500Name("Notary", "London", "GB"))));
-        mockNetwork = new MockNetwork(mockNetworkParameters);
-        System.out.println(mockNetwork);
-
-        a = mockNetwork.createNode(new MockNodeParameters());
-        b = mockNetwork.createNode(new MockNodeParameters());
-        c = mockNetwork.createNode(new MockNodeParameters());
-
-        ArrayList<StartedMockNode> startedNodes = new ArrayList<>();
-        startedNodes.add(a);
-        startedNodes.add(b);
-        startedNodes.add(c);
-
-        // For real nodes this happens automatically, but we have to manually register the flow for tests
-        startedNodes.forEach(el -> el.registerInitiatedFlow(IOUTransferFlow.Responder.class));
-        mockNetwork.runNetwork();
-    }
-
-    @After
-    public void tearDown() {
-        mockNetwork.stopNodes();
+        mockNetwork = network.getMockNetwork();
+        a = network.node(0);
+        b = network.node(1);
+        c = network.node(2);
+        d = network.node(3);
     }
 
     @Rule
@@ -199,4 +188,32 @@ public class IOUTransferFlowTests {
             System.out.println(exception.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Batch transfer.
+     * IOUs with different borrowers are moved to one new lender in a single transaction, which every party records.
+     */
+    @Test
+    public void batchFlowTransfersIOUsWithDifferentBorrowersInOneTransaction() throws Exception {
+        Party lender = a.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrowerB = b.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party borrowerD = d.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        Party newLender = c.getInfo().getLegalIdentitiesAndCerts().get(0).getParty();
+        IOUState iouWithB = issueIOU(new IOUState(Currencies.DOLLARS(10), lender, borrowerB)).getTx().outputsOfType(IOUState.class).get(0);
+        IOUState iouWithD = issueIOU(new IOUState(Currencies.DOLLARS(20), lender, borrowerD)).getTx().outputsOfType(IOUState.class).get(0);
+
+        Future<SignedTransaction> future = a.startFlow(new IOUTransferFlow.BatchInitiatorFlow(
+                Arrays.asList(iouWithB.getLinearId(), iouWithD.getLinearId()), newLender));
+        mockNetwork.runNetwork();
+        SignedTransaction stx = future.get();
+
+        stx.verifyRequiredSignatures();
+        assertEquals(2, stx.getTx().getInputs().size());
+        List<IOUState> outputs = stx.getTx().outputsOfType(IOUState.class);
+        assertEquals(2, outputs.size());
+        assertTrue(outputs.stream().allMatch(output -> output.lender.equals(newLender)));
+        for (StartedMockNode node : Arrays.asList(a, b, c, d)) {
+            assertEquals(stx, node.getServices().getValidatedTransactions().getTransaction(stx.getId()));
+        }
+    }
+}
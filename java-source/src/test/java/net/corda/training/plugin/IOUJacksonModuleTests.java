@@ -0,0 +1,61 @@
+package net.corda.training.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.contracts.TransactionState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.finance.Currencies;
+import net.corda.training.contract.IOUContract;
+import net.corda.training.state.IOUState;
+import org.junit.Test;
+
+import static net.corda.training.TestUtils.*;
+import static org.junit.Assert.*;
+
+public class IOUJacksonModuleTests {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new IOUJacksonModule());
+
+    @Test
+    public void iouStateAndRefIsWrittenWithOnlyItsFields() throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty()).pay(Currencies.POUNDS(4));
+        StateRef ref = new StateRef(SecureHash.randomSHA256(), 1);
+        StateAndRef<IOUState> stateAndRef = new StateAndRef<>(
+                new TransactionState<>(iou, IOUContract.IOU_CONTRACT_ID, CHARLIE.getParty()), ref);
+
+        JsonNode json = mapper.readTree(mapper.writeValueAsString(stateAndRef));
+
+        assertEquals(ref.toString(), json.get("ref").asText());
+        assertEquals(CHARLIE.getName().toString(), json.get("notary").asText());
+        assertEquals(3, json.size());
+        JsonNode data = json.get("data");
+        assertEquals(iou.getLinearId().getId().toString(), data.get("linearId").asText());
+        assertFalse(data.has("externalId"));
+        assertEquals(ALICE.getName().toString(), data.get("lender").asText());
+        assertEquals(BOB.getName().toString(), data.get("borrower").asText());
+        assertEquals("10.00 GBP", data.get("amount").asText());
+        assertEquals("4.00 GBP", data.get("paid").asText());
+    }
+
+    @Test
+    public void externalIdIsWrittenAlongsideTheLinearId() throws Exception {
+        IOUState iou = new IOUState(Currencies.POUNDS(10), ALICE.getParty(), BOB.getParty()).withExternalId("request-1");
+
+        JsonNode json = mapper.readTree(mapper.writeValueAsString(iou));
+
+        assertEquals(iou.getLinearId().getId().toString(), json.get("linearId").asText());
+        assertEquals("request-1", json.get("externalId").asText());
+    }
+
+    @Test
+    public void partiesAmountsAndIdsAreWrittenAsStrings() throws Exception {
+        UniqueIdentifier linearId = new UniqueIdentifier("key");
+
+        assertEquals("\"" + ALICE.getName() + "\"", mapper.writeValueAsString(ALICE.getParty()));
+        assertEquals("\"5.50 USD\"", mapper.writeValueAsString(Currencies.DOLLARS(5.5)));
+        assertEquals("\"" + linearId.getId() + "\"", mapper.writeValueAsString(linearId));
+    }
+}
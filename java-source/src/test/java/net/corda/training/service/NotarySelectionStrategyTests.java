@@ -0,0 +1,64 @@
+package net.corda.training.service;
+
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.identity.Party;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static net.corda.training.TestUtils.*;
+import static org.junit.Assert.*;
+
+public class NotarySelectionStrategyTests {
+
+    private final List<Party> notaries = Arrays.asList(ALICE.getParty(), BOB.getParty(), CHARLIE.getParty());
+
+    @Test
+    public void firstAlwaysPicksTheFirstNotary() {
+        NotarySelectionStrategy strategy = new NotarySelectionStrategy.First();
+        assertEquals(ALICE.getParty(), strategy.select(notaries, new UniqueIdentifier()));
+        assertEquals(ALICE.getParty(), strategy.select(notaries, null));
+    }
+
+    @Test
+    public void roundRobinCyclesThroughEveryNotary() {
+        NotarySelectionStrategy strategy = new NotarySelectionStrategy.RoundRobin();
+        assertEquals(ALICE.getParty(), strategy.select(notaries, null));
+        assertEquals(BOB.getParty(), strategy.select(notaries, null));
+        assertEquals(CHARLIE.getParty(), strategy.select(notaries, null));
+        assertEquals(ALICE.getParty(), strategy.select(notaries, null));
+    }
+
+    @Test
+    public void linearIdHashIsStableForAState() {
+        NotarySelectionStrategy strategy = new NotarySelectionStrategy.LinearIdHash();
+        Set<Party> chosen = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            UniqueIdentifier linearId = new UniqueIdentifier();
+            Party notary = strategy.select(notaries, linearId);
+            assertEquals(notary, strategy.select(notaries, linearId));
+            chosen.add(notary);
+        }
+        assertEquals(new HashSet<>(notaries), chosen);
+    }
+
+    @Test
+    public void leastLatencyPrefersTheFastestObservedNotary() {
+        NotarySelectionStrategy strategy = new NotarySelectionStrategy.LeastLatency();
+        strategy.recordNotarisation(ALICE.getParty(), Duration.ofMillis(300));
+        strategy.recordNotarisation(BOB.getParty(), Duration.ofMillis(100));
+        // Charlie hasn't been tried yet, so is tried first.
+        assertEquals(CHARLIE.getParty(), strategy.select(notaries, null));
+        strategy.recordNotarisation(CHARLIE.getParty(), Duration.ofMillis(200));
+        assertEquals(BOB.getParty(), strategy.select(notaries, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownStrategyNamesAreRejected() {
+        NotarySelectionService.strategyNamed("random");
+    }
+}
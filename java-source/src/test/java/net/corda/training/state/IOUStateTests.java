@@ -3,6 +3,7 @@ package net.corda.training.state;
 import net.corda.core.contracts.*;
 import net.corda.core.identity.Party;
 import net.corda.finance.*;
+import net.corda.training.schema.IOUSchemaV1;
 
 import static net.corda.training.TestUtils.*;
 
@@ -213,4 +214,21 @@ public class IOUStateTests {
             fail("The correct private copy constructor does not exist!");
         }
     }
+
+    /**
+     * IOUs are persisted to the vault using [IOUSchemaV1] so they can be queried by their fields.
+     */
+    @Test
+    public void mapsToIOUSchemaV1() {
+        IOUState iou = new IOUState(Currencies.DOLLARS(10), ALICE.getParty(), BOB.getParty()).pay(Currencies.DOLLARS(4));
+        IOUSchemaV1.PersistentIOU persistentIOU = (IOUSchemaV1.PersistentIOU) iou.generateMappedObject(new IOUSchemaV1());
+
+        assertEquals(ALICE.getParty().getName().toString(), persistentIOU.getLender());
+        assertEquals(BOB.getParty().getName().toString(), persistentIOU.getBorrower());
+        assertEquals("USD", persistentIOU.getCurrency());
+        assertEquals(1000, persistentIOU.getAmount());
+        assertEquals(400, persistentIOU.getPaid());
+        assertEquals(600, persistentIOU.getOutstanding());
+        assertEquals(iou.getLinearId().getId(), persistentIOU.getLinearId());
+    }
 }